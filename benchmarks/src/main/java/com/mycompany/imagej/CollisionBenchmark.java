@@ -0,0 +1,57 @@
+package com.mycompany.imagej;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/* The lookups into the large objects and the collision circles, and the collision detection and handling of a whole slice.
+ * getCollisions and handleCollisions change the state they run on, but repeating them on the same slice soon leaves it as it is.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollisionBenchmark {
+
+	// what used to be isInROI: whether the zf centers are free, in a large object or in a collision circle
+	@Benchmark
+	public void isAvailable(TrackingBenchmarkState b, Blackhole bh) {
+		TrackerState state = b.pass.state;
+		for (int i = 0; i < state.nbFish; i++)
+			bh.consume(b.pass.isAvailable(state.x[i]+1, state.y[i]));
+	}
+
+	@Benchmark
+	public void isInObject(TrackingBenchmarkState b, Blackhole bh) {
+		TrackerState state = b.pass.state;
+		for (int i = 0; i < state.nbFish; i++)
+			bh.consume(b.pass.isInObject(state.x[i], state.y[i]));
+	}
+
+	@Benchmark
+	public void isInCollision(TrackingBenchmarkState b, Blackhole bh) {
+		TrackerState state = b.pass.state;
+		for (int i = 0; i < state.nbFish; i++)
+			bh.consume(b.pass.isInCollision(state.center(i)));
+	}
+
+	@Benchmark
+	public void getCollisions(TrackingBenchmarkState b, Blackhole bh) {
+		for (int i = 0; i < b.pass.state.nbFish; i++)
+			bh.consume(b.pass.getCollisions(i, b.slice+1));
+	}
+
+	@Benchmark
+	public void handleCollisions(TrackingBenchmarkState b, Blackhole bh) {
+		b.pass.handleCollisions(b.slice, b.slice+1, b.frame.ip);
+		bh.consume(b.pass.state.collisions.size());
+	}
+}
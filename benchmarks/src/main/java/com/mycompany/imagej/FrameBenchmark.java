@@ -0,0 +1,48 @@
+package com.mycompany.imagej;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/* The per-slice work: the exposure tracking, the preprocessing of a frame and a whole tracking step.
+ * moveRois preprocesses its slice on the benchmark thread, so it measures the cost of a slice without any worker thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+
+	@Benchmark
+	public double maxValue(TrackingBenchmarkState b) {
+		return FramePreprocessor.maxValue(b.frame.ip);
+	}
+
+	// the max of the slice then its difference with the previous one, as the tracker did before the preprocessing was split out
+	@Benchmark
+	public double sliceDiff(TrackingBenchmarkState b) {
+		b.frame.max = FramePreprocessor.maxValue(b.frame.ip);
+		return b.pass.sliceDiff(b.frame);
+	}
+
+	// max value and exclusion mask of a slice
+	@Benchmark
+	public ExclusionMask preprocess(TrackingBenchmarkState b) {
+		PreprocessedFrame frame = b.pass.preprocessor.preprocess(b.slice+1);
+		b.pass.preprocessor.release(frame);
+		return frame.objects;
+	}
+
+	@Benchmark
+	public int moveRois(TrackingBenchmarkState b) {
+		b.step();
+		return b.pass.state.x[0];
+	}
+}
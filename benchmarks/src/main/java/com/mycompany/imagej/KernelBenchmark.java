@@ -0,0 +1,74 @@
+package com.mycompany.imagej;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.awt.Point;
+
+/* The darkest spot searches, once per zf of a slice:
+ * getMin as trackMin calls it, with a threshold but no point to exclude, and with the nearby zf excluded as handleCollisions calls it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBenchmark {
+	ArrayList<ArrayList<Point>> nearbyZFs = new ArrayList<ArrayList<Point>>();
+	ArrayList<Point> none = new ArrayList<Point>();
+
+	// the centers of the other zf within collisionHandlerRadius of each zf
+	@Setup(Level.Iteration)
+	public void findNearbyZFs(TrackingBenchmarkState b) {
+		TrackerState state = b.pass.state;
+		nearbyZFs.clear();
+		for (int i = 0; i < state.nbFish; i++) {
+			ArrayList<Point> nearby = new ArrayList<Point>();
+			for (int j = 0; j < state.nbFish; j++) {
+				if (i != j && b.pass.distance(state.x[i], state.y[i], state.x[j], state.y[j]) < b.params.collisionHandlerRadius)
+					nearby.add(state.center(j));
+			}
+			nearbyZFs.add(nearby);
+		}
+	}
+
+	@Benchmark
+	public void getMin(TrackingBenchmarkState b, Blackhole bh) {
+		TrackerState state = b.pass.state;
+		for (int i = 0; i < state.nbFish; i++) {
+			b.pass.getMin(state.x[i], state.y[i], state.size[i], b.frame.ip, b.pass.spot);
+			bh.consume(b.pass.spot.value);
+		}
+	}
+
+	@Benchmark
+	public void getMinThreshold(TrackingBenchmarkState b, Blackhole bh) {
+		TrackerState state = b.pass.state;
+		for (int i = 0; i < state.nbFish; i++) {
+			b.pass.getMin(state.x[i], state.y[i], b.params.collisionHandlerRadius, b.frame.ip, state.zfThreshold, none, b.params.zfSize, b.pass.spot);
+			bh.consume(b.pass.spot.found);
+		}
+	}
+
+	@Benchmark
+	public void getMinExcluding(TrackingBenchmarkState b, Blackhole bh) {
+		TrackerState state = b.pass.state;
+		for (int i = 0; i < state.nbFish; i++) {
+			b.pass.getMin(state.x[i], state.y[i], b.params.collisionHandlerRadius, b.frame.ip, state.zfThreshold, nearbyZFs.get(i), b.params.zfSize, b.pass.spot);
+			bh.consume(b.pass.spot.found);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package com.mycompany.imagej;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/* The full-frame passes of PixelKernels on one frame: the scalar loops, the kernels get() picked (printed once per trial)
+ * and the max value as the tracker first computed it, with ip.get(x,y) column by column.
+ * The vector kernels need the plugin built with -Pvector and the forks started with the incubator module:
+ *   java -jar target/benchmarks.jar PixelKernel -jvmArgsAppend --add-modules=jdk.incubator.vector
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PixelKernelBenchmark {
+	static final long SEED = 42;
+
+	@Param({"512", "1024", "2048"})
+	public int size;
+
+	PixelKernels scalar = new PixelKernels(), kernels;
+	byte[] bytes;
+	short[] shorts;
+	float[] floats;
+	boolean[] above;
+	int[] histogram = new int[256];
+	ImageProcessor ip;
+
+	// noisy frames with the range of a light background, as 8-bit, 12-bit in 16-bit and float
+	@Setup(Level.Trial)
+	public void generate() {
+		kernels = PixelKernels.get();
+		System.out.println("PixelKernels: "+kernels.getName());
+		Random random = new Random(SEED);
+		int n = size*size;
+		bytes = new byte[n];
+		shorts = new short[n];
+		floats = new float[n];
+		above = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			bytes[i] = (byte) (150 + random.nextInt(100));
+			shorts[i] = (short) (16*(bytes[i]&0xff) + random.nextInt(16));
+			floats[i] = (bytes[i]&0xff) + random.nextFloat();
+		}
+		ip = new ByteProcessor(size, size, bytes);
+	}
+
+	@Benchmark
+	public int maxGetXY() {
+		int w = ip.getWidth(), h = ip.getHeight(), max = 0;
+		for (int x = 0; x < w; x++) {
+			for (int y = 0; y < h; y++) {
+				if (max < ip.get(x,y))
+					max = ip.get(x,y);
+			}
+		}
+		return max;
+	}
+
+	@Benchmark
+	public int maxBytesScalar() {
+		return scalar.max(bytes);
+	}
+
+	@Benchmark
+	public int maxBytes() {
+		return kernels.max(bytes);
+	}
+
+	@Benchmark
+	public int maxShortsScalar() {
+		return scalar.max(shorts);
+	}
+
+	@Benchmark
+	public int maxShorts() {
+		return kernels.max(shorts);
+	}
+
+	@Benchmark
+	public float maxFloatsScalar() {
+		return scalar.max(floats);
+	}
+
+	@Benchmark
+	public float maxFloats() {
+		return kernels.max(floats);
+	}
+
+	@Benchmark
+	public int minBytes() {
+		return kernels.min(bytes);
+	}
+
+	@Benchmark
+	public int[] histogramBytes() {
+		kernels.histogram(bytes, histogram);
+		return histogram;
+	}
+
+	// the object threshold pass of ParticleFinder
+	@Benchmark
+	public boolean[] aboveBytesScalar() {
+		scalar.above(bytes, 200, above);
+		return above;
+	}
+
+	@Benchmark
+	public boolean[] aboveBytes() {
+		kernels.above(bytes, 200, above);
+		return above;
+	}
+
+	@Benchmark
+	public boolean[] aboveFloatsScalar() {
+		scalar.above(floats, 200.5f, above);
+		return above;
+	}
+
+	@Benchmark
+	public boolean[] aboveFloats() {
+		kernels.above(floats, 200.5f, above);
+		return above;
+	}
+}
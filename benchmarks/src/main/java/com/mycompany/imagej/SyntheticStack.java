@@ -0,0 +1,85 @@
+package com.mycompany.imagej;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.awt.Point;
+
+/* Deterministic 8-bit videos for the benchmarks, generated without any window.
+ * A light and slightly noisy background, nbFish dark blobs doing random walks and a large dark object crossing the frame.
+ * A fraction collisionDensity of the zf swims in pairs, close enough to one another to be in a collision all along.
+ * The same arguments always give the same video.
+ */
+public class SyntheticStack {
+	static final int BACKGROUND = 200, NOISE = 8, ZF_VALUE = 40, OBJECT_VALUE = 60, ZF_HALF_WIDTH = 2, PAIR_OFFSET = 3;
+	ImageStack stack;
+	Point[] seeds; // the zf centers on the first slice
+	int width, height, nbSlices, nbFish;
+
+	public static SyntheticStack generate(int width, int height, int nbSlices, int nbFish, double collisionDensity, long seed) {
+		SyntheticStack video = new SyntheticStack();
+		video.width = width;
+		video.height = height;
+		video.nbSlices = nbSlices;
+		video.nbFish = nbFish;
+		video.stack = new ImageStack(width, height);
+		video.seeds = new Point[nbFish];
+
+		Random random = new Random(seed);
+		int margin = ZF_HALF_WIDTH + PAIR_OFFSET + 1;
+		double[] x = new double[nbFish], y = new double[nbFish];
+		// the first zf of a pair leads, the second one follows it at PAIR_OFFSET pixels
+		int nbPaired = 2*(int) Math.round(collisionDensity*nbFish/2);
+		for (int i = 0; i < nbFish; i++) {
+			x[i] = margin + random.nextInt(width-2*margin);
+			y[i] = margin + random.nextInt(height-2*margin);
+		}
+
+		for (int s = 0; s < nbSlices; s++) {
+			byte[] pixels = new byte[width*height];
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] = (byte) (BACKGROUND + random.nextInt(NOISE));
+			for (int i = 0; i < nbFish; i++) {
+				if (i < nbPaired && (i & 1) == 1) {
+					x[i] = x[i-1] + PAIR_OFFSET;
+					y[i] = y[i-1];
+				} else if (s > 0) {
+					x[i] = clamp(x[i] + 2*random.nextGaussian(), margin, width-1-margin);
+					y[i] = clamp(y[i] + 2*random.nextGaussian(), margin, height-1-margin);
+				}
+				drawZf(pixels, width, (int) x[i], (int) y[i]);
+				if (s == 0)
+					video.seeds[i] = new Point((int) x[i], (int) y[i]);
+			}
+			drawObject(pixels, width, height, s, nbSlices);
+			video.stack.addSlice("", new ByteProcessor(width, height, pixels));
+		}
+		return video;
+	}
+
+	// darkest at the center, as a larva seen from above
+	static void drawZf(byte[] pixels, int width, int cx, int cy) {
+		for (int dy = -ZF_HALF_WIDTH; dy <= ZF_HALF_WIDTH; dy++) {
+			for (int dx = -ZF_HALF_WIDTH; dx <= ZF_HALF_WIDTH; dx++) {
+				int i = (cy+dy)*width + cx+dx;
+				pixels[i] = (byte) Math.min(pixels[i]&0xff, ZF_VALUE + 10*(Math.abs(dx)+Math.abs(dy)));
+			}
+		}
+	}
+
+	// a pipette-like rectangle going across the frame during the middle half of the video
+	static void drawObject(byte[] pixels, int width, int height, int s, int nbSlices) {
+		if (s < nbSlices/4 || s >= 3*nbSlices/4)
+			return;
+		int objectWidth = width/8, objectHeight = height/5;
+		int x0 = (int) ((long) (width-objectWidth)*(s-nbSlices/4)/Math.max(1, nbSlices/2)), y0 = (height-objectHeight)/2;
+		for (int y = y0; y < y0+objectHeight; y++)
+			Arrays.fill(pixels, y*width+x0, y*width+x0+objectWidth, (byte) OBJECT_VALUE);
+	}
+
+	static double clamp(double value, double min, double max) {
+		return Math.max(min, Math.min(max, value));
+	}
+}
@@ -0,0 +1,92 @@
+package com.mycompany.imagej;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/* A forward tracking pass over a synthetic video, driven one slice at a time instead of by TrackingPass.run().
+ * The video is generated once per trial. Each iteration starts the pass over from the first slice and tracks a few slices,
+ * so that the zf have moved and collisions have been found before anything is measured.
+ * frame is the preprocessed slice the pass is about to track, kept aside for the benchmarks of a single stage.
+ */
+@State(Scope.Thread)
+public class TrackingBenchmarkState {
+	static final long SEED = 42;
+	static final int WARMUP_SLICES = 5;
+
+	@Param({"10", "50", "100"})
+	public int nbFish;
+
+	@Param({"10", "20"})
+	public double radius;
+
+	@Param({"0", "0.3"})
+	public double collisionDensity;
+
+	@Param({"512"})
+	public int size;
+
+	@Param({"40"})
+	public int nbSlices;
+
+	SyntheticStack video;
+	TrackingParameters params;
+	FrameSource source;
+	TrackingEngine engine;
+	TrackingPass pass;
+	PreprocessedFrame frame;
+	int slice;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		video = SyntheticStack.generate(size, size, nbSlices, nbFish, collisionDensity, SEED);
+		source = new StackFrameSource(video.stack);
+		params = new TrackingParameters();
+		params.defaultRadius = radius;
+		params.collisionHandlerRadius = radius;
+	}
+
+	@Setup(Level.Iteration)
+	public void restart() {
+		engine = new TrackingEngine(params, source);
+		engine.setSeeds(1, video.seeds);
+		engine.setPreprocessing(0, 1);
+		engine.sink = new TrajectoryStore(nbFish, nbSlices);
+		pass = new TrackingPass(engine, 1, 0);
+		pass.preprocessor = new FramePreprocessor(source, params, 0, 1);
+		pass.state.previousSliceMax = FramePreprocessor.maxValue(source.getProcessor(1));
+		slice = 1;
+		for (int i = 0; i < WARMUP_SLICES; i++)
+			step();
+		frame = preprocess(slice+1);
+		pass.objects = frame.objects;
+	}
+
+	@TearDown(Level.Iteration)
+	public void shutdown() {
+		pass.preprocessor.shutdown();
+	}
+
+	// tracks the next slice, going back to the seeds once the end of the video is reached
+	void step() {
+		if (slice+1 >= nbSlices) {
+			pass.state.resetFish(video.seeds, params.defaultRadius);
+			pass.collisionGrid.clear();
+			pass.state.objectThreshold = params.objectThreshold;
+			pass.state.zfThreshold = engine.startZfThreshold;
+			pass.state.previousSliceMax = FramePreprocessor.maxValue(source.getProcessor(1));
+			slice = 1;
+		}
+		pass.preprocessor.start(slice+1, slice+1, pass.state.objectThreshold, pass.state.previousSliceMax);
+		pass.moveRois(slice, slice+1);
+		slice++;
+	}
+
+	PreprocessedFrame preprocess(int slice) {
+		pass.preprocessor.start(slice, slice, pass.state.objectThreshold, pass.state.previousSliceMax);
+		return pass.preprocessor.next();
+	}
+}
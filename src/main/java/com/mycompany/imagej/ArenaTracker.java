@@ -0,0 +1,194 @@
+package com.mycompany.imagej;
+
+import ij.gui.Roi;
+import ij.plugin.frame.RoiManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.awt.Point;
+import java.awt.Rectangle;
+
+/* Tracks the zf of each arena, e.g each well of a plate, on its own: zf of different arenas never interact.
+ * Each arena has its own TrackingEngine on a cropped view of the frames, hence its own tracker state, exclusion mask,
+ * exposure tracking and collisions. The forward and backward passes of all arenas run at the same time on a fork-join pool,
+ * preprocessing their frames themselves, so that the arenas rather than the stages of a frame are spread over the cores.
+ * Arenas are clipped to the frame. Each seed belongs to the first arena containing it. Trajectories are written to one sink, numbered as the seeds and in frame coordinates.
+ */
+public class ArenaTracker {
+	TrackingParameters params;
+	FrameSource source;
+	Rectangle[] arenas;
+	Point[] seeds;
+	int startSlice, parallelism = Runtime.getRuntime().availableProcessors();
+	boolean measuring;
+	TrackingMetrics metrics;
+	TrajectoryStore trajectories;
+
+	public ArenaTracker(TrackingParameters params, FrameSource source, Rectangle[] arenas) {
+		this.params = params;
+		this.source = source;
+		// clipped to the frame once, as CroppedFrameSource crops them, so that the seeds and positions are shifted by the same corner
+		Rectangle frame = new Rectangle(0, 0, source.getWidth(), source.getHeight());
+		this.arenas = new Rectangle[arenas.length];
+		for (int a = 0; a < arenas.length; a++)
+			this.arenas[a] = arenas[a].intersection(frame);
+	}
+
+	// rows x cols arenas of equal size covering the frame, as the wells of a plate filling the field of view
+	public static Rectangle[] grid(int width, int height, int rows, int cols) {
+		Rectangle[] grid = new Rectangle[rows*cols];
+		for (int row = 0; row < rows; row++) {
+			for (int col = 0; col < cols; col++) {
+				int x0 = col*width/cols, y0 = row*height/rows;
+				grid[row*cols + col] = new Rectangle(x0, y0, (col+1)*width/cols - x0, (row+1)*height/rows - y0);
+			}
+		}
+		return grid;
+	}
+
+	// the bounding rectangles of the ROIs of the ROI Manager, e.g drawn around each well
+	public static Rectangle[] fromRoiManager() {
+		RoiManager manager = RoiManager.getInstance();
+		if (manager == null)
+			return new Rectangle[0];
+		Roi[] rois = manager.getRoisAsArray();
+		Rectangle[] bounds = new Rectangle[rois.length];
+		for (int i = 0; i < rois.length; i++)
+			bounds[i] = rois[i].getBounds();
+		return bounds;
+	}
+
+	public void setSeeds(int startSlice, Point[] seeds) {
+		this.startSlice = startSlice;
+		this.seeds = seeds;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public void setMeasuring(boolean measuring) {
+		this.measuring = measuring;
+	}
+
+	public void track() {
+		trajectories = new TrajectoryStore(seeds.length, source.getSize());
+		track(trajectories);
+	}
+
+	public void track(TrajectorySink sink) {
+		// the seeds of each arena, in their coordinates, and their index among all seeds
+		List<List<Point>> arenaSeeds = new ArrayList<List<Point>>();
+		List<List<Integer>> arenaFish = new ArrayList<List<Integer>>();
+		for (int a = 0; a < arenas.length; a++) {
+			arenaSeeds.add(new ArrayList<Point>());
+			arenaFish.add(new ArrayList<Integer>());
+		}
+		for (int i = 0; i < seeds.length; i++) {
+			int a = 0;
+			while (a < arenas.length && !arenas[a].contains(seeds[i]))
+				a++;
+			if (a == arenas.length)
+				throw new IllegalArgumentException("The zebrafish at "+seeds[i].x+","+seeds[i].y+" is in no arena");
+			arenaSeeds.get(a).add(new Point(seeds[i].x-arenas[a].x, seeds[i].y-arenas[a].y));
+			arenaFish.get(a).add(i);
+		}
+
+		List<TrackingEngine> engines = new ArrayList<TrackingEngine>();
+		List<TrackingPass[]> passes = new ArrayList<TrackingPass[]>();
+		final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+		int nbActive = 0;
+		for (List<Point> s:arenaSeeds)
+			nbActive += s.isEmpty() ? 0 : 1;
+		AtomicIntegerArray commits = new AtomicIntegerArray(source.getSize()+1);
+		for (int a = 0; a < arenas.length; a++) {
+			if (arenaSeeds.get(a).isEmpty())
+				continue;
+			TrackingEngine engine = new TrackingEngine(params, new CroppedFrameSource(source, arenas[a]));
+			engine.setSeeds(startSlice, arenaSeeds.get(a).toArray(new Point[0]));
+			engine.setPreprocessing(0, 1);
+			engine.setMeasuring(measuring);
+			TrackingPass[] arenaPasses = engine.createPasses(new ArenaSink(sink, arenas[a], arenaFish.get(a), commits, nbActive), 0);
+			engines.add(engine);
+			passes.add(arenaPasses);
+			for (TrackingPass pass:arenaPasses)
+				tasks.add(ForkJoinTask.adapt(pass));
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if (measuring)
+			metrics = new TrackingMetrics(source.getSize());
+		for (int e = 0; e < engines.size(); e++) {
+			engines.get(e).finishPasses(passes.get(e));
+			if (measuring)
+				metrics.merge(engines.get(e).getMetrics());
+		}
+		if (measuring && !engines.isEmpty()) {
+			// every arena tracked the same frames
+			metrics.nbFrames = engines.get(0).getMetrics().nbFrames;
+			metrics.startTime = engines.get(0).getMetrics().startTime;
+			metrics.stop();
+		}
+	}
+
+	public TrajectoryStore getTrajectories() {
+		return trajectories;
+	}
+
+	// null unless the run was measured. Stage counts and per-slice values add up those of all arenas.
+	public TrackingMetrics getMetrics() {
+		return metrics;
+	}
+
+	/* Writes the trajectories of an arena to the common sink, back in frame coordinates and numbered as all seeds.
+	 * An index is only committed to the common sink once every arena has committed it.
+	 */
+	static class ArenaSink implements TrajectorySink {
+		TrajectorySink sink;
+		int dx, dy, nbArenas;
+		int[] fish;
+		AtomicIntegerArray commits;
+
+		ArenaSink(TrajectorySink sink, Rectangle arena, List<Integer> fish, AtomicIntegerArray commits, int nbArenas) {
+			this.sink = sink;
+			dx = arena.x;
+			dy = arena.y;
+			this.fish = new int[fish.size()];
+			for (int i = 0; i < this.fish.length; i++)
+				this.fish[i] = fish.get(i);
+			this.commits = commits;
+			this.nbArenas = nbArenas;
+		}
+
+		@Override
+		public void setPosition(int fish, int index, int x, int y) {
+			sink.setPosition(this.fish[fish], index, x+dx, y+dy);
+		}
+
+		@Override
+		public void setCollision(int fish, int index, int collision) {
+			sink.setCollision(this.fish[fish], index, collision);
+		}
+
+		@Override
+		public void commit(int index) {
+			if (commits.incrementAndGet(index) == nbArenas)
+				sink.commit(index);
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package com.mycompany.imagej;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/* Stitches the trajectories across all recorded collisions at once, as the user would by clicking on them.
+ * A collision is the group of zf whose collision segments overlap in time while they are within collisionHandlerRadius.
+ * When they separate, the tracker hands the dark spots over to the colliding zf without preference, so their identities may be mixed up.
+ * For each collision, every way of matching the zf entering it to the trajectories leaving it gets a motion continuity cost:
+ * how far each trajectory leaves from where the zf entering it was heading, and how much its heading turned.
+ * The cheapest matching is applied if it is clearly cheaper than the next one, and the positions during the collision are interpolated.
+ * Otherwise the collision is left for manual stitching.
+ * Identities are anchored on the start slice: collisions after it swap the trajectories from their end on, those before it up to their start.
+ */
+public class AutoStitcher {
+	static final int MAX_COLLIDING = 6; // 720 matchings
+	TrackingParameters params;
+	TrajectoryStore trajectories;
+	TrajectoryIndex index;
+	int startSlice, history = 3, maxExtrapolation = 5;
+	double minConfidence = 0.3;
+	List<Collision> unresolved = new ArrayList<Collision>();
+	IdentityMap identities; // where the stitches are recorded, if anywhere
+
+	// the zf taking part in a collision and the slices [start, end) it lasted
+	public static class Collision {
+		public int start, end;
+		public int[] fish;
+		public double confidence;
+	}
+
+	public AutoStitcher(TrackingParameters params, TrajectoryStore trajectories, TrajectoryIndex index, int startSlice) {
+		this.params = params;
+		this.trajectories = trajectories;
+		this.index = index;
+		this.startSlice = startSlice-1;
+	}
+
+	// how much cheaper than the next matching the best one must be, relative to the next one's cost
+	public void setMinConfidence(double minConfidence) {
+		this.minConfidence = minConfidence;
+	}
+
+	public void setIdentities(IdentityMap identities) {
+		this.identities = identities;
+	}
+
+	// returns the number of stitched collisions, the others are given by getUnresolved()
+	public int stitch() {
+		List<Collision> collisions = findCollisions();
+		unresolved.clear();
+		// the collisions nearest to the start slice first, since each one renumbers the zf beyond it
+		Collections.sort(collisions, new Comparator<Collision>() {
+			@Override
+			public int compare(Collision a, Collision b) {
+				return Integer.compare(distanceToStart(a), distanceToStart(b));
+			}
+		});
+		int nbFish = trajectories.getNbFish(), nbStitched = 0;
+		// where the data of each zf went: forwards after the start slice, backwards before it
+		int[] forward = identity(nbFish), backward = identity(nbFish);
+		for (Collision collision:collisions) {
+			boolean after = collision.start >= startSlice;
+			int[] renumbering = after ? forward : backward;
+			int[] fish = new int[collision.fish.length];
+			for (int i = 0; i < fish.length; i++)
+				fish[i] = renumbering[collision.fish[i]];
+			collision.fish = fish;
+			int[] matching = match(collision, after);
+			if (matching == null) {
+				unresolved.add(collision);
+				continue;
+			}
+			apply(collision, matching, after, renumbering);
+			nbStitched++;
+		}
+		index.invalidate();
+		return nbStitched;
+	}
+
+	public List<Collision> getUnresolved() {
+		return unresolved;
+	}
+
+	int distanceToStart(Collision c) {
+		return c.start >= startSlice ? c.start-startSlice : startSlice-c.end;
+	}
+
+	/* Groups the collision segments of different zf which overlap in time and whose zf are close when both are in the collision.
+	 * Groups of a single zf, e.g whose partner was lost, are left out.
+	 */
+	List<Collision> findCollisions() {
+		int nbFish = trajectories.getNbFish();
+		List<int[]> segments = new ArrayList<int[]>(); // fish, start, end
+		for (int fish = 0; fish < nbFish; fish++) {
+			int[] starts = index.collisionStarts(fish), ends = index.collisionEnds(fish);
+			for (int r = 0; r < starts.length; r++)
+				segments.add(new int[] {fish, starts[r], ends[r]});
+		}
+		Collections.sort(segments, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(a[1], b[1]);
+			}
+		});
+
+		int[] parent = identity(segments.size());
+		List<Integer> active = new ArrayList<Integer>();
+		for (int i = 0; i < segments.size(); i++) {
+			int[] segment = segments.get(i);
+			for (int a = active.size()-1; a >= 0; a--) {
+				int[] other = segments.get(active.get(a));
+				if (other[2] <= segment[1])
+					active.remove(a);
+				else if (other[0] != segment[0] && trajectories.distance(other[0], segment[1], trajectories.getX(segment[0], segment[1]), trajectories.getY(segment[0], segment[1])) <= params.collisionHandlerRadius)
+					union(parent, i, active.get(a));
+			}
+			active.add(i);
+		}
+
+		// one group per root, holding its zf in order
+		List<Collision> groups = new ArrayList<Collision>();
+		List<List<Integer>> members = new ArrayList<List<Integer>>();
+		int[] groupOf = new int[segments.size()];
+		Arrays.fill(groupOf, -1);
+		for (int i = 0; i < segments.size(); i++) {
+			int root = find(parent, i);
+			int[] segment = segments.get(i);
+			if (groupOf[root] < 0) {
+				groupOf[root] = groups.size();
+				Collision c = new Collision();
+				c.start = segment[1];
+				c.end = segment[2];
+				groups.add(c);
+				members.add(new ArrayList<Integer>());
+			}
+			Collision c = groups.get(groupOf[root]);
+			c.start = Math.min(c.start, segment[1]);
+			c.end = Math.max(c.end, segment[2]);
+			if (!members.get(groupOf[root]).contains(segment[0]))
+				members.get(groupOf[root]).add(segment[0]);
+		}
+		List<Collision> collisions = new ArrayList<Collision>();
+		for (int g = 0; g < groups.size(); g++) {
+			List<Integer> fish = members.get(g);
+			if (fish.size() < 2)
+				continue;
+			Collections.sort(fish);
+			Collision c = groups.get(g);
+			c.fish = new int[fish.size()];
+			for (int i = 0; i < fish.size(); i++)
+				c.fish[i] = fish.get(i);
+			collisions.add(c);
+		}
+		return collisions;
+	}
+
+	/* The cheapest matching of the zf entering the collision to the trajectories leaving it, matching[i] being the trajectory of fish[i],
+	 * or null if the collision reaches an end of the video, has too many zf or if the next matching is about as cheap.
+	 * Entering and leaving are in the direction away from the start slice.
+	 */
+	int[] match(Collision collision, boolean after) {
+		int n = collision.fish.length, nbSlices = trajectories.getNbSlices();
+		int before = after ? collision.start-1 : collision.end, beyond = after ? collision.end : collision.start-1, step = after ? 1 : -1;
+		if (n > MAX_COLLIDING || before < 0 || before >= nbSlices || beyond < 0 || beyond >= nbSlices)
+			return null;
+
+		// entering zf: position and velocity per slice coming into the collision. leaving ones: same going away from it.
+		double[][] in = new double[n][], out = new double[n][];
+		for (int i = 0; i < n; i++) {
+			in[i] = motion(collision.fish[i], before, step, true);
+			out[i] = motion(collision.fish[i], beyond, step, false);
+		}
+		int gap = Math.min(Math.abs(beyond-before), maxExtrapolation);
+		double[][] cost = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			double predictedX = in[i][0] + in[i][2]*gap, predictedY = in[i][1] + in[i][3]*gap;
+			for (int j = 0; j < n; j++) {
+				double dx = out[j][0]-predictedX, dy = out[j][1]-predictedY;
+				cost[i][j] = Math.sqrt(dx*dx+dy*dy) + turn(in[i], out[j])*params.collisionHandlerRadius/Math.PI;
+			}
+		}
+
+		int[] permutation = identity(n), best = null;
+		double bestCost = Double.MAX_VALUE, secondCost = Double.MAX_VALUE;
+		do {
+			double total = 0;
+			for (int i = 0; i < n; i++)
+				total += cost[i][permutation[i]];
+			if (total < bestCost) {
+				secondCost = bestCost;
+				bestCost = total;
+				best = permutation.clone();
+			} else if (total < secondCost)
+				secondCost = total;
+		} while (nextPermutation(permutation));
+		collision.confidence = secondCost > 0 ? (secondCost-bestCost)/secondCost : 0;
+		return collision.confidence >= minConfidence ? best : null;
+	}
+
+	/* x, y of a zf on a slice and its mean velocity per slice in the direction away from the start slice,
+	 * over the history slices before the slice when entering the collision, or after it when leaving it.
+	 * Slices in a collision are not part of the history.
+	 */
+	double[] motion(int fish, int slice, int step, boolean entering) {
+		int side = entering ? -step : step, last = slice;
+		for (int k = 1; k <= history; k++) {
+			int s = slice + side*k;
+			if (s < 0 || s >= trajectories.getNbSlices() || trajectories.getCollision(fish, s) == 1)
+				break;
+			last = s;
+		}
+		int steps = Math.abs(last-slice);
+		double vx = 0, vy = 0;
+		if (steps > 0) {
+			int from = entering ? last : slice, to = entering ? slice : last;
+			vx = (trajectories.getX(fish, to)-trajectories.getX(fish, from))/(double) steps;
+			vy = (trajectories.getY(fish, to)-trajectories.getY(fish, from))/(double) steps;
+		}
+		return new double[] {trajectories.getX(fish, slice), trajectories.getY(fish, slice), vx, vy};
+	}
+
+	// angle between two headings, 0 when either zf barely moves
+	static double turn(double[] a, double[] b) {
+		double na = Math.hypot(a[2], a[3]), nb = Math.hypot(b[2], b[3]);
+		if (na < 0.5 || nb < 0.5)
+			return 0;
+		double cos = (a[2]*b[2]+a[3]*b[3])/(na*nb);
+		return Math.acos(Math.max(-1, Math.min(1, cos)));
+	}
+
+	/* Gives the trajectory leaving the collision as matching[i] to fish[i], on all slices beyond the collision,
+	 * and draws the positions during the collision as a line from where each zf entered to where it left.
+	 */
+	void apply(Collision collision, int[] matching, boolean after, int[] renumbering) {
+		int n = collision.fish.length, nbSlices = trajectories.getNbSlices();
+		int from = after ? collision.end : 0, to = after ? nbSlices : collision.start;
+		int[] x = new int[n], y = new int[n], c = new int[n];
+		boolean swapped = false;
+		for (int i = 0; i < n; i++)
+			swapped |= matching[i] != i;
+		if (swapped) {
+			for (int s = from; s < to; s++) {
+				for (int j = 0; j < n; j++) {
+					x[j] = trajectories.getX(collision.fish[j], s);
+					y[j] = trajectories.getY(collision.fish[j], s);
+					c[j] = trajectories.getCollision(collision.fish[j], s);
+				}
+				for (int i = 0; i < n; i++) {
+					trajectories.setPosition(collision.fish[i], s, x[matching[i]], y[matching[i]]);
+					trajectories.setCollision(collision.fish[i], s, c[matching[i]]);
+				}
+			}
+			if (identities != null)
+				identities.permute(from, to, collision.fish, matching);
+			// the data which was at fish[matching[i]] beyond the collision is now at fish[i]
+			int[] moved = renumbering.clone();
+			for (int f = 0; f < renumbering.length; f++) {
+				for (int i = 0; i < n; i++) {
+					if (renumbering[f] == collision.fish[matching[i]])
+						moved[f] = collision.fish[i];
+				}
+			}
+			System.arraycopy(moved, 0, renumbering, 0, moved.length);
+		}
+
+		int first = collision.start-1, last = collision.end;
+		if (first < 0 || last >= nbSlices)
+			return;
+		for (int fish:collision.fish) {
+			for (int s = collision.start; s < collision.end; s++) {
+				int k = s-first, duration = last-first;
+				trajectories.setPosition(fish, s, (trajectories.getX(fish, first)*(duration-k) + trajectories.getX(fish, last)*k)/duration,
+						(trajectories.getY(fish, first)*(duration-k) + trajectories.getY(fish, last)*k)/duration);
+			}
+		}
+	}
+
+	static int[] identity(int n) {
+		int[] identity = new int[n];
+		for (int i = 0; i < n; i++)
+			identity[i] = i;
+		return identity;
+	}
+
+	// next permutation in lexicographic order, false once the last one was reached
+	static boolean nextPermutation(int[] p) {
+		int i = p.length-2;
+		while (i >= 0 && p[i] >= p[i+1])
+			i--;
+		if (i < 0)
+			return false;
+		int j = p.length-1;
+		while (p[j] <= p[i])
+			j--;
+		int swap = p[i]; p[i] = p[j]; p[j] = swap;
+		for (int a = i+1, b = p.length-1; a < b; a++, b--) {
+			swap = p[a]; p[a] = p[b]; p[b] = swap;
+		}
+		return true;
+	}
+
+	static int find(int[] parent, int i) {
+		while (parent[i] != i)
+			i = parent[i] = parent[parent[i]];
+		return i;
+	}
+
+	static void union(int[] parent, int a, int b) {
+		parent[find(parent, a)] = find(parent, b);
+	}
+}
@@ -0,0 +1,205 @@
+package com.mycompany.imagej;
+
+import ij.process.ImageProcessor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/* A background learnt along a pass, in place of the object threshold and the particle analysis of each frame.
+ * Each frame goes through a few passes over its pixels, in its pass' order:
+ * 1. the exposure of each tile of TILE_SIZE pixels is its mean difference to the background, over the pixels which were background on the frame before,
+ *    taken again over those within the foreground contrast of the first mean so that a few wrong background pixels don't shift it.
+ *    This follows uneven lighting changes and flicker, tile by tile.
+ * 2. a pixel is foreground when it is darker than the background, corrected by its tile's exposure, by more than the foreground contrast.
+ * 3. the large objects are the foreground pixels covered by a fully foreground square of side sqrt(minimal area), i.e an opening of the foreground
+ *    by this square, computed from 2 integral images. Zebrafish, however many, are too thin to hold such a square unless piled up.
+ * 4. the background pixels move towards the exposure-corrected frame by the background rate, a running average kept at the exposure of the first frame.
+ *    Foreground pixels are left out, so that an object staying still stays excluded, as with a threshold.
+ * The tracking reads the exposure at the collisions, so that the zf threshold follows the local light.
+ */
+public class BackgroundModel {
+	static final int TILE_SIZE = 32;
+	int width, height, tilesX, tilesY, side;
+	double rate, contrast;
+	float[] background, frame;
+	float[] exposures; // by tile
+	boolean[] foreground;
+	int[] integral, corners; // (width+1)*(height+1) sums of the foreground and of the fully foreground squares' corners
+	double[] sums;
+	int[] counts;
+
+	public BackgroundModel(ImageProcessor first, TrackingParameters params) {
+		width = first.getWidth();
+		height = first.getHeight();
+		tilesX = (width + TILE_SIZE-1)/TILE_SIZE;
+		tilesY = (height + TILE_SIZE-1)/TILE_SIZE;
+		background = new float[width*height];
+		frame = new float[width*height];
+		exposures = new float[tilesX*tilesY];
+		foreground = new boolean[width*height];
+		integral = new int[(width+1)*(height+1)];
+		corners = new int[(width+1)*(height+1)];
+		sums = new double[tilesX*tilesY];
+		counts = new int[tilesX*tilesY];
+		setParameters(params);
+		load(first, background);
+	}
+
+	// the rate, contrast and minimal area may change along a pass, e.g when re-tracking
+	void setParameters(TrackingParameters params) {
+		rate = params.backgroundRate;
+		contrast = params.foregroundContrast;
+		side = Math.max(1, (int) Math.ceil(Math.sqrt(params.maximal_area)));
+	}
+
+	// learns the next frame of the pass, and fills objects with its large objects
+	void update(ImageProcessor ip, ExclusionMask objects) {
+		load(ip, frame);
+		int w = width;
+
+		// 1. tile exposures, then again without the pixels too far from them, e.g where a zf left the background it was learnt in
+		tileMeans(Float.POSITIVE_INFINITY);
+		tileMeans((float) contrast);
+
+		// 2. foreground, and 4. the background moving towards the frame
+		float darkness = (float) contrast, weight = (float) rate;
+		for (int y = 0; y < height; y++) {
+			int rowTile = (y/TILE_SIZE)*tilesX, offset = y*w;
+			for (int tx = 0; tx < tilesX; tx++) {
+				float exposure = exposures[rowTile+tx];
+				int xEnd = offset + Math.min(w, (tx+1)*TILE_SIZE);
+				for (int i = offset + tx*TILE_SIZE; i < xEnd; i++) {
+					float corrected = frame[i] - exposure;
+					boolean isForeground = background[i] - corrected > darkness;
+					foreground[i] = isForeground;
+					if (!isForeground)
+						background[i] += weight*(corrected - background[i]);
+				}
+			}
+		}
+
+		// 3. the fully foreground squares, then the pixels they cover
+		objects.clear();
+		int k = side, stride = w+1, full = k*k;
+		if (k > w || k > height)
+			return;
+		for (int y = 0; y < height; y++) {
+			int rowSum = 0, offset = y*w, row = (y+1)*stride;
+			for (int x = 0; x < w; x++) {
+				rowSum += foreground[offset+x] ? 1 : 0;
+				integral[row+x+1] = integral[row-stride+x+1] + rowSum;
+			}
+		}
+		// corners[(y+1)*stride + x+1] sums the squares whose top left corner is at most (x, y)
+		for (int y = 0; y < height; y++) {
+			int rowSum = 0, row = (y+1)*stride;
+			for (int x = 0; x < w; x++) {
+				if (x+k <= w && y+k <= height) {
+					int bottom = (y+k)*stride, top = y*stride;
+					rowSum += integral[bottom+x+k] - integral[bottom+x] - integral[top+x+k] + integral[top+x] == full ? 1 : 0;
+				}
+				corners[row+x+1] = corners[row-stride+x+1] + rowSum;
+			}
+		}
+		boolean[] mask = objects.mask;
+		for (int y = 0; y < height; y++) {
+			int offset = y*w, bottom = (y+1)*stride, top = Math.max(0, y+1-k)*stride;
+			for (int x = 0; x < w; x++) {
+				int left = Math.max(0, x+1-k);
+				mask[offset+x] = corners[bottom+x+1] - corners[bottom+left] - corners[top+x+1] + corners[top+left] > 0;
+			}
+		}
+	}
+
+	// the mean difference of each tile to the background, over the pixels which were background and within maxDeviation of the tile's exposure
+	void tileMeans(float maxDeviation) {
+		Arrays.fill(sums, 0);
+		Arrays.fill(counts, 0);
+		int w = width;
+		for (int y = 0; y < height; y++) {
+			int rowTile = (y/TILE_SIZE)*tilesX, offset = y*w;
+			for (int tx = 0; tx < tilesX; tx++) {
+				float exposure = exposures[rowTile+tx];
+				int xEnd = offset + Math.min(w, (tx+1)*TILE_SIZE);
+				double sum = 0;
+				int count = 0;
+				for (int i = offset + tx*TILE_SIZE; i < xEnd; i++) {
+					float difference = frame[i] - background[i];
+					if (!foreground[i] && Math.abs(difference - exposure) <= maxDeviation) {
+						sum += difference;
+						count++;
+					}
+				}
+				sums[rowTile+tx] += sum;
+				counts[rowTile+tx] += count;
+			}
+		}
+		// a tile fully covered keeps its exposure
+		for (int t = 0; t < exposures.length; t++) {
+			if (counts[t] > 0)
+				exposures[t] = (float) (sums[t]/counts[t]);
+		}
+	}
+
+	// e.g to bring a background learnt from another slice to the exposure of the first one
+	void shift(double offset) {
+		float value = (float) offset;
+		for (int i = 0; i < background.length; i++)
+			background[i] += value;
+	}
+
+	// how much brighter than the background the last frame is around (x, y)
+	double exposure(int x, int y) {
+		x = Math.max(0, Math.min(width-1, x));
+		y = Math.max(0, Math.min(height-1, y));
+		return exposures[(y/TILE_SIZE)*tilesX + x/TILE_SIZE];
+	}
+
+	// 8-bit, 16-bit and float frames are read straight from their pixel arrays, others through getf()
+	static void load(ImageProcessor ip, float[] values) {
+		Object pixels = ip.getPixels();
+		int n = values.length;
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[]) pixels;
+			for (int i = 0; i < n; i++)
+				values[i] = bytes[i]&0xff;
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[]) pixels;
+			for (int i = 0; i < n; i++)
+				values[i] = shorts[i]&0xffff;
+		} else if (pixels instanceof float[])
+			System.arraycopy(pixels, 0, values, 0, n);
+		else {
+			for (int i = 0; i < n; i++)
+				values[i] = ip.getf(i);
+		}
+	}
+
+	// what a Checkpoint needs to resume the pass with the same background
+	void write(DataOutputStream out) throws IOException {
+		for (float value:background)
+			out.writeFloat(value);
+		for (float exposure:exposures)
+			out.writeFloat(exposure);
+		for (int i = 0; i < foreground.length; i += 8) {
+			int bits = 0;
+			for (int b = 0; b < 8 && i+b < foreground.length; b++)
+				bits |= foreground[i+b] ? 1 << b : 0;
+			out.writeByte(bits);
+		}
+	}
+
+	void read(DataInputStream in) throws IOException {
+		for (int i = 0; i < background.length; i++)
+			background[i] = in.readFloat();
+		for (int t = 0; t < exposures.length; t++)
+			exposures[t] = in.readFloat();
+		for (int i = 0; i < foreground.length; i += 8) {
+			int bits = in.readUnsignedByte();
+			for (int b = 0; b < 8 && i+b < foreground.length; b++)
+				foreground[i+b] = (bits & 1 << b) != 0;
+		}
+	}
+}
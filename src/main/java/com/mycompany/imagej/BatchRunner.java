@@ -0,0 +1,427 @@
+package com.mycompany.imagej;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.awt.Point;
+
+/* Tracks many videos without any dialog, several at a time on a bounded pool of workers.
+ * Each job is a video, its seeds and optionally its own parameters. Jobs are listed by a manifest or found in a directory:
+ * - a manifest has one job per line: video, seed file and optionally a parameter file, separated by commas or tabs. Paths are relative to the manifest.
+ * - in a directory, each video (.tif, .tiff, .avi) with a seed file named after it (video.seeds.csv) is a job, with video.properties as parameters if there is one.
+ * A seed file has one seed per line as slice,x,y, all on the same slice. A header line is skipped.
+ * With automatic seeds, videos without a seed file are seeded by a SeedDetector instead of failing.
+ * A parameter file is a properties file holding some of the TrackingParameters fields, the others being the batch defaults.
+ * The trajectories of each job are streamed to its own trajectory file then exported to CSV in the output directory, so memory doesn't grow with the videos.
+ * Its bouts and its summary per zf are computed on the way by BehaviourAnalytics and written next to it.
+ * Each job is given an equal share of the memory budget, which bounds how many frames it preprocesses ahead.
+ * Jobs run longest first, and a failed job is reported without stopping the others. A report of all jobs is written at the end.
+ */
+public class BatchRunner {
+	static final String[] VIDEO_EXTENSIONS = {".tif", ".tiff", ".avi"};
+	static final String SEEDS_SUFFIX = ".seeds.csv", PARAMETERS_SUFFIX = ".properties", REPORT = "batch_report.csv";
+	TrackingParameters defaults = new TrackingParameters();
+	File outputDirectory;
+	int nbWorkers, threadsPerJob, autoSeeds = -1, seedStride = 0, checkpointInterval = 1000;
+	long memoryBudget, jobMemory;
+	boolean compressExports, measureTracking;
+	AtomicInteger nbDone = new AtomicInteger();
+	int nbJobs;
+
+	// one video to track
+	public static class Job {
+		File video, seeds, parameters;
+		String name;
+		// filled in once ran
+		boolean failed;
+		String message = "";
+		double seconds;
+		int nbFrames;
+
+		Job(File video, File seeds, File parameters) {
+			this.video = video;
+			this.seeds = seeds;
+			this.parameters = parameters;
+			name = video.getName().replaceFirst("\\.[^.]*$", "");
+		}
+	}
+
+	// nbWorkers videos are tracked at a time, and together they keep at most memoryBudget bytes of frames
+	public BatchRunner(File outputDirectory, int nbWorkers, long memoryBudget) {
+		this.outputDirectory = outputDirectory;
+		this.nbWorkers = Math.max(1, nbWorkers);
+		this.memoryBudget = memoryBudget;
+		jobMemory = memoryBudget/this.nbWorkers;
+		// each job already runs both passes on their own threads, the remaining cores preprocess frames
+		threadsPerJob = Math.max(0, Runtime.getRuntime().availableProcessors()/this.nbWorkers - 2);
+	}
+
+	public void setDefaults(TrackingParameters defaults) {
+		this.defaults = defaults;
+	}
+
+	public void setExports(boolean compressExports, boolean measureTracking) {
+		this.compressExports = compressExports;
+		this.measureTracking = measureTracking;
+	}
+
+	/* Seeds the videos which have no seed file: expected > 0 looks for the slice where this many zf are best found,
+	 * 0 takes all those found on the first slice, and -1 (the default) lets such videos fail.
+	 */
+	public void setAutoSeeds(int expected) {
+		autoSeeds = expected;
+	}
+
+	// the start slice is looked for on every stride-th slice, 0 for the SeedDetector's default of one slice a second
+	public void setSeedStride(int stride) {
+		seedStride = stride;
+	}
+
+	/* Each job snapshots its tracking every interval slices of each pass next to its trajectory file, so that running the batch again
+	 * after an interruption resumes the jobs where they stopped. 0 doesn't checkpoint.
+	 */
+	public void setCheckpointInterval(int interval) {
+		checkpointInterval = interval;
+	}
+
+	// progress and failures, printed by default
+	void log(String message) {
+		System.out.println(message);
+	}
+
+	// the jobs of a manifest file or of a directory of videos
+	public static List<Job> findJobs(File input) throws IOException {
+		return input.isDirectory() ? scanDirectory(input) : readManifest(input);
+	}
+
+	static List<Job> readManifest(File manifest) throws IOException {
+		List<Job> jobs = new ArrayList<Job>();
+		File directory = manifest.getAbsoluteFile().getParentFile();
+		BufferedReader reader = new BufferedReader(new FileReader(manifest));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s*[,\\t]\\s*");
+				if (fields.length < 2)
+					throw new IOException("Expected video, seeds[, parameters] in "+manifest+": "+line);
+				jobs.add(new Job(resolve(directory, fields[0]), resolve(directory, fields[1]), fields.length > 2 ? resolve(directory, fields[2]) : null));
+			}
+		} finally {
+			reader.close();
+		}
+		return jobs;
+	}
+
+	// videos without a seed file are still listed, so that they are reported as failed
+	static List<Job> scanDirectory(File directory) {
+		List<Job> jobs = new ArrayList<Job>();
+		File[] files = directory.listFiles();
+		if (files == null)
+			return jobs;
+		for (File file:files) {
+			String lowerCase = file.getName().toLowerCase();
+			for (String extension:VIDEO_EXTENSIONS) {
+				if (file.isFile() && lowerCase.endsWith(extension)) {
+					String base = file.getName().substring(0, file.getName().length()-extension.length());
+					File parameters = new File(directory, base+PARAMETERS_SUFFIX);
+					jobs.add(new Job(file, new File(directory, base+SEEDS_SUFFIX), parameters.isFile() ? parameters : null));
+					break;
+				}
+			}
+		}
+		return jobs;
+	}
+
+	static File resolve(File directory, String path) {
+		File file = new File(path);
+		return file.isAbsolute() ? file : new File(directory, path);
+	}
+
+	// runs all jobs and writes the report, returns the number of failed jobs
+	public int run(List<Job> jobs) throws IOException, InterruptedException {
+		outputDirectory.mkdirs();
+		nbJobs = jobs.size();
+		nbDone.set(0);
+		List<Job> ordered = new ArrayList<Job>(jobs);
+		Collections.sort(ordered, new Comparator<Job>() {
+			@Override
+			public int compare(Job a, Job b) {
+				return Long.compare(b.video.length(), a.video.length());
+			}
+		});
+		log("ZF Tracking batch: "+nbJobs+" videos, "+nbWorkers+" at a time, "+(jobMemory >> 20)+" MB each");
+
+		ExecutorService workers = Executors.newFixedThreadPool(nbWorkers, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ZF batch worker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			for (final Job job:ordered) {
+				futures.add(workers.submit(new Runnable() {
+					@Override
+					public void run() {
+						runJob(job);
+					}
+				}));
+			}
+			for (Future<?> future:futures)
+				future.get();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			workers.shutdownNow();
+		}
+
+		int nbFailed = 0;
+		for (Job job:jobs)
+			nbFailed += job.failed ? 1 : 0;
+		writeReport(jobs);
+		log("ZF Tracking batch: "+(nbJobs-nbFailed)+" done, "+nbFailed+" failed, see "+new File(outputDirectory, REPORT));
+		return nbFailed;
+	}
+
+	void runJob(Job job) {
+		long start = System.nanoTime();
+		try {
+			track(job);
+		} catch (Exception e) {
+			job.failed = true;
+			job.message = e.getMessage() != null ? e.getMessage() : e.toString();
+		} catch (OutOfMemoryError e) {
+			job.failed = true;
+			job.message = "out of memory, give the batch a larger budget or fewer workers";
+		}
+		job.seconds = (System.nanoTime()-start)/1e9;
+		int done = nbDone.incrementAndGet();
+		if (job.failed)
+			log("["+done+"/"+nbJobs+"] "+job.name+" failed: "+job.message);
+		else
+			log(String.format("[%d/%d] %s: %d slices in %.1f s", done, nbJobs, job.name, job.nbFrames, job.seconds));
+	}
+
+	void track(Job job) throws IOException {
+		if (!job.seeds.isFile() && autoSeeds < 0)
+			throw new IOException("no seed file "+job.seeds.getName());
+		TrackingParameters params = defaults.copy();
+		if (job.parameters != null)
+			params.load(readProperties(job.parameters));
+
+		FrameSource source = openVideo(job.video);
+		try {
+			int[] startSlice = new int[1];
+			Point[] seeds;
+			if (job.seeds.isFile())
+				seeds = readSeeds(job.seeds, startSlice);
+			else {
+				SeedDetector detector = new SeedDetector(params);
+				if (seedStride > 0)
+					detector.setStride(seedStride);
+				SeedDetector.Result result = autoSeeds > 0 ? detector.findStart(source, autoSeeds) : detector.detect(source, 1);
+				if (result == null || result.seeds.length == 0)
+					throw new IOException("no zebrafish found, and no seed file "+job.seeds.getName());
+				startSlice[0] = result.startSlice;
+				seeds = result.seeds;
+			}
+			if (startSlice[0] < 1 || startSlice[0] > source.getSize())
+				throw new IOException("the seeds are on slice "+startSlice[0]+" but the video has "+source.getSize());
+			TrackingEngine engine = new TrackingEngine(params, source);
+			engine.setSeeds(startSlice[0], seeds);
+			engine.setPreprocessing(threadsPerJob, lookahead(source, threadsPerJob));
+			engine.setMeasuring(measureTracking);
+
+			File trajectoryFile = new File(outputDirectory, job.name+"_tracking.zftr"), checkpoint = new File(outputDirectory, job.name+"_tracking.checkpoint");
+			if (checkpointInterval > 0)
+				engine.setCheckpoint(checkpoint, checkpointInterval);
+			// the rows already tracked are kept for resuming
+			TrajectoryFile file = new TrajectoryFile(trajectoryFile, seeds.length, source.getSize(), checkpointInterval > 0 && checkpoint.isFile());
+			String gz = compressExports ? ".gz" : "";
+			BehaviourAnalytics analytics = new BehaviourAnalytics(file, seeds.length, source.getSize(), startSlice[0], params.frameRate);
+			analytics.setBouts(params.boutSpeed, params.minBoutSteps);
+			try {
+				analytics.setBoutFile(new File(outputDirectory, job.name+"_bouts.csv"+gz), compressExports);
+				engine.track(analytics);
+			} finally {
+				try {
+					analytics.close();
+				} finally {
+					file.close();
+				}
+			}
+			analytics.writeSummary(new File(outputDirectory, job.name+"_summary.csv"+gz), compressExports);
+			if (engine.isResumed())
+				job.message = "resumed from a checkpoint";
+			job.nbFrames = source.getSize();
+
+			TrajectoryFile.Reader reader = new TrajectoryFile.Reader(trajectoryFile);
+			try {
+				ResultsExporter.writeCsv(reader, params.frameRate, new File(outputDirectory, job.name+"_tracking.csv"+gz), compressExports);
+			} finally {
+				reader.close();
+			}
+			if (measureTracking)
+				engine.getMetrics().writeJson(new File(outputDirectory, job.name+"_metrics.json"));
+		} finally {
+			if (source instanceof Closeable)
+				((Closeable) source).close();
+		}
+	}
+
+	/* The most frames each pass may preprocess ahead within the job's share of memory.
+	 * Each pass holds its lookahead frames and the one it tracks, each with its pixels and its exclusion mask.
+	 */
+	int lookahead(FrameSource source, int nbThreads) throws IOException {
+		long pixels = (long) source.getWidth()*source.getHeight();
+		long frameMemory = pixels*(source.getProcessor(1).getBitDepth()/8) + pixels;
+		long fitting = jobMemory/(2*frameMemory) - 1;
+		if (fitting < 1)
+			throw new IOException("a frame needs "+(4*frameMemory >> 20)+" MB to be tracked, more than the "+(jobMemory >> 20)+" MB of a job");
+		return (int) Math.min(fitting, Math.max(1, 2*nbThreads));
+	}
+
+	// uncompressed TIFFs are read frame by frame from disk, other videos through a virtual stack
+	static FrameSource openVideo(File video) throws IOException {
+		String lowerCase = video.getName().toLowerCase();
+		if (lowerCase.endsWith(".tif") || lowerCase.endsWith(".tiff")) {
+			try {
+				return RawFrameSource.openTiff(video);
+			} catch (IOException e) {
+				// e.g compressed, left to ImageJ
+			}
+		}
+		ImagePlus image = IJ.openVirtual(video.getPath());
+		if (image == null)
+			throw new IOException("cannot open "+video.getName());
+		return new StackFrameSource(image.getStack());
+	}
+
+	static Properties readProperties(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+
+	// seeds as slice,x,y lines, all on the same slice which is given back in startSlice[0]
+	static Point[] readSeeds(File file, int[] startSlice) throws IOException {
+		List<Point> seeds = new ArrayList<Point>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s*[,;\\t]\\s*");
+				int slice, x, y;
+				try {
+					slice = (int) Double.parseDouble(fields[0]);
+					x = (int) Double.parseDouble(fields[1]);
+					y = (int) Double.parseDouble(fields[2]);
+				} catch (RuntimeException e) {
+					if (lineNumber == 1)
+						continue; // header
+					throw new IOException(file.getName()+", line "+lineNumber+": expected slice,x,y");
+				}
+				if (seeds.isEmpty())
+					startSlice[0] = slice;
+				else if (slice != startSlice[0])
+					throw new IOException(file.getName()+": all seeds must be on the same slice");
+				seeds.add(new Point(x, y));
+			}
+		} finally {
+			reader.close();
+		}
+		if (seeds.isEmpty())
+			throw new IOException(file.getName()+" holds no seed");
+		return seeds.toArray(new Point[seeds.size()]);
+	}
+
+	void writeReport(List<Job> jobs) throws IOException {
+		PrintWriter report = new PrintWriter(new File(outputDirectory, REPORT), "US-ASCII");
+		try {
+			report.println("Video,Status,Slices,Seconds,Message");
+			for (Job job:jobs)
+				report.println(job.video.getName()+","+(job.failed ? "failed" : "done")+","+job.nbFrames+","
+						+String.format(Locale.ROOT, "%.3f", job.seconds)+",\""+job.message.replace("\"", "\"\"")+"\"");
+		} finally {
+			report.close();
+		}
+	}
+
+	/* Headless entry point:
+	 * BatchRunner <video directory or manifest> <output directory> [-workers n] [-memory MB] [-parameters file] [-autoseeds n] [-seedstride slices] [-checkpoint slices] [-gzip] [-metrics]
+	 * Exits with 1 if any job failed.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: BatchRunner <video directory or manifest> <output directory> [-workers n] [-memory MB] [-parameters file] [-autoseeds n] [-seedstride slices] [-checkpoint slices] [-gzip] [-metrics]");
+			System.exit(2);
+		}
+		int nbWorkers = Math.max(1, Runtime.getRuntime().availableProcessors()/2);
+		long memory = Runtime.getRuntime().maxMemory()/2;
+		TrackingParameters defaults = new TrackingParameters();
+		int autoSeeds = -1, seedStride = 0, checkpointInterval = 1000;
+		boolean gzip = false, metrics = false;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("-workers"))
+				nbWorkers = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-memory"))
+				memory = Long.parseLong(args[++i]) << 20;
+			else if (args[i].equals("-parameters"))
+				defaults.load(readProperties(new File(args[++i])));
+			else if (args[i].equals("-autoseeds"))
+				autoSeeds = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-seedstride"))
+				seedStride = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-checkpoint"))
+				checkpointInterval = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-gzip"))
+				gzip = true;
+			else if (args[i].equals("-metrics"))
+				metrics = true;
+			else
+				throw new IllegalArgumentException("Unknown option "+args[i]);
+		}
+		BatchRunner runner = new BatchRunner(new File(args[1]), nbWorkers, memory);
+		runner.setDefaults(defaults);
+		runner.setExports(gzip, metrics);
+		runner.setAutoSeeds(autoSeeds);
+		runner.setSeedStride(seedStride);
+		runner.setCheckpointInterval(checkpointInterval);
+		System.exit(runner.run(findJobs(new File(args[0]))) > 0 ? 1 : 0);
+	}
+}
@@ -0,0 +1,362 @@
+package com.mycompany.imagej;
+
+import ij.measure.ResultsTable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/* The kinematics and swimming bouts of each zf, computed while the rows are committed instead of from the whole trajectories afterwards.
+ * The rows are walked away from the start slice, forwards and backwards as the passes commit them. Each walk only keeps its last row
+ * and a few running sums per zf: distance, mean and variance of the speed (Welford's), acceleration and bouts, so memory doesn't grow with the video.
+ * A step between two slices is left out if the zf is in a collision on either, its position being then the collision's rather than its own.
+ * A bout is a run of steps at boutSpeed or faster, at least minBoutSteps long. Bouts are written out as soon as they end, the summary once all rows went through,
+ * after merging both walks (Chan et al's way for the variance).
+ * Everything is passed on to the target sink, if any, e.g the trajectory file.
+ */
+public class BehaviourAnalytics implements TrajectorySink, Closeable {
+	static final String[] COLUMNS = {"Zebrafish", "Time tracked (s)", "Slices in collision", "Distance (pixels)", "Mean speed (pixels/s)", "Speed SD (pixels/s)",
+			"Max speed (pixels/s)", "Mean acceleration (pixels/s2)", "Max acceleration (pixels/s2)", "Bouts", "Time in bouts (s)"};
+	static final boolean[] COUNTS = {true, false, true, false, false, false, false, false, false, true, false}; // written without decimals
+	static final String BOUT_HEADER = "Zebrafish,Start slice,End slice,Duration (s),Distance (pixels),Mean speed (pixels/s),Peak speed (pixels/s)\n";
+	TrajectorySink target;
+	int nbFish, nbSlices, startIndex, frameRate;
+	double boutSpeed; // pixels/s
+	int minBoutSteps = 3;
+	Writer bouts;
+	HashMap<Integer, int[]> pendingRows = new HashMap<Integer, int[]>(), committedRows = new HashMap<Integer, int[]>();
+	ArrayDeque<int[]> freeRows = new ArrayDeque<int[]>();
+	Walk forward, backward;
+	boolean finished;
+	StringBuilder line = new StringBuilder(128);
+
+	// by default a bout is at least 3 slices at 2 pixels per slice or faster
+	public BehaviourAnalytics(TrajectorySink target, int nbFish, int nbSlices, int startSlice, int frameRate) {
+		this.target = target;
+		this.nbFish = nbFish;
+		this.nbSlices = nbSlices;
+		this.frameRate = frameRate;
+		startIndex = startSlice-1;
+		boutSpeed = TrajectoryStore.speed(2, frameRate);
+		forward = new Walk(1);
+		backward = new Walk(-1);
+	}
+
+	// at least minSteps steps at minSpeed pixels per slice or faster
+	public void setBouts(double minSpeed, int minSteps) {
+		boutSpeed = TrajectoryStore.speed(minSpeed, frameRate);
+		minBoutSteps = Math.max(1, minSteps);
+	}
+
+	// the bouts are written to this CSV as they end, then it is closed along with the analytics
+	public void setBoutWriter(Writer bouts) {
+		this.bouts = bouts;
+	}
+
+	public void setBoutFile(File file, boolean gzip) throws IOException {
+		setBoutWriter(ResultsExporter.csvWriter(file, gzip, BOUT_HEADER));
+	}
+
+	// the analytics of trajectories already in memory, e.g once they were stitched. Its bouts go to the bout writer, if any.
+	public static BehaviourAnalytics analyze(TrajectoryStore trajectories, TrackingParameters params, Writer bouts) throws IOException {
+		int nbFish = trajectories.getNbFish();
+		BehaviourAnalytics analytics = new BehaviourAnalytics(null, nbFish, trajectories.getNbSlices(), 1, params.frameRate);
+		analytics.setBouts(params.boutSpeed, params.minBoutSteps);
+		analytics.setBoutWriter(bouts);
+		try {
+			for (int index = 0; index < trajectories.getNbSlices(); index++) {
+				for (int fish = 0; fish < nbFish; fish++) {
+					analytics.setPosition(fish, index, trajectories.getX(fish, index), trajectories.getY(fish, index));
+					analytics.setCollision(fish, index, trajectories.getCollision(fish, index));
+				}
+				analytics.commit(index);
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			analytics.close();
+		}
+		return analytics;
+	}
+
+	@Override
+	public synchronized void setPosition(int fish, int index, int x, int y) {
+		if (target != null)
+			target.setPosition(fish, index, x, y);
+		int[] row = row(index);
+		row[3*fish] = x;
+		row[3*fish+1] = y;
+	}
+
+	@Override
+	public synchronized void setCollision(int fish, int index, int collision) {
+		if (target != null)
+			target.setCollision(fish, index, collision);
+		row(index)[3*fish+2] = collision;
+	}
+
+	@Override
+	public synchronized void commit(int index) {
+		if (target != null)
+			target.commit(index);
+		// without a backward pass, nothing but the seeds is ever written on the start slice, which isn't committed
+		if (startIndex == 0 && index != 0 && pendingRows.containsKey(0))
+			committedRows.put(0, pendingRows.remove(0));
+		int[] row = pendingRows.remove(index);
+		if (row != null && !finished) {
+			committedRows.put(index, row);
+			advance();
+		}
+	}
+
+	// walks the rows no pass committed, e.g the first one, ends the bouts and merges both walks. Also closes the bout writer.
+	@Override
+	public synchronized void close() throws IOException {
+		if (finished)
+			return;
+		committedRows.putAll(pendingRows);
+		pendingRows.clear();
+		advance();
+		finished = true;
+		try {
+			for (int fish = 0; fish < nbFish; fish++) {
+				Kinematics after = forward.fish[fish], before = backward.fish[fish];
+				after.endBout();
+				before.endBout();
+				// the bouts and the acceleration on both sides of the start slice
+				if (after.held != null && before.held != null) {
+					after.held.merge(before.held);
+					before.held = null;
+				}
+				after.emit(after.held);
+				before.emit(before.held);
+				if (!Double.isNaN(after.firstSpeed) && !Double.isNaN(before.firstSpeed))
+					after.accelerate(Math.abs(after.firstSpeed-before.firstSpeed)*frameRate);
+			}
+			if (bouts != null)
+				bouts.close();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		committedRows.clear();
+		freeRows.clear();
+	}
+
+	// one row per zf, from all slices walked so far
+	public ResultsTable summary() {
+		ResultsTable rt = new ResultsTable();
+		for (int fish = 0; fish < nbFish; fish++) {
+			double[] values = summary(fish);
+			rt.addRow();
+			for (int c = 0; c < COLUMNS.length; c++)
+				rt.addValue(COLUMNS[c], values[c]);
+		}
+		return rt;
+	}
+
+	public void writeSummary(File file, boolean gzip) throws IOException {
+		StringBuilder header = new StringBuilder();
+		for (String column:COLUMNS)
+			header.append(header.length() > 0 ? "," : "").append(column);
+		Writer writer = ResultsExporter.csvWriter(file, gzip, header.append('\n').toString());
+		try {
+			for (int fish = 0; fish < nbFish; fish++) {
+				double[] values = summary(fish);
+				line.setLength(0);
+				for (int c = 0; c < values.length; c++) {
+					if (c > 0)
+						line.append(',');
+					if (COUNTS[c])
+						line.append((long) values[c]);
+					else
+						ResultsExporter.appendFixed(line, values[c]);
+				}
+				writer.append(line.append('\n'));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	// the summary columns of one zf, both walks merged
+	synchronized double[] summary(int fish) {
+		Kinematics a = forward.fish[fish], b = backward.fish[fish];
+		int steps = a.steps+b.steps, accelerations = a.nbAccelerations+b.nbAccelerations;
+		double delta = b.meanSpeed-a.meanSpeed;
+		double mean = steps > 0 ? a.meanSpeed + delta*b.steps/steps : 0;
+		double m2 = steps > 0 ? a.m2 + b.m2 + delta*delta*a.steps*b.steps/steps : 0;
+		return new double[] {fish+1, (double) steps/frameRate, a.collisions+b.collisions, a.distance+b.distance, mean, steps > 1 ? Math.sqrt(m2/(steps-1)) : 0,
+				Math.max(a.maxSpeed, b.maxSpeed), accelerations > 0 ? (a.accelerations+b.accelerations)/accelerations : 0,
+				Math.max(a.maxAcceleration, b.maxAcceleration), a.nbBouts+b.nbBouts, (double) (a.boutSteps+b.boutSteps)/frameRate};
+	}
+
+	// walks each direction as far as its rows are committed. The start row is the first of both walks.
+	void advance() {
+		for (Walk walk:new Walk[] {backward, forward}) {
+			while (walk.next >= 0 && walk.next < nbSlices) {
+				int[] row = committedRows.get(walk.next);
+				if (row == null)
+					break;
+				walk.walk(row);
+				if (walk.next != startIndex)
+					freeRows.push(committedRows.remove(walk.next));
+				walk.next += walk.step;
+			}
+		}
+		if (forward.next != startIndex && backward.next != startIndex && committedRows.containsKey(startIndex))
+			freeRows.push(committedRows.remove(startIndex));
+	}
+
+	int[] row(int index) {
+		int[] row = pendingRows.get(index);
+		if (row == null) {
+			row = freeRows.isEmpty() ? new int[3*nbFish] : freeRows.pop();
+			Arrays.fill(row, 0);
+			pendingRows.put(index, row);
+		}
+		return row;
+	}
+
+	// the rows of one direction, from the start slice on
+	class Walk {
+		int step, next;
+		int[] previous;
+		Kinematics[] fish;
+
+		Walk(int step) {
+			this.step = step;
+			next = startIndex;
+			fish = new Kinematics[nbFish];
+			for (int f = 0; f < nbFish; f++)
+				fish[f] = new Kinematics(f);
+		}
+
+		void walk(int[] row) {
+			if (previous == null) {
+				previous = row.clone();
+				// the start row is counted once, by the forward walk
+				if (step > 0) {
+					for (int f = 0; f < nbFish; f++)
+						fish[f].collisions += row[3*f+2] != 0 ? 1 : 0;
+				}
+				return;
+			}
+			for (int f = 0; f < nbFish; f++)
+				fish[f].step(previous, row, next-step, next);
+			System.arraycopy(row, 0, previous, 0, row.length);
+		}
+	}
+
+	// what one walk knows of one zf
+	class Kinematics {
+		int fish, steps, collisions, nbBouts, boutSteps, nbAccelerations;
+		double distance, meanSpeed, m2, maxSpeed, accelerations, maxAcceleration;
+		double lastSpeed = Double.NaN, firstSpeed = Double.NaN; // of the last step and of the one from the start slice, NaN when left out
+		Bout bout, held; // the bout going on, and the one from the start slice, held for merging with the other walk's
+
+		Kinematics(int fish) {
+			this.fish = fish;
+		}
+
+		void step(int[] from, int[] to, int fromIndex, int toIndex) {
+			int i = 3*fish;
+			collisions += to[i+2] != 0 ? 1 : 0;
+			if (from[i+2] != 0 || to[i+2] != 0) {
+				lastSpeed = Double.NaN;
+				endBout();
+				return;
+			}
+			int dx = to[i]-from[i], dy = to[i+1]-from[i+1];
+			double d = Math.sqrt(dx*dx+dy*dy), speed = TrajectoryStore.speed(d, frameRate);
+			steps++;
+			distance += d;
+			double delta = speed-meanSpeed;
+			meanSpeed += delta/steps;
+			m2 += delta*(speed-meanSpeed);
+			maxSpeed = Math.max(maxSpeed, speed);
+			if (fromIndex == startIndex)
+				firstSpeed = speed;
+			if (!Double.isNaN(lastSpeed))
+				accelerate(Math.abs(speed-lastSpeed)*frameRate);
+			lastSpeed = speed;
+
+			if (speed >= boutSpeed) {
+				if (bout == null)
+					bout = new Bout(fish, fromIndex);
+				bout.add(toIndex, d, speed);
+			} else
+				endBout();
+		}
+
+		void accelerate(double acceleration) {
+			accelerations += acceleration;
+			nbAccelerations++;
+			maxAcceleration = Math.max(maxAcceleration, acceleration);
+		}
+
+		void endBout() {
+			if (bout == null)
+				return;
+			if (bout.first == startIndex || bout.last == startIndex)
+				held = bout;
+			else
+				emit(bout);
+			bout = null;
+		}
+
+		void emit(Bout bout) {
+			if (bout == null || bout.steps < minBoutSteps)
+				return;
+			nbBouts++;
+			boutSteps += bout.steps;
+			if (bouts == null)
+				return;
+			line.setLength(0);
+			line.append(fish+1).append(',').append(bout.first+1).append(',').append(bout.last+1).append(',');
+			ResultsExporter.appendFixed(line, (double) bout.steps/frameRate);
+			line.append(',');
+			ResultsExporter.appendFixed(line, bout.distance);
+			line.append(',');
+			ResultsExporter.appendFixed(line, TrajectoryStore.speed(bout.distance/bout.steps, frameRate));
+			line.append(',');
+			ResultsExporter.appendFixed(line, bout.peakSpeed);
+			try {
+				bouts.append(line.append('\n'));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// a run of fast steps between the indices first and last
+	static class Bout {
+		int fish, first, last, steps;
+		double distance, peakSpeed;
+
+		Bout(int fish, int index) {
+			this.fish = fish;
+			first = last = index;
+		}
+
+		void add(int index, double d, double speed) {
+			first = Math.min(first, index);
+			last = Math.max(last, index);
+			steps++;
+			distance += d;
+			peakSpeed = Math.max(peakSpeed, speed);
+		}
+
+		void merge(Bout other) {
+			first = Math.min(first, other.first);
+			last = Math.max(last, other.last);
+			steps += other.steps;
+			distance += other.distance;
+			peakSpeed = Math.max(peakSpeed, other.peakSpeed);
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package com.mycompany.imagej;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.awt.Point;
+
+/* Periodic snapshots of a TrackingEngine run, from which a run that was interrupted resumes with the same trajectories.
+ * The committed rows of the trajectories are kept in a journal: the trajectory file tracked to if any, directly or through BehaviourAnalytics,
+ * else a trajectory file next to the checkpoint.
+ * The checkpoint file holds what identifies the run (video size, seeds, parameters) then, for each pass, the slice it reached,
+ * its TrackerState, its BackgroundModel if any and the rows it wrote but didn't commit yet.
+ * Each pass takes its snapshot every interval slices and once done: the journal is forced to disk, then the checkpoint file is replaced
+ * by a new one in a single move, so that an interruption at any time leaves a usable checkpoint.
+ * On resuming, the committed rows are read back from the journal into the sink and each pass goes on from where it was.
+ */
+public class Checkpoint {
+	static final int MAGIC = 0x5a464350, VERSION = 2; // "ZFCP"
+	File file, rowsFile;
+	int interval;
+	TrackingEngine engine;
+	TrajectorySink sink;
+	TrajectoryFile journal;
+	boolean ownJournal, resumed;
+	byte[][] snapshots = new byte[2][]; // latest snapshot of the forward and backward passes
+	int[] lastSaved = new int[2];
+
+	public Checkpoint(File file, int interval) {
+		this.file = file;
+		this.interval = Math.max(1, interval);
+		rowsFile = new File(file.getPath()+".rows");
+	}
+
+	// whether the last run resumed from a checkpoint
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	/* Sets up the journal for a run of the engine to the given sink, and gives the sink the passes should write to:
+	 * the sink itself if it is or writes to a trajectory file, else one which also writes to the journal.
+	 */
+	TrajectorySink open(TrackingEngine engine, TrajectorySink target) throws IOException {
+		this.engine = engine;
+		lastSaved[0] = lastSaved[1] = engine.startSlice;
+		snapshots[0] = snapshots[1] = null;
+		resumed = false;
+		if (target instanceof TrajectoryFile) {
+			journal = (TrajectoryFile) target;
+			ownJournal = false;
+			sink = target;
+		} else if (target instanceof BehaviourAnalytics && ((BehaviourAnalytics) target).target instanceof TrajectoryFile) {
+			// the analytics get the committed rows back on resuming, from the trajectory file they write to
+			journal = (TrajectoryFile) ((BehaviourAnalytics) target).target;
+			ownJournal = false;
+			sink = target;
+		} else {
+			journal = new TrajectoryFile(rowsFile, engine.seeds.length, engine.nbSlices, file.isFile());
+			ownJournal = true;
+			sink = new TeeSink(target, journal);
+		}
+		return sink;
+	}
+
+	/* Puts the passes back where the checkpoint left them, if there is one for the same run. Returns whether there was one.
+	 * To be called once the passes are created, i.e once the seeds were written to the sink.
+	 */
+	boolean restore(TrackingPass[] passes) throws IOException {
+		if (!file.isFile())
+			return false;
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		byte[][] read = new byte[2][];
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return false;
+			byte[] run = new byte[in.readInt()];
+			in.readFully(run);
+			if (!Arrays.equals(run, identity()))
+				return false;
+			for (int p = 0; p < 2; p++) {
+				int length = in.readInt();
+				if (length > 0) {
+					read[p] = new byte[length];
+					in.readFully(read[p]);
+				}
+			}
+		} catch (IOException e) {
+			return false; // e.g truncated, the run starts over
+		} finally {
+			in.close();
+		}
+
+		int startSlice = engine.startSlice;
+		int[] reached = new int[2];
+		for (int p = 0; p < 2; p++) {
+			if (read[p] == null)
+				continue;
+			reached[p] = restore(passes[p], new DataInputStream(new ByteArrayInputStream(read[p])));
+			snapshots[p] = read[p];
+			lastSaved[p] = reached[p];
+		}
+		// the backward rows first, each pass' in the order it committed them, so that a sink walking them away from the start slice needn't hold any
+		for (int p:passes[0].step < 0 ? new int[] {0, 1} : new int[] {1, 0}) {
+			if (read[p] == null)
+				continue;
+			TrackingPass pass = passes[p];
+			// the rows this pass committed: from the start slice to the one before the reached one forwards, from the reached one to the start slice's backwards
+			int from = pass.step > 0 ? startSlice : reached[p], to = pass.step > 0 ? reached[p]-1 : startSlice-1;
+			if (sink != journal && from <= to)
+				replay(from, to, pass.step);
+			else if (from <= startSlice-1 && startSlice-1 <= to)
+				replay(startSlice-1, startSlice-1, pass.step); // the other rows are in the trajectory file already, but the new passes wrote the seeds over this one
+		}
+		resumed = true;
+		return true;
+	}
+
+	// the pass' state and uncommitted rows, returns the slice it reached
+	int restore(TrackingPass pass, DataInputStream in) throws IOException {
+		TrackerState state = pass.state;
+		int reached = in.readInt();
+		state.objectThreshold = in.readDouble();
+		state.zfThreshold = in.readDouble();
+		state.previousSliceMax = in.readDouble();
+		for (int fish = 0; fish < state.nbFish; fish++) {
+			state.x[fish] = in.readInt();
+			state.y[fish] = in.readInt();
+			state.size[fish] = in.readDouble();
+			state.canMove[fish] = in.readBoolean();
+		}
+		state.collisions.clear();
+		int nbCollisions = in.readInt();
+		for (int c = 0; c < nbCollisions; c++)
+			state.collisions.add(new Point(in.readInt(), in.readInt()));
+		pass.collisionGrid.rebuild(state.collisions);
+		int nbRows = in.readInt();
+		for (int r = 0; r < nbRows; r++) {
+			int index = in.readInt();
+			for (int fish = 0; fish < state.nbFish; fish++) {
+				sink.setPosition(fish, index, in.readInt(), in.readInt());
+				sink.setCollision(fish, index, in.readInt());
+			}
+		}
+		if (engine.params.backgroundRate > 0) {
+			pass.background = new BackgroundModel(engine.source.getProcessor(engine.startSlice), engine.params);
+			pass.background.read(in);
+		}
+		pass.resumeSlice = reached;
+		return reached;
+	}
+
+	// reads the committed rows back from the journal and writes them to the sink, in the order of a pass going by step
+	void replay(int from, int to, int step) throws IOException {
+		TrajectoryFile.Reader reader = new TrajectoryFile.Reader(journal.file);
+		int nbFish = reader.getNbFish();
+		int[] row = new int[3*nbFish];
+		try {
+			for (int i = 0; i <= to-from; i++) {
+				int index = step > 0 ? from+i : to-i;
+				reader.readRow(index, row);
+				for (int fish = 0; fish < nbFish; fish++) {
+					sink.setPosition(fish, index, row[3*fish], row[3*fish+1]);
+					sink.setCollision(fish, index, row[3*fish+2]);
+				}
+				sink.commit(index);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	// called by a pass once it tracked up to the given slice
+	void passed(TrackingPass pass, int slice) {
+		int p = pass.step > 0 ? 0 : 1;
+		if (Math.abs(slice-lastSaved[p]) < interval && slice != pass.lastSlice)
+			return;
+		lastSaved[p] = slice;
+		try {
+			byte[] snapshot = snapshot(pass, slice);
+			synchronized (this) {
+				snapshots[p] = snapshot;
+				journal.force();
+				write();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	byte[] snapshot(TrackingPass pass, int slice) throws IOException {
+		TrackerState state = pass.state;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(slice);
+		out.writeDouble(state.objectThreshold);
+		out.writeDouble(state.zfThreshold);
+		out.writeDouble(state.previousSliceMax);
+		for (int fish = 0; fish < state.nbFish; fish++) {
+			out.writeInt(state.x[fish]);
+			out.writeInt(state.y[fish]);
+			out.writeDouble(state.size[fish]);
+			out.writeBoolean(state.canMove[fish]);
+		}
+		out.writeInt(state.collisions.size());
+		for (Point c:state.collisions) {
+			out.writeInt(c.x);
+			out.writeInt(c.y);
+		}
+		// the rows of this pass: after the start slice's forwards, up to it backwards
+		TreeMap<Integer, int[]> rows = pass.step > 0 ? journal.pendingRows(engine.startSlice, engine.nbSlices-1) : journal.pendingRows(0, engine.startSlice-1);
+		out.writeInt(rows.size());
+		for (Map.Entry<Integer, int[]> row:rows.entrySet()) {
+			out.writeInt(row.getKey());
+			for (int value:row.getValue())
+				out.writeInt(value);
+		}
+		// the background model, as it learnt the slices up to this one
+		if (pass.background != null)
+			pass.background.write(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	void write() throws IOException {
+		File temporary = new File(file.getPath()+".tmp");
+		FileOutputStream stream = new FileOutputStream(temporary);
+		DataOutputStream out = new DataOutputStream(stream);
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			byte[] run = identity();
+			out.writeInt(run.length);
+			out.write(run);
+			for (byte[] snapshot:snapshots) {
+				out.writeInt(snapshot != null ? snapshot.length : 0);
+				if (snapshot != null)
+					out.write(snapshot);
+			}
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// what a checkpoint must have been taken on to be resumed from
+	byte[] identity() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		TrackingParameters params = engine.params;
+		out.writeInt(engine.width);
+		out.writeInt(engine.height);
+		out.writeInt(engine.nbSlices);
+		out.writeInt(engine.startSlice);
+		out.writeDouble(engine.startZfThreshold);
+		out.writeInt(engine.seeds.length);
+		for (Point seed:engine.seeds) {
+			out.writeInt(seed.x);
+			out.writeInt(seed.y);
+		}
+		out.writeDouble(params.objectThreshold);
+		out.writeDouble(params.zfThreshApprox);
+		out.writeDouble(params.zfSize);
+		out.writeDouble(params.defaultRadius);
+		out.writeDouble(params.collisionHandlerRadius);
+		out.writeDouble(params.collision_dist);
+		out.writeInt(params.maximal_area);
+		out.writeDouble(params.backgroundRate);
+		out.writeDouble(params.foregroundContrast);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	// once the run is over: the checkpoint is deleted if it completed, else kept for resuming
+	void close(boolean completed) throws IOException {
+		if (ownJournal)
+			journal.close();
+		if (completed) {
+			file.delete();
+			if (ownJournal)
+				rowsFile.delete();
+		}
+	}
+
+	// writes to the sink of the run and to the journal
+	static class TeeSink implements TrajectorySink {
+		TrajectorySink target;
+		TrajectoryFile journal;
+
+		TeeSink(TrajectorySink target, TrajectoryFile journal) {
+			this.target = target;
+			this.journal = journal;
+		}
+
+		@Override
+		public void setPosition(int fish, int index, int x, int y) {
+			target.setPosition(fish, index, x, y);
+			journal.setPosition(fish, index, x, y);
+		}
+
+		@Override
+		public void setCollision(int fish, int index, int collision) {
+			target.setCollision(fish, index, collision);
+			journal.setCollision(fish, index, collision);
+		}
+
+		@Override
+		public void commit(int index) {
+			target.commit(index);
+			journal.commit(index);
+		}
+	}
+}
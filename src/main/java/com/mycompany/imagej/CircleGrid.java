@@ -0,0 +1,74 @@
+package com.mycompany.imagej;
+
+import java.awt.Point;
+import java.util.ArrayList;
+
+/* Uniform grid over the collision circles, which all have the same width.
+ * Each circle is registered in the cells its bounding box overlaps, so that finding the circles which contain a point
+ * only looks at the circles of one cell instead of every circle.
+ */
+public class CircleGrid {
+	double size;
+	int cellSize, cols, rows;
+	ArrayList<ArrayList<Point>> cells;
+
+	public CircleGrid(int width, int height, double size) {
+		this.size = size;
+		cellSize = Math.max(1, (int) Math.ceil(size));
+		cols = width/cellSize + 1;
+		rows = height/cellSize + 1;
+		cells = new ArrayList<ArrayList<Point>>(cols*rows);
+		for (int i = 0; i < cols*rows; i++)
+			cells.add(new ArrayList<Point>(2));
+	}
+
+	void clear() {
+		for (ArrayList<Point> cell:cells)
+			cell.clear();
+	}
+
+	void rebuild(ArrayList<Point> circles) {
+		clear();
+		for (Point c:circles)
+			add(c);
+	}
+
+	void add(Point c) {
+		double r = size/2;
+		for (int row = cell(c.y-r, rows); row <= cell(c.y+r, rows); row++) {
+			for (int col = cell(c.x-r, cols); col <= cell(c.x+r, cols); col++)
+				cells.get(row*cols + col).add(c);
+		}
+	}
+
+	void remove(Point c) {
+		double r = size/2;
+		for (int row = cell(c.y-r, rows); row <= cell(c.y+r, rows); row++) {
+			for (int col = cell(c.x-r, cols); col <= cell(c.x+r, cols); col++) {
+				ArrayList<Point> cell = cells.get(row*cols + col);
+				for (int i = 0; i < cell.size(); i++) {
+					if (cell.get(i) == c) {
+						cell.remove(i);
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	// whether p lies in one of the circles, with the same test as CircleKernel
+	boolean contains(int x, int y) {
+		ArrayList<Point> cell = cells.get(cell(y, rows)*cols + cell(x, cols));
+		int r2 = CircleKernel.r2(size);
+		for (int i = 0; i < cell.size(); i++) {
+			Point c = cell.get(i);
+			if ((x-c.x)*(x-c.x)+(y-c.y)*(y-c.y) <= r2)
+				return true;
+		}
+		return false;
+	}
+
+	int cell(double coordinate, int nbCells) {
+		return Math.min(nbCells-1, Math.max(0, (int) Math.floor(coordinate/cellSize)));
+	}
+}
@@ -0,0 +1,146 @@
+package com.mycompany.imagej;
+
+import ij.process.ImageProcessor;
+
+import java.awt.Point;
+import java.util.ArrayList;
+
+/* The pixels of a circle as row spans around its center: row dy holds the offsets -halfWidths[dy+radius]..halfWidths[dy+radius].
+ * A pixel belongs to the circle of width size when dx*dx+dy*dy <= size*size/4, so that a kernel only depends on r2 = floor(size*size/4).
+ * Scanning the spans straight over the pixel array visits the circle in row order without creating a Point per pixel.
+ */
+public class CircleKernel {
+	final int r2, radius;
+	final int[] halfWidths;
+
+	CircleKernel(int r2) {
+		this.r2 = r2;
+		radius = (int) Math.sqrt(r2);
+		halfWidths = new int[2*radius+1];
+		for (int dy = -radius; dy <= radius; dy++)
+			halfWidths[dy+radius] = (int) Math.sqrt(r2 - dy*dy);
+	}
+
+	static int r2(double size) {
+		return (int) Math.floor(size*size/4);
+	}
+
+	/* Darkest pixel of the circle centered on (cx, cy), the first one met in row order.
+	 * 8-bit, 16-bit and float frames are read straight from their pixel arrays, in their own units. Others go through getf().
+	 */
+	void findMin(ImageProcessor ip, int cx, int cy, DarkSpot spot) {
+		spot.reset();
+		Object pixels = ip.getPixels();
+		int w = ip.getWidth(), h = ip.getHeight();
+		int yStart = Math.max(0, cy-radius), yEnd = Math.min(h-1, cy+radius);
+		if (pixels instanceof byte[] || pixels instanceof short[]) {
+			byte[] bytes = pixels instanceof byte[] ? (byte[]) pixels : null;
+			short[] shorts = pixels instanceof short[] ? (short[]) pixels : null;
+			int min = Integer.MAX_VALUE, minIndex = -1;
+			for (int y = yStart; y <= yEnd; y++) {
+				int hw = halfWidths[y-cy+radius], offset = y*w;
+				int xStart = offset + Math.max(0, cx-hw), xEnd = offset + Math.min(w-1, cx+hw);
+				if (bytes != null) {
+					for (int i = xStart; i <= xEnd; i++) {
+						int value = bytes[i]&0xff;
+						if (min > value) {
+							min = value;
+							minIndex = i;
+						}
+					}
+				} else {
+					for (int i = xStart; i <= xEnd; i++) {
+						int value = shorts[i]&0xffff;
+						if (min > value) {
+							min = value;
+							minIndex = i;
+						}
+					}
+				}
+			}
+			if (minIndex >= 0)
+				spot.value = min;
+			setSpot(spot, minIndex, w);
+		} else {
+			float[] floats = pixels instanceof float[] ? (float[]) pixels : null;
+			float min = Float.MAX_VALUE;
+			int minIndex = -1;
+			for (int y = yStart; y <= yEnd; y++) {
+				int hw = halfWidths[y-cy+radius], offset = y*w;
+				int xEnd = offset + Math.min(w-1, cx+hw);
+				for (int i = offset + Math.max(0, cx-hw); i <= xEnd; i++) {
+					float value = floats != null ? floats[i] : ip.getf(i);
+					if (min > value) {
+						min = value;
+						minIndex = i;
+					}
+				}
+			}
+			if (minIndex >= 0)
+				spot.value = min;
+			setSpot(spot, minIndex, w);
+		}
+	}
+
+	// same, skipping the pixels which are within exclusionRadius of one of the given points
+	void findMin(ImageProcessor ip, int cx, int cy, ArrayList<Point> exceptThese, double exclusionRadius, DarkSpot spot) {
+		if (exceptThese.size() == 0) {
+			findMin(ip, cx, cy, spot);
+			return;
+		}
+		spot.reset();
+		Object pixels = ip.getPixels();
+		byte[] bytes = pixels instanceof byte[] ? (byte[]) pixels : null;
+		short[] shorts = pixels instanceof short[] ? (short[]) pixels : null;
+		float[] floats = pixels instanceof float[] ? (float[]) pixels : null;
+		int w = ip.getWidth(), h = ip.getHeight(), nbExcluded = exceptThese.size(), minIndex = -1;
+		double exclusion2 = exclusionRadius*exclusionRadius;
+		float min = Float.MAX_VALUE;
+		for (int y = Math.max(0, cy-radius); y <= Math.min(h-1, cy+radius); y++) {
+			int hw = halfWidths[y-cy+radius], offset = y*w;
+			for (int x = Math.max(0, cx-hw); x <= Math.min(w-1, cx+hw); x++) {
+				int i = offset+x;
+				float value = bytes != null ? bytes[i]&0xff : shorts != null ? shorts[i]&0xffff : floats != null ? floats[i] : ip.getf(i);
+				if (min <= value)
+					continue;
+				boolean available = true;
+				for (int p = 0; p < nbExcluded && available; p++) {
+					Point except = exceptThese.get(p);
+					available = (except.x-x)*(except.x-x)+(except.y-y)*(except.y-y) > exclusion2;
+				}
+				if (available) {
+					min = value;
+					minIndex = i;
+				}
+			}
+		}
+		if (minIndex >= 0)
+			spot.value = min;
+		setSpot(spot, minIndex, w);
+	}
+
+	void setSpot(DarkSpot spot, int index, int width) {
+		if (index < 0)
+			return;
+		spot.found = true;
+		spot.x = index%width;
+		spot.y = index/width;
+	}
+
+	// kernels are kept per r2, as the reduced circles only take a few different sizes
+	static class Cache {
+		CircleKernel[] kernels = new CircleKernel[0];
+
+		CircleKernel get(double size) {
+			int r2 = r2(size);
+			if (r2 >= kernels.length) {
+				CircleKernel[] grown = new CircleKernel[Math.max(r2+1, 2*kernels.length)];
+				System.arraycopy(kernels, 0, grown, 0, kernels.length);
+				kernels = grown;
+			}
+			if (kernels[r2] == null)
+				kernels[r2] = new CircleKernel(r2);
+			return kernels[r2];
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.mycompany.imagej;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+
+/* A region of the frames of another source, e.g one well of a plate. Coordinates are relative to the region.
+ * Frames of a raw file only have the rows of the region read. Others are read whole then copied from,
+ * without setting a ROI on them since other regions of the same frame may be copied at the same time.
+ */
+public class CroppedFrameSource implements FrameSource {
+	FrameSource source;
+	Rectangle region;
+
+	public CroppedFrameSource(FrameSource source, Rectangle region) {
+		this.source = source;
+		this.region = region.intersection(new Rectangle(0, 0, source.getWidth(), source.getHeight()));
+	}
+
+	@Override
+	public int getSize() {
+		return source.getSize();
+	}
+
+	@Override
+	public int getWidth() {
+		return region.width;
+	}
+
+	@Override
+	public int getHeight() {
+		return region.height;
+	}
+
+	@Override
+	public ImageProcessor getProcessor(int slice) {
+		if (source instanceof RawFrameSource)
+			return ((RawFrameSource) source).getProcessor(slice, region);
+		return crop(source.getProcessor(slice), region);
+	}
+
+	static ImageProcessor crop(ImageProcessor ip, Rectangle r) {
+		Object pixels = ip.getPixels();
+		int width = ip.getWidth();
+		if (pixels instanceof byte[]) {
+			byte[] cropped = new byte[r.width*r.height];
+			for (int row = 0; row < r.height; row++)
+				System.arraycopy(pixels, (r.y+row)*width + r.x, cropped, row*r.width, r.width);
+			return new ByteProcessor(r.width, r.height, cropped);
+		}
+		if (pixels instanceof short[]) {
+			short[] cropped = new short[r.width*r.height];
+			for (int row = 0; row < r.height; row++)
+				System.arraycopy(pixels, (r.y+row)*width + r.x, cropped, row*r.width, r.width);
+			return new ShortProcessor(r.width, r.height, cropped, null);
+		}
+		if (pixels instanceof float[]) {
+			float[] cropped = new float[r.width*r.height];
+			for (int row = 0; row < r.height; row++)
+				System.arraycopy(pixels, (r.y+row)*width + r.x, cropped, row*r.width, r.width);
+			return new FloatProcessor(r.width, r.height, cropped);
+		}
+		synchronized (ip) {
+			ip.setRoi(r);
+			ImageProcessor cropped = ip.crop();
+			ip.resetRoi();
+			return cropped;
+		}
+	}
+}
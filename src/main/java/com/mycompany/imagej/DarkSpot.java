@@ -0,0 +1,16 @@
+package com.mycompany.imagej;
+
+// result of a dark spot search: the darkest point, its value, and whether it was found and can be moved to.
+// A search overwrites the instance it is given, so that no object is allocated while tracking.
+public class DarkSpot {
+	int x, y;
+	double value;
+	boolean found, available;
+
+	void reset() {
+		x = 0; y = 0;
+		value = Double.MAX_VALUE;
+		found = false;
+		available = false;
+	}
+}
@@ -0,0 +1,28 @@
+package com.mycompany.imagej;
+
+import java.util.Arrays;
+
+// pixels of the large objects found on a frame, rasterized once so that isAvailable checks them in constant time
+public class ExclusionMask {
+	int width, height;
+	boolean[] mask;
+
+	public ExclusionMask(int width, int height) {
+		this.width = width;
+		this.height = height;
+		mask = new boolean[width*height];
+	}
+
+	void clear() {
+		Arrays.fill(mask, false);
+	}
+
+	void add(int[] pixels, int count) {
+		for (int i = 0; i < count; i++)
+			mask[pixels[i]] = true;
+	}
+
+	boolean contains(int x, int y) {
+		return x >= 0 && y >= 0 && x < width && y < height && mask[y*width + x];
+	}
+}
@@ -0,0 +1,115 @@
+package com.mycompany.imagej;
+
+import java.util.Arrays;
+
+/* Uniform grid over the zf centers, so that finding the zf near a point only looks at the few cells around it instead of every zf.
+ * Cells are as wide as the largest distance asked for, so a query reads at most 3x3 cells.
+ * The tracker moves the zf through move(), which keeps the grid in step with the state within a frame.
+ * Queries give the zf of the cells in ascending order, i.e the order in which a loop over all zf would meet them,
+ * so that whatever depends on this order (e.g which collision reduces a search circle last) is left unchanged.
+ */
+public class FishGrid {
+	TrackerState state;
+	int cellSize, cols, rows;
+	int[][] cells; // zf indices of each cell, in no particular order
+	int[] counts, cellOf;
+	int[] found = new int[16]; // result of the last query
+	int nbFound;
+
+	public FishGrid(TrackerState state, int width, int height, double cellSize) {
+		this.state = state;
+		this.cellSize = Math.max(1, (int) Math.ceil(cellSize));
+		cols = width/this.cellSize + 1;
+		rows = height/this.cellSize + 1;
+		cells = new int[cols*rows][];
+		counts = new int[cols*rows];
+		cellOf = new int[state.nbFish];
+		rebuild();
+	}
+
+	void rebuild() {
+		Arrays.fill(counts, 0);
+		for (int fish = 0; fish < state.nbFish; fish++) {
+			cellOf[fish] = cell(state.x[fish], state.y[fish]);
+			add(fish, cellOf[fish]);
+		}
+	}
+
+	// moves a zf in the state and in the grid
+	void move(int fish, int x, int y) {
+		state.x[fish] = x;
+		state.y[fish] = y;
+		int cell = cell(x, y);
+		if (cell == cellOf[fish])
+			return;
+		int[] zfs = cells[cellOf[fish]];
+		int count = counts[cellOf[fish]];
+		for (int i = 0; i < count; i++) {
+			if (zfs[i] == fish) {
+				zfs[i] = zfs[count-1];
+				break;
+			}
+		}
+		counts[cellOf[fish]]--;
+		cellOf[fish] = cell;
+		add(fish, cell);
+	}
+
+	void add(int fish, int cell) {
+		if (cells[cell] == null)
+			cells[cell] = new int[4];
+		else if (counts[cell] == cells[cell].length)
+			cells[cell] = Arrays.copyOf(cells[cell], 2*counts[cell]);
+		cells[cell][counts[cell]++] = fish;
+	}
+
+	/* Fills found with the zf of the cells overlapping the square of half-width distance around (x, y), sorted, and returns their number.
+	 * This includes every zf within distance of the point, and some farther ones which the caller still has to test.
+	 */
+	int query(int x, int y, double distance) {
+		nbFound = 0;
+		int rowEnd = index(y+distance, rows), colStart = index(x-distance, cols), colEnd = index(x+distance, cols);
+		for (int row = index(y-distance, rows); row <= rowEnd; row++) {
+			for (int col = colStart; col <= colEnd; col++) {
+				int cell = row*cols + col, count = counts[cell];
+				if (nbFound+count > found.length)
+					found = Arrays.copyOf(found, Math.max(2*found.length, nbFound+count));
+				if (count > 0)
+					System.arraycopy(cells[cell], 0, found, nbFound, count);
+				nbFound += count;
+			}
+		}
+		// cells hold few zf, insertion sort is enough
+		for (int i = 1; i < nbFound; i++) {
+			int fish = found[i], j = i-1;
+			for (; j >= 0 && found[j] > fish; j--)
+				found[j+1] = found[j];
+			found[j+1] = fish;
+		}
+		return nbFound;
+	}
+
+	// whether a zf is centered on (x, y)
+	boolean isCenter(int x, int y) {
+		return isCenter(x, y, -1);
+	}
+
+	// same, but for any zf other than except
+	boolean isCenter(int x, int y, int except) {
+		int cell = cell(x, y), count = counts[cell];
+		for (int i = 0; i < count; i++) {
+			int fish = cells[cell][i];
+			if (fish != except && state.x[fish] == x && state.y[fish] == y)
+				return true;
+		}
+		return false;
+	}
+
+	int cell(int x, int y) {
+		return index(y, rows)*cols + index(x, cols);
+	}
+
+	int index(double coordinate, int nbCells) {
+		return Math.min(nbCells-1, Math.max(0, (int) Math.floor(coordinate/cellSize)));
+	}
+}
@@ -0,0 +1,96 @@
+package com.mycompany.imagej;
+
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+
+/* The preprocessing of the frames kept from a run to the next, e.g when re-tracking a range of slices with other radii:
+ * the max value of each slice, possibly shared with other caches, and its exclusion mask as runs of pixels along with the object threshold and minimal area it was found for.
+ * A mask is only reused for the same threshold and area, which don't change with the radii, the collision distance or the seeds.
+ * Masks hold few pixels, so their runs take much less memory than the frames.
+ */
+public class FrameCache {
+	double[] maxima;
+	boolean[] hasMax;
+	int[][] runs; // start and length of each run of masked pixels, in reading order
+	double[] thresholds;
+	int[] minAreas;
+	FrameCache shared; // the cache holding the max values, if not this one
+
+	public FrameCache(int nbSlices) {
+		maxima = new double[nbSlices];
+		hasMax = new boolean[nbSlices];
+		runs = new int[nbSlices][];
+		thresholds = new double[nbSlices];
+		minAreas = new int[nbSlices];
+	}
+
+	// a cache of its own masks, taking the max values from shared, e.g for runs with another object threshold
+	public FrameCache(FrameCache shared) {
+		int nbSlices = shared.runs.length;
+		runs = new int[nbSlices][];
+		thresholds = new double[nbSlices];
+		minAreas = new int[nbSlices];
+		this.shared = shared.shared != null ? shared.shared : shared;
+	}
+
+	// max value of a slice, computed from ip if not known yet
+	synchronized double max(int slice, ImageProcessor ip) {
+		if (shared != null)
+			return shared.max(slice, ip);
+		if (!hasMax[slice-1]) {
+			maxima[slice-1] = FramePreprocessor.maxValue(ip);
+			hasMax[slice-1] = true;
+		}
+		return maxima[slice-1];
+	}
+
+	// same, only reading the slice if needed
+	double max(int slice, FrameSource source) {
+		if (shared != null)
+			return shared.max(slice, source);
+		synchronized (this) {
+			if (hasMax[slice-1])
+				return maxima[slice-1];
+		}
+		return max(slice, source.getProcessor(slice));
+	}
+
+	// fills objects with the cached mask of a slice and returns true if there is one for this threshold and area
+	boolean getObjects(int slice, double threshold, int minArea, ExclusionMask objects) {
+		int[] sliceRuns;
+		synchronized (this) {
+			sliceRuns = runs[slice-1];
+			if (sliceRuns == null || thresholds[slice-1] != threshold || minAreas[slice-1] != minArea)
+				return false;
+		}
+		objects.clear();
+		for (int r = 0; r < sliceRuns.length; r += 2)
+			Arrays.fill(objects.mask, sliceRuns[r], sliceRuns[r] + sliceRuns[r+1], true);
+		return true;
+	}
+
+	void putObjects(int slice, double threshold, int minArea, ExclusionMask objects) {
+		boolean[] mask = objects.mask;
+		int nbRuns = 0;
+		for (int i = 0; i < mask.length; i++) {
+			if (mask[i] && (i == 0 || !mask[i-1]))
+				nbRuns++;
+		}
+		int[] sliceRuns = new int[2*nbRuns];
+		int r = 0;
+		for (int i = 0; i < mask.length; i++) {
+			if (mask[i] && (i == 0 || !mask[i-1]))
+				sliceRuns[r] = i;
+			if (mask[i] && (i == mask.length-1 || !mask[i+1])) {
+				sliceRuns[r+1] = i+1 - sliceRuns[r];
+				r += 2;
+			}
+		}
+		synchronized (this) {
+			runs[slice-1] = sliceRuns;
+			thresholds[slice-1] = threshold;
+			minAreas[slice-1] = minArea;
+		}
+	}
+}
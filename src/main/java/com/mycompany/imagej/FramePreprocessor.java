@@ -0,0 +1,164 @@
+package com.mycompany.imagej;
+
+import ij.process.ImageProcessor;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/* Computes the per-frame work which doesn't depend on the zf positions ahead of the tracker, on worker threads.
+ * Along a pass the object threshold only follows the slices' max values: after n slices it has been shifted by max(n) - max(start).
+ * Hence the exclusion mask of a slice can be computed as soon as the pass' starting threshold is known.
+ * At most lookahead frames are computed in advance, and their masks are recycled once released by the tracker.
+ * With no worker thread, frames are computed when asked for.
+ * A background model has to learn the frames in order, so it is updated when the tracker asks for a frame, on its thread.
+ */
+public class FramePreprocessor {
+	FrameSource source;
+	TrackingParameters params;
+	FrameCache cache; // null unless the frames' max values and masks are kept for later runs
+	BackgroundModel background; // null unless the large objects are found by a background model rather than by a threshold
+	ExecutorService executor;
+	int lookahead, nextSlice, lastSlice, step;
+	double startThreshold, startMax;
+	ArrayDeque<Future<PreprocessedFrame>> pending = new ArrayDeque<Future<PreprocessedFrame>>();
+	ConcurrentLinkedQueue<ExclusionMask> masks = new ConcurrentLinkedQueue<ExclusionMask>();
+	ThreadLocal<ParticleFinder> particleFinders = new ThreadLocal<ParticleFinder>() {
+		@Override
+		protected ParticleFinder initialValue() {
+			return new ParticleFinder();
+		}
+	};
+
+	public FramePreprocessor(FrameSource source, TrackingParameters params, int nbThreads, int lookahead) {
+		this.source = source;
+		this.params = params;
+		this.lookahead = Math.max(1, lookahead);
+		if (nbThreads > 0) {
+			executor = Executors.newFixedThreadPool(nbThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ZF frame preprocessing");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	// schedules the slices from firstSlice to lastSlice, both included and in this order, for a pass starting with the given threshold and max
+	void start(int firstSlice, int lastSlice, double objectThreshold, double startMax) {
+		cancel();
+		nextSlice = firstSlice;
+		this.lastSlice = lastSlice;
+		step = lastSlice >= firstSlice ? 1 : -1;
+		startThreshold = objectThreshold;
+		this.startMax = startMax;
+		if (executor != null) {
+			while (pending.size() < lookahead && submitNext());
+		}
+	}
+
+	// the next scheduled frame, to be released once done with
+	PreprocessedFrame next() {
+		PreprocessedFrame frame;
+		if (executor == null) {
+			frame = preprocess(nextSlice);
+			nextSlice += step;
+		} else {
+			Future<PreprocessedFrame> future = pending.poll();
+			submitNext();
+			try {
+				frame = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		if (background != null) {
+			long start = System.nanoTime();
+			background.update(frame.ip, frame.objects);
+			frame.particleNanos = System.nanoTime()-start;
+		}
+		return frame;
+	}
+
+	void release(PreprocessedFrame frame) {
+		masks.offer(frame.objects);
+	}
+
+	void cancel() {
+		for (Future<PreprocessedFrame> future:pending)
+			future.cancel(false);
+		pending.clear();
+	}
+
+	public void shutdown() {
+		cancel();
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+	boolean submitNext() {
+		if ((nextSlice-lastSlice)*step > 0)
+			return false;
+		final int slice = nextSlice;
+		pending.add(executor.submit(new Callable<PreprocessedFrame>() {
+			@Override
+			public PreprocessedFrame call() {
+				return preprocess(slice);
+			}
+		}));
+		nextSlice += step;
+		return true;
+	}
+
+	PreprocessedFrame preprocess(int slice) {
+		PreprocessedFrame frame = new PreprocessedFrame();
+		frame.slice = slice;
+		frame.ip = source.getProcessor(slice);
+		long start = System.nanoTime();
+		frame.max = cache != null ? cache.max(slice, frame.ip) : maxValue(frame.ip);
+		long end = System.nanoTime();
+		frame.maxNanos = end-start;
+		frame.objects = masks.poll();
+		if (frame.objects == null)
+			frame.objects = new ExclusionMask(frame.ip.getWidth(), frame.ip.getHeight());
+		double objectThreshold = startThreshold + frame.max - startMax;
+		if (background != null)
+			return frame; // the objects are found in order by next()
+		if (cache == null || !cache.getObjects(slice, objectThreshold, params.maximal_area, frame.objects)) {
+			particleFinders.get().find(frame.ip, objectThreshold, params.maximal_area, frame.objects);
+			if (cache != null)
+				cache.putObjects(slice, objectThreshold, params.maximal_area, frame.objects);
+		}
+		frame.particleNanos = System.nanoTime()-end;
+		return frame;
+	}
+
+	// brightest pixel value, from the pixel arrays through PixelKernels
+	static double maxValue(ImageProcessor ip) {
+		Object pixels = ip.getPixels();
+		if (pixels instanceof byte[])
+			return PixelKernels.get().max((byte[]) pixels);
+		if (pixels instanceof short[])
+			return PixelKernels.get().max((short[]) pixels);
+		if (pixels instanceof float[])
+			return PixelKernels.get().max((float[]) pixels);
+		int w = ip.getWidth(), h = ip.getHeight(), max = 0;
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				if (max < ip.get(x,y))
+					max = ip.get(x,y);
+			}
+		}
+		return max;
+	}
+}
@@ -0,0 +1,11 @@
+package com.mycompany.imagej;
+
+import ij.process.ImageProcessor;
+
+// where the tracking engine reads its frames from. Slices are numbered from 1 to getSize(), as in an ImageStack.
+public interface FrameSource {
+	int getSize();
+	int getWidth();
+	int getHeight();
+	ImageProcessor getProcessor(int slice);
+}
@@ -0,0 +1,16 @@
+package com.mycompany.imagej;
+
+import ij.process.ImageProcessor;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// frames coming in as they are captured, e.g from a camera during an experiment, with no known number of frames. See LiveTracker.
+public interface FrameStream extends Closeable {
+	int getWidth();
+	int getHeight();
+	// the next frame, waiting for it to be captured, or null once the stream ended
+	ImageProcessor nextFrame() throws IOException, InterruptedException;
+	// System.nanoTime() at which the last frame given by nextFrame() was captured
+	long getCaptureTime();
+}
@@ -0,0 +1,89 @@
+package com.mycompany.imagej;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* Which zf of the tracker each shown trajectory is on each slice, once the trajectories were stitched.
+ * Each stitch gives the data of some zf to others over a range of slices. They are kept in the order they were made,
+ * so that the numbering of the tracker and the shown one can be told apart on any slice, e.g to track a range again
+ * from the tracker's keyframes and write it back under the stitched identities.
+ */
+public class IdentityMap {
+	List<Stitch> stitches = new ArrayList<Stitch>();
+
+	// on the indices [from, to), fish[i] holds what fish[matching[i]] held
+	static class Stitch {
+		int from, to;
+		int[] fish, matching;
+	}
+
+	public void permute(int from, int to, int[] fish, int[] matching) {
+		if (from >= to)
+			return;
+		Stitch stitch = new Stitch();
+		stitch.from = from;
+		stitch.to = to;
+		stitch.fish = fish.clone();
+		stitch.matching = matching.clone();
+		stitches.add(stitch);
+	}
+
+	public void swap(int from, int to, int fish1, int fish2) {
+		permute(from, to, new int[] {fish1, fish2}, new int[] {1, 0});
+	}
+
+	public boolean isEmpty() {
+		return stitches.isEmpty();
+	}
+
+	// the tracker's zf shown as fish on the given index, undoing the last stitches first
+	public int tracked(int index, int fish) {
+		for (int s = stitches.size()-1; s >= 0; s--) {
+			Stitch stitch = stitches.get(s);
+			if (index < stitch.from || index >= stitch.to)
+				continue;
+			for (int i = 0; i < stitch.fish.length; i++) {
+				if (stitch.fish[i] == fish) {
+					fish = stitch.fish[stitch.matching[i]];
+					break;
+				}
+			}
+		}
+		return fish;
+	}
+
+	// the trajectory showing the tracker's zf on the given index, redoing the stitches in order
+	public int shown(int index, int tracked) {
+		for (Stitch stitch:stitches) {
+			if (index < stitch.from || index >= stitch.to)
+				continue;
+			for (int i = 0; i < stitch.fish.length; i++) {
+				if (stitch.fish[stitch.matching[i]] == tracked) {
+					tracked = stitch.fish[i];
+					break;
+				}
+			}
+		}
+		return tracked;
+	}
+
+	// writes rows numbered as the tracker's zf to the target under their shown identities
+	public TrajectorySink sink(final TrajectorySink target) {
+		return new TrajectorySink() {
+			@Override
+			public void setPosition(int fish, int index, int x, int y) {
+				target.setPosition(shown(index, fish), index, x, y);
+			}
+
+			@Override
+			public void setCollision(int fish, int index, int collision) {
+				target.setCollision(shown(index, fish), index, collision);
+			}
+
+			@Override
+			public void commit(int index) {
+				target.commit(index);
+			}
+		};
+	}
+}
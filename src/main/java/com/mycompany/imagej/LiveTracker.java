@@ -0,0 +1,307 @@
+package com.mycompany.imagej;
+
+import ij.IJ;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.awt.Point;
+
+/* Tracks the zf while the frames of a FrameStream come in, e.g for feedback during an experiment. The tracking only goes forward,
+ * frame by frame with the moveRois and handleCollisions steps of a TrackingPass, and the positions found on a frame are handed to
+ * the listener as soon as it is tracked.
+ * A capture thread reads the stream into a bounded queue, from which the tracking thread takes the frames. When the tracking can't keep up
+ * the queue fills up, and then depending on the policy:
+ * - BLOCK stops reading the stream until there is room, i.e pushes back on the stream, whose frames then wait upstream,
+ * - DROP_NEWEST drops the frames captured while the queue is full,
+ * - DROP_OLDEST drops the oldest frame of the queue to make room, keeping the latency down at the cost of gaps.
+ * The zf keep their positions on the dropped frames. Each frame's latency, from its capture to its positions, is measured
+ * along with the stages of the tracking, and the frames tracked later than one frame interval are counted.
+ * Frames are preprocessed on the tracking thread when they come, there being no frame to work ahead on.
+ */
+public class LiveTracker {
+	public static final int BLOCK = 0, DROP_NEWEST = 1, DROP_OLDEST = 2;
+	static final LiveFrame END = new LiveFrame(0, null, 0);
+	TrackingParameters params;
+	FrameStream stream;
+	ArrayBlockingQueue<LiveFrame> queue;
+	int policy;
+	Point[] seeds;
+	Listener listener;
+	TrajectoryStore trajectories;
+	TrackingMetrics metrics;
+	volatile int nbDropped;
+	int nbLate;
+	volatile boolean stopped;
+	volatile Exception captureError;
+	ImageProcessor current; // the frame being tracked
+
+	// told of the positions found on each frame, on the tracking thread so it should be quick about it
+	public interface Listener {
+		// the arrays are the tracker's, to be copied if kept
+		void tracked(int slice, int[] x, int[] y, long latencyNanos);
+	}
+
+	static class LiveFrame {
+		int slice;
+		ImageProcessor ip;
+		long captureTime;
+
+		LiveFrame(int slice, ImageProcessor ip, long captureTime) {
+			this.slice = slice;
+			this.ip = ip;
+			this.captureTime = captureTime;
+		}
+	}
+
+	// at most queueSize frames wait to be tracked. The frame interval the latency is held to is that of params.frameRate.
+	public LiveTracker(TrackingParameters params, FrameStream stream, int queueSize, int policy) {
+		this.params = params;
+		this.stream = stream;
+		this.policy = policy;
+		queue = new ArrayBlockingQueue<LiveFrame>(Math.max(1, queueSize));
+	}
+
+	// the zf positions on the first frame, found on it by a SeedDetector if null
+	public void setSeeds(Point[] seeds) {
+		this.seeds = seeds;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	// ends the tracking once the current frame is tracked, e.g from the listener or another thread
+	public void stop() {
+		stopped = true;
+	}
+
+	/* Tracks the frames of the stream until it ends or stop() is called. Slices are numbered from 1 in the order of capture,
+	 * dropped frames included, and the first one is where the seeds are.
+	 */
+	public void track() throws IOException, InterruptedException {
+		stopped = false;
+		nbDropped = nbLate = 0;
+		queue.clear();
+		Thread capture = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				capture();
+			}
+		}, "ZF live capture");
+		capture.setDaemon(true);
+		capture.start();
+		try {
+			LiveFrame frame = next();
+			if (frame != null)
+				track(frame);
+		} finally {
+			stopped = true;
+			capture.interrupt();
+		}
+		if (captureError instanceof IOException)
+			throw (IOException) captureError;
+		if (captureError != null)
+			throw (RuntimeException) captureError;
+	}
+
+	void track(LiveFrame first) throws InterruptedException {
+		current = first.ip;
+		if (seeds == null)
+			seeds = new SeedDetector(params).detect(first.ip);
+		long frameInterval = (long) (1e9/Math.max(1, params.frameRate));
+		// the engine sees the frame being tracked as the slice asked for, of a video with no end
+		FrameSource source = new FrameSource() {
+			@Override
+			public int getSize() {
+				return Integer.MAX_VALUE;
+			}
+
+			@Override
+			public int getWidth() {
+				return stream.getWidth();
+			}
+
+			@Override
+			public int getHeight() {
+				return stream.getHeight();
+			}
+
+			@Override
+			public ImageProcessor getProcessor(int slice) {
+				return current;
+			}
+		};
+		TrackingEngine engine = new TrackingEngine(params, source);
+		engine.setSeeds(first.slice, seeds);
+		trajectories = new TrajectoryStore(seeds.length, first.slice+1);
+		TrackingPass pass = engine.createPasses(trajectories, 0)[0];
+		metrics = new TrackingMetrics(0);
+		pass.metrics = metrics;
+		metrics.start();
+		pass.preprocessor = new FramePreprocessor(source, params, 0, 1);
+		if (params.backgroundRate > 0)
+			pass.preprocessor.background = pass.background = new BackgroundModel(first.ip, params);
+		pass.startMax = FramePreprocessor.maxValue(first.ip);
+		pass.state.previousSliceMax = pass.startMax;
+		pass.preprocessor.start(first.slice+1, Integer.MAX_VALUE, params.objectThreshold, pass.startMax);
+		tracked(first, pass.state, frameInterval);
+
+		int previous = first.slice;
+		LiveFrame frame;
+		while ((frame = next()) != null) {
+			current = frame.ip;
+			// positions are written on the slice after the frame they were found on, and collision flags on the one after that
+			trajectories.ensureCapacity(frame.slice+1);
+			// the zf stay where they were on the frames dropped since the previous one
+			for (int index = previous; index < frame.slice-1; index++) {
+				for (int fish = 0; fish < seeds.length; fish++)
+					trajectories.setPosition(fish, index, pass.state.x[fish], pass.state.y[fish]);
+			}
+			pass.preprocessor.nextSlice = frame.slice;
+			pass.moveRois(previous, frame.slice);
+			tracked(frame, pass.state, frameInterval);
+			previous = frame.slice;
+		}
+		// the flags of the slice after the last one are left out, as in track()
+		trajectories.nbSlices = previous;
+		metrics.stop();
+	}
+
+	// the next frame to track, or null once the stream ended or the tracking was stopped
+	LiveFrame next() throws InterruptedException {
+		while (!stopped) {
+			LiveFrame frame = queue.poll(10, TimeUnit.MILLISECONDS);
+			if (frame != null)
+				return frame != END ? frame : null;
+		}
+		return null;
+	}
+
+	void tracked(LiveFrame frame, TrackerState state, long frameInterval) {
+		long latency = System.nanoTime() - frame.captureTime;
+		metrics.record(TrackingMetrics.LATENCY, latency);
+		if (latency > frameInterval)
+			nbLate++;
+		if (listener != null)
+			listener.tracked(frame.slice, state.x, state.y, latency);
+	}
+
+	// reads the stream into the queue until it ends or the tracking stops, then queues END
+	void capture() {
+		try {
+			int slice = 0;
+			ImageProcessor ip;
+			while (!stopped && (ip = stream.nextFrame()) != null) {
+				LiveFrame frame = new LiveFrame(++slice, ip, stream.getCaptureTime());
+				if (policy == BLOCK)
+					queue.put(frame);
+				else if (policy == DROP_NEWEST) {
+					if (!queue.offer(frame))
+						nbDropped++;
+				} else {
+					while (!queue.offer(frame)) {
+						if (queue.poll() != null)
+							nbDropped++;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			return; // the tracking stopped
+		} catch (IOException e) {
+			captureError = e;
+		} catch (RuntimeException e) {
+			captureError = e;
+		}
+		try {
+			while (!stopped && !queue.offer(END, 10, TimeUnit.MILLISECONDS));
+		} catch (InterruptedException e) {
+			// the tracking stopped
+		}
+	}
+
+	// the slices tracked so far, from the capture thread's frame numbers, dropped frames included
+	public TrajectoryStore getTrajectories() {
+		return trajectories;
+	}
+
+	public TrackingMetrics getMetrics() {
+		return metrics;
+	}
+
+	public int getNbDropped() {
+		return nbDropped;
+	}
+
+	// frames whose positions came later than one frame interval after their capture
+	public int getNbLate() {
+		return nbLate;
+	}
+
+	public void log() {
+		metrics.log();
+		IJ.log(String.format("  latency p50 %.2f ms, p99 %.2f ms, max %.2f ms; %d frames dropped, %d later than %.2f ms",
+				metrics.percentile(TrackingMetrics.LATENCY, 0.5)/1e6, metrics.percentile(TrackingMetrics.LATENCY, 0.99)/1e6,
+				metrics.maxima[TrackingMetrics.LATENCY]/1e6, nbDropped, nbLate, 1e3/Math.max(1, params.frameRate)));
+	}
+
+	/* Headless entry point, replaying a video or reading raw frames from the standard input:
+	 * LiveTracker <video, or - for raw frames> <output CSV> [-seeds file] [-fps n] [-queue n] [-policy block|drop-newest|drop-oldest]
+	 *   [-size width height] [-bits n] [-parameters file]
+	 * A video is replayed at the frame rate, raw frames come as fast as they are written.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: LiveTracker <video, or - for raw frames> <output CSV> [-seeds file] [-fps n] [-queue n] [-policy block|drop-newest|drop-oldest] [-size width height] [-bits n] [-parameters file]");
+			System.exit(2);
+		}
+		TrackingParameters params = new TrackingParameters();
+		File seedFile = null;
+		int queueSize = 4, policy = DROP_OLDEST, width = 0, height = 0, bitDepth = 8;
+		double fps = 0;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("-seeds"))
+				seedFile = new File(args[++i]);
+			else if (args[i].equals("-fps"))
+				fps = Double.parseDouble(args[++i]);
+			else if (args[i].equals("-queue"))
+				queueSize = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-policy")) {
+				String name = args[++i];
+				policy = name.equals("block") ? BLOCK : name.equals("drop-newest") ? DROP_NEWEST : DROP_OLDEST;
+			} else if (args[i].equals("-size")) {
+				width = Integer.parseInt(args[++i]);
+				height = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-bits"))
+				bitDepth = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-parameters"))
+				params.load(BatchRunner.readProperties(new File(args[++i])));
+			else {
+				System.err.println("Unknown option "+args[i]);
+				System.exit(2);
+			}
+		}
+		if (fps > 0)
+			params.frameRate = (int) Math.round(fps);
+		if (args[0].equals("-") && width*height == 0) {
+			System.err.println("Raw frames need -size width height");
+			System.exit(2);
+		}
+
+		FrameStream stream = args[0].equals("-") ? new PipeFrameStream(System.in, width, height, bitDepth, true)
+				: new ReplayFrameStream(BatchRunner.openVideo(new File(args[0])), params.frameRate);
+		try {
+			LiveTracker tracker = new LiveTracker(params, stream, queueSize, policy);
+			if (seedFile != null)
+				tracker.setSeeds(BatchRunner.readSeeds(seedFile, new int[1]));
+			tracker.track();
+			tracker.log();
+			ResultsExporter.writeCsv(tracker.getTrajectories(), params.frameRate, new File(args[1]), false);
+		} finally {
+			stream.close();
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,255 @@
+package com.mycompany.imagej;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.awt.Point;
+
+/* Tracks the same video with many combinations of parameters at once, to choose them in one go rather than by trial and error.
+ * The runs share their frames through a SharedFrameSource so that each frame is decoded once for the runs tracking at the same time, and the runs with the same object threshold
+ * and minimal area also share the exclusion masks of the frames through a FrameCache. All of them share the max values of the frames.
+ * Each run is scored by:
+ * - its number of collisions, i.e of times a zf enters one,
+ * - its number of lost zf, i.e for which no dark spot was found in the search circle or only one in an object or on another zf, summed over the slices,
+ * - the smoothness of its trajectories: the mean acceleration of the zf in pixels/slice^2, outside of the collisions. Jumps to another zf raise it.
+ * - its tracking time, which includes waiting for the frames decoded by other runs.
+ * The trajectories themselves are dropped once scored.
+ */
+public class ParameterSweep {
+	// the fields of TrackingParameters which can be swept, in the order the combinations go through them. The frame rate doesn't change the tracking.
+	static final String[] FIELDS = {"objectThreshold", "maximal_area", "zfThreshApprox", "zfSize", "defaultRadius", "collisionHandlerRadius", "collision_dist", "backgroundRate", "foregroundContrast"};
+	static final String REPORT_HEADER = "objectThreshold,maximal_area,zfThreshApprox,zfSize,defaultRadius,collisionHandlerRadius,collision_dist,backgroundRate,foregroundContrast,Collisions,Lost zf,Smoothness,Seconds,Status,Message";
+	SharedFrameSource source;
+	int nbWorkers, startSlice;
+	Point[] seeds;
+	HashMap<String, FrameCache> frameCaches = new HashMap<String, FrameCache>();
+	FrameCache maxima; // the max values, shared by the frame caches
+
+	// the scores of one combination
+	public static class Result {
+		TrackingParameters params;
+		int collisions;
+		long lostFish;
+		double smoothness, seconds;
+		boolean failed;
+		String message = "";
+
+		Result(TrackingParameters params) {
+			this.params = params;
+		}
+	}
+
+	// nbWorkers runs at a time, sharing at most memoryBudget bytes of decoded frames
+	public ParameterSweep(FrameSource source, int nbWorkers, long memoryBudget) {
+		this.source = new SharedFrameSource(source, memoryBudget);
+		this.nbWorkers = Math.max(1, nbWorkers);
+	}
+
+	public void setSeeds(int startSlice, Point[] seeds) {
+		this.startSlice = startSlice;
+		this.seeds = seeds;
+	}
+
+	// progress and failures, printed by default
+	void log(String message) {
+		System.out.println(message);
+	}
+
+	/* Every combination of the values given under the fields' names, e.g defaultRadius=15,20,25, the other fields being those of base.
+	 * The last field varies fastest.
+	 */
+	public static List<TrackingParameters> grid(TrackingParameters base, Properties values) {
+		List<TrackingParameters> combinations = new ArrayList<TrackingParameters>();
+		combinations.add(base.copy());
+		for (String field:FIELDS) {
+			String list = values.getProperty(field);
+			if (list == null || list.trim().isEmpty())
+				continue;
+			List<TrackingParameters> expanded = new ArrayList<TrackingParameters>();
+			for (TrackingParameters combination:combinations) {
+				for (String value:list.split("\\s*[,;]\\s*")) {
+					Properties single = new Properties();
+					single.setProperty(field, value);
+					TrackingParameters params = combination.copy();
+					params.load(single);
+					expanded.add(params);
+				}
+			}
+			combinations = expanded;
+		}
+		return combinations;
+	}
+
+	// the results in the order of the combinations. A failed run is reported without stopping the others.
+	public List<Result> run(List<TrackingParameters> combinations) throws InterruptedException {
+		final List<Result> results = new ArrayList<Result>();
+		for (TrackingParameters params:combinations)
+			results.add(new Result(params));
+		log("ZF Tracking sweep: "+results.size()+" combinations, "+nbWorkers+" at a time");
+
+		ExecutorService workers = Executors.newFixedThreadPool(nbWorkers, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ZF sweep worker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			for (int r = 0; r < results.size(); r++) {
+				final Result result = results.get(r);
+				final int number = r+1;
+				futures.add(workers.submit(new Runnable() {
+					@Override
+					public void run() {
+						track(result);
+						if (result.failed)
+							log("["+number+"/"+results.size()+"] failed: "+result.message);
+						else
+							log(String.format(Locale.ROOT, "[%d/%d] %d collisions, %d lost zf, smoothness %.3f, %.1f s",
+									number, results.size(), result.collisions, result.lostFish, result.smoothness, result.seconds));
+					}
+				}));
+			}
+			for (Future<?> future:futures)
+				future.get();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			workers.shutdownNow();
+		}
+		return results;
+	}
+
+	void track(Result result) {
+		long start = System.nanoTime();
+		try {
+			SharedFrameSource.Reader frames = source.open();
+			TrackingEngine engine = new TrackingEngine(result.params, frames);
+			try {
+				engine.setSeeds(startSlice, seeds);
+				// each run already tracks on 2 threads, its frames are preprocessed on them
+				engine.setPreprocessing(0, 1);
+				engine.setMeasuring(true);
+				engine.setFrameCache(frameCache(result.params));
+				engine.track();
+			} finally {
+				frames.close();
+			}
+			result.seconds = (System.nanoTime()-start)/1e9;
+			score(result, engine.getTrajectories(), engine.getMetrics());
+		} catch (Exception e) {
+			result.failed = true;
+			result.message = e.getMessage() != null ? e.getMessage() : e.toString();
+		} catch (OutOfMemoryError e) {
+			result.failed = true;
+			result.message = "out of memory, give the sweep fewer runs at a time";
+		}
+		if (result.seconds == 0)
+			result.seconds = (System.nanoTime()-start)/1e9;
+	}
+
+	// the masks only depend on the object threshold and minimal area, the max values on nothing so all caches share them. A background model doesn't use the cached masks.
+	synchronized FrameCache frameCache(TrackingParameters params) {
+		if (maxima == null)
+			maxima = new FrameCache(source.getSize());
+		String key = params.objectThreshold+","+params.maximal_area;
+		FrameCache cache = frameCaches.get(key);
+		if (cache == null) {
+			cache = new FrameCache(maxima);
+			frameCaches.put(key, cache);
+		}
+		return cache;
+	}
+
+	static void score(Result result, TrajectoryStore trajectories, TrackingMetrics metrics) {
+		int nbSlices = trajectories.getNbSlices();
+		double acceleration = 0;
+		long nbAccelerations = 0;
+		for (int fish = 0; fish < trajectories.getNbFish(); fish++) {
+			for (int i = 0; i < nbSlices; i++) {
+				if (trajectories.getCollision(fish, i) == 1 && (i == 0 || trajectories.getCollision(fish, i-1) == 0))
+					result.collisions++;
+				if (i == 0 || i == nbSlices-1 || trajectories.getCollision(fish, i-1) == 1 || trajectories.getCollision(fish, i) == 1 || trajectories.getCollision(fish, i+1) == 1)
+					continue;
+				int ax = trajectories.getX(fish, i+1) - 2*trajectories.getX(fish, i) + trajectories.getX(fish, i-1);
+				int ay = trajectories.getY(fish, i+1) - 2*trajectories.getY(fish, i) + trajectories.getY(fish, i-1);
+				acceleration += Math.sqrt(ax*ax + ay*ay);
+				nbAccelerations++;
+			}
+		}
+		result.smoothness = nbAccelerations > 0 ? acceleration/nbAccelerations : 0;
+		for (int lost:metrics.lostFish)
+			result.lostFish += Math.max(0, lost);
+	}
+
+	public static void writeReport(List<Result> results, File file) throws IOException {
+		PrintWriter report = new PrintWriter(file, "US-ASCII");
+		try {
+			report.println(REPORT_HEADER);
+			for (Result result:results) {
+				TrackingParameters p = result.params;
+				report.println(String.format(Locale.ROOT, "%s,%d,%s,%s,%s,%s,%s,%s,%s,%d,%d,%.4f,%.3f,%s,\"%s\"", p.objectThreshold, p.maximal_area, p.zfThreshApprox,
+						p.zfSize, p.defaultRadius, p.collisionHandlerRadius, p.collision_dist, p.backgroundRate, p.foregroundContrast, result.collisions, result.lostFish, result.smoothness,
+						result.seconds, result.failed ? "failed" : "done", result.message.replace("\"", "\"\"")));
+			}
+		} finally {
+			report.close();
+		}
+	}
+
+	/* Headless entry point:
+	 * ParameterSweep <video> <seed file> <report file> [-workers n] [-memory MB] [-parameters file] [-<parameter> value,value,...]
+	 * where each -<parameter> is a field of TrackingParameters, e.g -defaultRadius 15,20,25 -collision_dist 3,5.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: ParameterSweep <video> <seed file> <report file> [-workers n] [-memory MB] [-parameters file] [-<parameter> value,value,...]");
+			System.exit(2);
+		}
+		int nbWorkers = Math.max(1, Runtime.getRuntime().availableProcessors()/2);
+		long memory = Runtime.getRuntime().maxMemory()/2;
+		TrackingParameters base = new TrackingParameters();
+		Properties values = new Properties();
+		for (int i = 3; i < args.length; i++) {
+			if (args[i].equals("-workers"))
+				nbWorkers = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-memory"))
+				memory = Long.parseLong(args[++i]) << 20;
+			else if (args[i].equals("-parameters"))
+				base.load(BatchRunner.readProperties(new File(args[++i])));
+			else if (args[i].startsWith("-") && i+1 < args.length && Arrays.asList(FIELDS).contains(args[i].substring(1)))
+				values.setProperty(args[i].substring(1), args[++i]);
+			else {
+				System.err.println("Unknown option "+args[i]);
+				System.exit(2);
+			}
+		}
+
+		FrameSource source = BatchRunner.openVideo(new File(args[0]));
+		try {
+			int[] startSlice = new int[1];
+			Point[] seeds = BatchRunner.readSeeds(new File(args[1]), startSlice);
+			ParameterSweep sweep = new ParameterSweep(source, nbWorkers, memory);
+			sweep.setSeeds(startSlice[0], seeds);
+			writeReport(sweep.run(grid(base, values)), new File(args[2]));
+		} finally {
+			if (source instanceof Closeable)
+				((Closeable) source).close();
+		}
+		System.exit(0);
+	}
+}
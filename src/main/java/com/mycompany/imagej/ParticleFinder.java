@@ -0,0 +1,68 @@
+package com.mycompany.imagej;
+
+import ij.process.ImageProcessor;
+
+/* Headless stand-in for the ParticleAnalyzer + RoiManager pair which was used to exclude large objects.
+ * Finds the 8-connected groups of pixels with a value in [0, threshold] whose area is at least minArea,
+ * and rasterizes them into an ExclusionMask.
+ */
+public class ParticleFinder {
+	boolean[] visited = new boolean[0];
+	int[] stack = new int[0], particle = new int[0];
+
+	void find(ImageProcessor ip, double threshold, int minArea, ExclusionMask objects) {
+		objects.clear();
+		int w = ip.getWidth(), h = ip.getHeight(), n = w*h;
+		if (visited.length != n) {
+			visited = new boolean[n];
+			stack = new int[n];
+			particle = new int[n];
+		}
+		markBright(ip, threshold);
+
+		for (int start = 0; start < n; start++) {
+			if (visited[start])
+				continue;
+			// flood fill from this pixel
+			int top = 0, area = 0;
+			stack[top++] = start;
+			visited[start] = true;
+			while (top > 0) {
+				int p = stack[--top];
+				particle[area++] = p;
+				int px = p%w, py = p/w;
+				for (int dy = -1; dy <= 1; dy++) {
+					for (int dx = -1; dx <= 1; dx++) {
+						int nx = px+dx, ny = py+dy;
+						if (nx < 0 || ny < 0 || nx >= w || ny >= h)
+							continue;
+						int q = ny*w + nx;
+						if (!visited[q]) {
+							visited[q] = true;
+							stack[top++] = q;
+						}
+					}
+				}
+			}
+			if (area >= minArea)
+				objects.add(particle, area);
+		}
+	}
+
+	/* Marks the pixels above threshold as visited, so that the flood fill only meets the dark ones.
+	 * 8-bit, 16-bit and float frames are compared straight from their pixel arrays by PixelKernels, in their own units. Others go through getf().
+	 */
+	void markBright(ImageProcessor ip, double threshold) {
+		Object pixels = ip.getPixels();
+		if (pixels instanceof byte[])
+			PixelKernels.get().above((byte[]) pixels, PixelKernels.intLimit(threshold, 255), visited);
+		else if (pixels instanceof short[])
+			PixelKernels.get().above((short[]) pixels, PixelKernels.intLimit(threshold, 65535), visited);
+		else if (pixels instanceof float[])
+			PixelKernels.get().above((float[]) pixels, PixelKernels.floatLimit(threshold), visited);
+		else {
+			for (int i = 0; i < visited.length; i++)
+				visited[i] = ip.getf(i) > threshold;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.mycompany.imagej;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/* Raw frames read one after the other from a stream, e.g a pipe from a camera's capture program
+ * (ffmpeg -f rawvideo -pix_fmt gray - for 8-bit frames) or from a named pipe.
+ * Frames are 8-bit, 16-bit unsigned or 32-bit float, without any header. A frame is captured once it is read whole.
+ */
+public class PipeFrameStream implements FrameStream {
+	DataInputStream in;
+	int width, height, bitDepth;
+	ByteBuffer buffer;
+	long captureTime;
+
+	public PipeFrameStream(InputStream in, int width, int height, int bitDepth, boolean littleEndian) {
+		if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+			throw new IllegalArgumentException("Unsupported bit depth: "+bitDepth);
+		this.in = new DataInputStream(in);
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		buffer = ByteBuffer.allocate(width*height*(bitDepth/8));
+		buffer.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	// a frame cut short by the end of the stream ends it too
+	@Override
+	public ImageProcessor nextFrame() throws IOException {
+		try {
+			in.readFully(buffer.array());
+		} catch (EOFException e) {
+			return null;
+		}
+		captureTime = System.nanoTime();
+		buffer.clear();
+		switch (bitDepth) {
+			case 8:
+				return new ByteProcessor(width, height, buffer.array().clone());
+			case 16:
+				short[] shorts = new short[width*height];
+				buffer.asShortBuffer().get(shorts);
+				return new ShortProcessor(width, height, shorts, null);
+			default:
+				float[] floats = new float[width*height];
+				buffer.asFloatBuffer().get(floats);
+				return new FloatProcessor(width, height, floats);
+		}
+	}
+
+	@Override
+	public long getCaptureTime() {
+		return captureTime;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
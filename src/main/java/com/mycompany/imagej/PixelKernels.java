@@ -0,0 +1,130 @@
+package com.mycompany.imagej;
+
+/* The full-frame passes of the tracking over raw pixel arrays: max and min values, histograms, and the pixels above a threshold.
+ * These are plain loops in memory order, which the JIT may unroll but seldom vectorizes. get() returns VectorPixelKernels instead,
+ * the same passes written with the Vector API, when the plugin was built with the vector profile (mvn -Pvector install, needs a JDK 17+)
+ * and the JVM runs with --add-modules jdk.incubator.vector. Else, or with -Dzf.kernels=scalar, these loops are used.
+ * 8-bit and 16-bit values are unsigned, and float values compare as in Java: a NaN is never above nor the max of anything.
+ */
+public class PixelKernels {
+	static final String VECTOR_KERNELS = "com.mycompany.imagej.VectorPixelKernels";
+	static final PixelKernels KERNELS = load();
+
+	public static PixelKernels get() {
+		return KERNELS;
+	}
+
+	// the vector kernels if they were built and their module is there, the scalar ones otherwise
+	static PixelKernels load() {
+		if ("scalar".equals(System.getProperty("zf.kernels")))
+			return new PixelKernels();
+		try {
+			return (PixelKernels) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			return new PixelKernels();
+		} catch (LinkageError e) {
+			// e.g built for a newer JVM, or without the incubator module
+			return new PixelKernels();
+		}
+	}
+
+	public String getName() {
+		return "scalar";
+	}
+
+	public int max(byte[] pixels) {
+		int max = 0;
+		for (int i = 0; i < pixels.length; i++) {
+			if (max < (pixels[i]&0xff))
+				max = pixels[i]&0xff;
+		}
+		return max;
+	}
+
+	public int max(short[] pixels) {
+		int max = 0;
+		for (int i = 0; i < pixels.length; i++) {
+			if (max < (pixels[i]&0xffff))
+				max = pixels[i]&0xffff;
+		}
+		return max;
+	}
+
+	// the first value if none is larger, 0 for no pixels
+	public float max(float[] pixels) {
+		float max = pixels.length > 0 ? pixels[0] : 0;
+		for (int i = 1; i < pixels.length; i++) {
+			if (max < pixels[i])
+				max = pixels[i];
+		}
+		return max;
+	}
+
+	// 255 for no pixels, i.e the identity of min
+	public int min(byte[] pixels) {
+		int min = 255;
+		for (int i = 0; i < pixels.length; i++) {
+			if (min > (pixels[i]&0xff))
+				min = pixels[i]&0xff;
+		}
+		return min;
+	}
+
+	public int min(short[] pixels) {
+		int min = 65535;
+		for (int i = 0; i < pixels.length; i++) {
+			if (min > (pixels[i]&0xffff))
+				min = pixels[i]&0xffff;
+		}
+		return min;
+	}
+
+	public float min(float[] pixels) {
+		float min = pixels.length > 0 ? pixels[0] : 0;
+		for (int i = 1; i < pixels.length; i++) {
+			if (min > pixels[i])
+				min = pixels[i];
+		}
+		return min;
+	}
+
+	// adds the count of each value to counts, of 256 bins
+	public void histogram(byte[] pixels, int[] counts) {
+		for (int i = 0; i < pixels.length; i++)
+			counts[pixels[i]&0xff]++;
+	}
+
+	// adds the count of each value to counts, of 65536 bins
+	public void histogram(short[] pixels, int[] counts) {
+		for (int i = 0; i < pixels.length; i++)
+			counts[pixels[i]&0xffff]++;
+	}
+
+	// above[i] tells whether pixels[i] > limit
+	public void above(byte[] pixels, int limit, boolean[] above) {
+		for (int i = 0; i < pixels.length; i++)
+			above[i] = (pixels[i]&0xff) > limit;
+	}
+
+	public void above(short[] pixels, int limit, boolean[] above) {
+		for (int i = 0; i < pixels.length; i++)
+			above[i] = (pixels[i]&0xffff) > limit;
+	}
+
+	// a float is above a double threshold when it is above floatLimit(threshold)
+	public void above(float[] pixels, float limit, boolean[] above) {
+		for (int i = 0; i < pixels.length; i++)
+			above[i] = pixels[i] > limit;
+	}
+
+	// the largest float which is at most threshold
+	static float floatLimit(double threshold) {
+		float limit = (float) threshold;
+		return limit > threshold ? Math.nextDown(limit) : limit;
+	}
+
+	// integer values are above threshold when they are above its floor, clamped to [-1, max]
+	static int intLimit(double threshold, int max) {
+		return (int) Math.max(-1, Math.min(max, Math.floor(threshold)));
+	}
+}
@@ -0,0 +1,12 @@
+package com.mycompany.imagej;
+
+import ij.process.ImageProcessor;
+
+// what the tracker needs from a frame besides the zf positions: its pixels, its max value and the large objects to exclude
+public class PreprocessedFrame {
+	int slice;
+	ImageProcessor ip;
+	double max;
+	ExclusionMask objects;
+	long maxNanos, particleNanos; // how long the max value and the exclusion mask took to compute
+}
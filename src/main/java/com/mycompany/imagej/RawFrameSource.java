@@ -0,0 +1,137 @@
+package com.mycompany.imagej;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.awt.Rectangle;
+
+/* Reads the frames of an uncompressed raw or TIFF file one at a time, by memory-mapping only the bytes of the asked frame.
+ * Nothing else of the file is kept in memory, so that videos larger than the heap can be tracked.
+ * Frames are 8-bit, 16-bit unsigned or 32-bit float, as given by their bit depth.
+ */
+public class RawFrameSource implements FrameSource, Closeable {
+	FileChannel channel;
+	int width, height, bitDepth, frameSize;
+	long[] offsets;
+	ByteOrder order;
+
+	// a raw file holding nbSlices frames one after the other, after a header of headerSize bytes
+	public RawFrameSource(File file, int width, int height, int bitDepth, int nbSlices, long headerSize, boolean littleEndian) throws IOException {
+		this(file, width, height, bitDepth, contiguousOffsets(headerSize, 0, (long) width*height*(bitDepth/8), nbSlices), littleEndian);
+	}
+
+	RawFrameSource(File file, int width, int height, int bitDepth, long[] offsets, boolean littleEndian) throws IOException {
+		if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+			throw new IllegalArgumentException("Unsupported bit depth: "+bitDepth);
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		this.offsets = offsets;
+		frameSize = width*height*(bitDepth/8);
+		order = littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	// an uncompressed TIFF stack, either with contiguous images (as saved by ImageJ) or one image per directory
+	public static RawFrameSource openTiff(File file) throws IOException {
+		FileInfo[] info = new TiffDecoder(file.getParent(), file.getName()).getTiffInfo();
+		if (info == null || info.length == 0)
+			throw new IOException("Cannot read the TIFF header of "+file);
+		FileInfo fi = info[0];
+		if (fi.compression > FileInfo.COMPRESSION_NONE)
+			throw new IOException(file+" is compressed, it can't be read frame by frame");
+		int bitDepth;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: bitDepth = 8; break;
+			case FileInfo.GRAY16_UNSIGNED: bitDepth = 16; break;
+			case FileInfo.GRAY32_FLOAT: bitDepth = 32; break;
+			default: throw new IOException("Unsupported TIFF pixel type in "+file);
+		}
+		long[] offsets;
+		if (info.length == 1)
+			offsets = contiguousOffsets(fi.getOffset(), fi.gapBetweenImages, (long) fi.width*fi.height*(bitDepth/8), fi.nImages);
+		else {
+			offsets = new long[info.length];
+			for (int i = 0; i < info.length; i++)
+				offsets[i] = info[i].getOffset();
+		}
+		return new RawFrameSource(file, fi.width, fi.height, bitDepth, offsets, fi.intelByteOrder);
+	}
+
+	static long[] contiguousOffsets(long first, long gap, long frameSize, int nbSlices) {
+		long[] offsets = new long[nbSlices];
+		for (int i = 0; i < nbSlices; i++)
+			offsets[i] = first + i*(frameSize+gap);
+		return offsets;
+	}
+
+	@Override
+	public int getSize() {
+		return offsets.length;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	// the mapping is only referenced while copying the frame, so that it is released with it
+	@Override
+	public ImageProcessor getProcessor(int slice) {
+		return getProcessor(slice, new Rectangle(0, 0, width, height));
+	}
+
+	// only the given region of a frame, reading no more than the rows it spans
+	public ImageProcessor getProcessor(int slice, Rectangle region) {
+		int bytesPerPixel = bitDepth/8, w = region.width, h = region.height;
+		MappedByteBuffer buffer;
+		try {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, offsets[slice-1] + (long) region.y*width*bytesPerPixel, (long) h*width*bytesPerPixel);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		buffer.order(order);
+		switch (bitDepth) {
+			case 8:
+				byte[] bytes = new byte[w*h];
+				for (int row = 0; row < h; row++) {
+					buffer.position(row*width + region.x);
+					buffer.get(bytes, row*w, w);
+				}
+				return new ByteProcessor(w, h, bytes);
+			case 16:
+				short[] shorts = new short[w*h];
+				for (int row = 0; row < h; row++)
+					((ByteBuffer) buffer.position(2*(row*width + region.x))).asShortBuffer().get(shorts, row*w, w);
+				return new ShortProcessor(w, h, shorts, null);
+			default:
+				float[] floats = new float[w*h];
+				for (int row = 0; row < h; row++)
+					((ByteBuffer) buffer.position(4*(row*width + region.x))).asFloatBuffer().get(floats, row*w, w);
+				return new FloatProcessor(w, h, floats);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,56 @@
+package com.mycompany.imagej;
+
+import ij.process.ImageProcessor;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/* Replays the frames of a recorded video as if they were captured live at a fixed frame rate, e.g to try LiveTracker without a camera.
+ * Frame n is captured n-1 frame intervals after the first one, whether or not it is asked for in time:
+ * when the tracking falls behind, frames are given at once but keep their capture time, as a camera buffering them would.
+ */
+public class ReplayFrameStream implements FrameStream {
+	FrameSource source;
+	long frameInterval, firstCapture, captureTime;
+	int nextSlice = 1;
+
+	// 0 frames per second gives the frames as fast as they are asked for
+	public ReplayFrameStream(FrameSource source, double framesPerSecond) {
+		this.source = source;
+		frameInterval = framesPerSecond > 0 ? (long) (1e9/framesPerSecond) : 0;
+	}
+
+	@Override
+	public int getWidth() {
+		return source.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return source.getHeight();
+	}
+
+	@Override
+	public ImageProcessor nextFrame() throws InterruptedException {
+		if (nextSlice > source.getSize())
+			return null;
+		if (nextSlice == 1)
+			firstCapture = System.nanoTime();
+		captureTime = frameInterval > 0 ? firstCapture + (nextSlice-1)*frameInterval : System.nanoTime();
+		long wait = captureTime - System.nanoTime();
+		if (wait > 0)
+			Thread.sleep(wait/1000000, (int) (wait%1000000));
+		return source.getProcessor(nextSlice++);
+	}
+
+	@Override
+	public long getCaptureTime() {
+		return captureTime;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (source instanceof Closeable)
+			((Closeable) source).close();
+	}
+}
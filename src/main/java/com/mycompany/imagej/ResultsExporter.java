@@ -0,0 +1,126 @@
+package com.mycompany.imagej;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/* Writes the tracking results straight to files instead of filling a ResultsTable cell by cell.
+ * The CSV has one row per zf and slice: Zebrafish, Slice, X, Y, Speed, Collision, as the results table used to.
+ * The binary file is columnar, big-endian: the int magic "ZFRS", nbFish, nbSlices and frameRate,
+ * then for each zf its X column and its Y column as ints, its speed column as floats and its collision flags packed 8 to a byte.
+ * Both can be gzipped. The summaries per zf and the bouts are left to BehaviourAnalytics.
+ */
+public class ResultsExporter {
+	static final int MAGIC = 0x5a465253; // "ZFRS"
+	static final String HEADER = "Zebrafish,Slice,X,Y,Speed (pixels/s),Collision\n";
+	static final int BUFFER_SIZE = 1 << 16;
+
+	public static void writeCsv(TrajectoryStore trajectories, int frameRate, File file, boolean gzip) throws IOException {
+		Writer writer = csvWriter(file, gzip);
+		try {
+			StringBuilder line = new StringBuilder(64);
+			for (int zf = 0; zf < trajectories.getNbFish(); zf++) {
+				for (int slice = 0; slice < trajectories.getNbSlices(); slice++) {
+					appendRow(line, zf, slice, trajectories.getX(zf, slice), trajectories.getY(zf, slice),
+							trajectories.speed(zf, slice, frameRate), trajectories.getCollision(zf, slice));
+					writer.append(line);
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	// same from a trajectory file written while tracking, read one slice at a time. Rows are then ordered by slice.
+	public static void writeCsv(TrajectoryFile.Reader reader, int frameRate, File file, boolean gzip) throws IOException {
+		int nbFish = reader.getNbFish();
+		int[] row = new int[3*nbFish], previous = new int[3*nbFish];
+		Writer writer = csvWriter(file, gzip);
+		try {
+			StringBuilder line = new StringBuilder(64);
+			for (int slice = 0; slice < reader.getNbSlices(); slice++) {
+				reader.readRow(slice, row);
+				for (int zf = 0; zf < nbFish; zf++) {
+					int x = row[3*zf], y = row[3*zf+1], dx = x-previous[3*zf], dy = y-previous[3*zf+1];
+					double speed = slice > 0 ? TrajectoryStore.speed(Math.sqrt(dx*dx+dy*dy), frameRate) : 0;
+					appendRow(line, zf, slice, x, y, speed, row[3*zf+2]);
+					writer.append(line);
+				}
+				int[] swap = previous; previous = row; row = swap;
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	public static void writeBinary(TrajectoryStore trajectories, int frameRate, File file, boolean gzip) throws IOException {
+		int nbFish = trajectories.getNbFish(), nbSlices = trajectories.getNbSlices();
+		DataOutputStream out = new DataOutputStream(outputStream(file, gzip));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(nbFish);
+			out.writeInt(nbSlices);
+			out.writeInt(frameRate);
+			for (int zf = 0; zf < nbFish; zf++) {
+				for (int slice = 0; slice < nbSlices; slice++)
+					out.writeInt(trajectories.getX(zf, slice));
+				for (int slice = 0; slice < nbSlices; slice++)
+					out.writeInt(trajectories.getY(zf, slice));
+				for (int slice = 0; slice < nbSlices; slice++)
+					out.writeFloat((float) trajectories.speed(zf, slice, frameRate));
+				int bits = 0;
+				for (int slice = 0; slice < nbSlices; slice++) {
+					bits |= trajectories.getCollision(zf, slice) << (slice & 7);
+					if ((slice & 7) == 7 || slice == nbSlices-1) {
+						out.writeByte(bits);
+						bits = 0;
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	static Writer csvWriter(File file, boolean gzip) throws IOException {
+		return csvWriter(file, gzip, HEADER);
+	}
+
+	static Writer csvWriter(File file, boolean gzip, String header) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream(file, gzip), StandardCharsets.US_ASCII), BUFFER_SIZE);
+		writer.write(header);
+		return writer;
+	}
+
+	static OutputStream outputStream(File file, boolean gzip) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		return gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : new BufferedOutputStream(out, BUFFER_SIZE);
+	}
+
+	// fills line with one CSV row, numbering zf and slices from 1 and writing the speed with 4 decimals
+	static void appendRow(StringBuilder line, int zf, int slice, int x, int y, double speed, int collision) {
+		line.setLength(0);
+		line.append(zf+1).append(',').append(slice+1).append(',').append(x).append(',').append(y).append(',');
+		appendFixed(line, speed);
+		line.append(',').append(collision).append('\n');
+	}
+
+	static void appendFixed(StringBuilder line, double value) {
+		long scaled = Math.round(Math.abs(value)*10000);
+		if (value < 0 && scaled != 0)
+			line.append('-');
+		line.append(scaled/10000).append('.');
+		long decimals = scaled%10000;
+		for (long d = 1000; d > 1 && decimals < d; d /= 10)
+			line.append('0');
+		line.append(decimals);
+	}
+}
@@ -0,0 +1,150 @@
+package com.mycompany.imagej;
+
+import ij.process.ImageProcessor;
+
+import java.awt.Point;
+import java.util.Arrays;
+
+/* Finds the zf on a frame without any click: the local minima of the frame which are dark enough, outside large objects
+ * and at least minSeparation apart, the darkest one winning when two are closer.
+ * Dark enough means at most the object threshold by default: zf are darker than it but smaller than the large objects.
+ * Can also look for the start slice, i.e the one on which the expected number of zf is found and best separated.
+ */
+public class SeedDetector {
+	TrackingParameters params;
+	double threshold, minSeparation;
+	int stride;
+	ParticleFinder particles = new ParticleFinder();
+	ExclusionMask objects;
+
+	// what was found on a slice, ready for TrackingEngine.setSeeds(startSlice, seeds, zfThreshold)
+	public static class Result {
+		public int startSlice;
+		public Point[] seeds;
+		public double zfThreshold;
+		public double separation; // smallest distance between two seeds
+	}
+
+	public SeedDetector(TrackingParameters params) {
+		this.params = params;
+		threshold = params.objectThreshold;
+		minSeparation = Math.max(1, params.zfSize);
+		// one slice a second: a start slice a few frames off the best one tracks as well, for a fraction of the full passes
+		stride = Math.max(1, params.frameRate);
+	}
+
+	public void setThreshold(double threshold) {
+		this.threshold = threshold;
+	}
+
+	public void setMinSeparation(double minSeparation) {
+		this.minSeparation = minSeparation;
+	}
+
+	// findStart() only looks at every stride-th slice, every frameRate-th by default
+	public void setStride(int stride) {
+		this.stride = Math.max(1, stride);
+	}
+
+	// the seeds of one slice
+	public Result detect(FrameSource source, int slice) {
+		ImageProcessor ip = source.getProcessor(slice);
+		Result result = new Result();
+		result.startSlice = slice;
+		result.seeds = detect(ip);
+		result.separation = separation(result.seeds);
+		result.zfThreshold = TrackingEngine.seedThreshold(ip, result.seeds, params.defaultRadius);
+		return result;
+	}
+
+	/* The slice whose seeds are the closest in number to expected, the best separated one among those.
+	 * null if no zf is found on any slice.
+	 */
+	public Result findStart(FrameSource source, int expected) {
+		Point[] best = null;
+		int bestSlice = 0;
+		double bestSeparation = 0;
+		for (int slice = 1; slice <= source.getSize(); slice += stride) {
+			Point[] seeds = detect(source.getProcessor(slice));
+			if (seeds.length == 0)
+				continue;
+			double separation = separation(seeds);
+			int error = Math.abs(seeds.length-expected);
+			if (best == null || error < Math.abs(best.length-expected) || (error == Math.abs(best.length-expected) && separation > bestSeparation)) {
+				best = seeds;
+				bestSlice = slice;
+				bestSeparation = separation;
+			}
+		}
+		if (best == null)
+			return null;
+		Result result = new Result();
+		result.startSlice = bestSlice;
+		result.seeds = best;
+		result.separation = bestSeparation;
+		result.zfThreshold = TrackingEngine.seedThreshold(source.getProcessor(bestSlice), best, params.defaultRadius);
+		return result;
+	}
+
+	// local minima over their 8 neighbours, at most threshold and not in a large object, kept darkest first if far enough from the kept ones
+	public Point[] detect(ImageProcessor ip) {
+		int w = ip.getWidth(), h = ip.getHeight();
+		if (objects == null || objects.width != w || objects.height != h)
+			objects = new ExclusionMask(w, h);
+		particles.find(ip, threshold, params.maximal_area, objects);
+
+		int[] candidates = new int[64];
+		int nbCandidates = 0;
+		for (int y = 1; y < h-1; y++) {
+			for (int x = 1; x < w-1; x++) {
+				int i = y*w + x;
+				float value = ip.getf(i);
+				if (value > threshold || !isLocalMin(ip, i, w, value) || objects.contains(x, y))
+					continue;
+				if (nbCandidates == candidates.length)
+					candidates = Arrays.copyOf(candidates, 2*nbCandidates);
+				candidates[nbCandidates++] = i;
+			}
+		}
+
+		// darkest first, then in reading order
+		long[] sorted = new long[nbCandidates];
+		for (int c = 0; c < nbCandidates; c++)
+			sorted[c] = ((long) sortableBits(ip.getf(candidates[c])) << 32) | candidates[c];
+		Arrays.sort(sorted);
+
+		CircleGrid kept = new CircleGrid(w, h, 2*minSeparation);
+		Point[] seeds = new Point[nbCandidates];
+		int nbSeeds = 0;
+		for (long key:sorted) {
+			int i = (int) key;
+			Point p = new Point(i%w, i/w);
+			if (!kept.contains(p.x, p.y)) {
+				kept.add(p);
+				seeds[nbSeeds++] = p;
+			}
+		}
+		return Arrays.copyOf(seeds, nbSeeds);
+	}
+
+	static boolean isLocalMin(ImageProcessor ip, int i, int w, float value) {
+		return value <= ip.getf(i-w-1) && value <= ip.getf(i-w) && value <= ip.getf(i-w+1)
+				&& value <= ip.getf(i-1) && value <= ip.getf(i+1)
+				&& value <= ip.getf(i+w-1) && value <= ip.getf(i+w) && value <= ip.getf(i+w+1);
+	}
+
+	// an int which orders as the float does, negative values included
+	static int sortableBits(float value) {
+		int bits = Float.floatToIntBits(value);
+		return bits >= 0 ? bits : bits ^ Integer.MAX_VALUE;
+	}
+
+	static double separation(Point[] seeds) {
+		double min = Double.MAX_VALUE;
+		for (int i = 0; i < seeds.length; i++) {
+			for (int j = i+1; j < seeds.length; j++)
+				min = Math.min(min, seeds[i].distance(seeds[j]));
+		}
+		return seeds.length > 1 ? min : 0;
+	}
+}
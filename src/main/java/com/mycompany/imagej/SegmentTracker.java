@@ -0,0 +1,434 @@
+package com.mycompany.imagej;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.awt.Point;
+
+/* Tracks a long video as time segments tracked all at the same time, then joins them, e.g hours of recording on many cores.
+ * The video is cut into segments of segmentLength slices, each overlapping the next one by overlap slices.
+ * The segment holding the start slice is seeded with the seeds. Each other one is seeded by a SeedDetector, for the same number of zf,
+ * on the best slice of its overlap with its neighbour towards the start slice.
+ * If no zf is found there, the whole segment is searched, and if none is found either, the segment starts from the positions its
+ * neighbour ends (or starts) the overlap with, once that one is tracked. These are counted by getNbSeededFromNeighbours().
+ * Each segment has its own TrackingEngine on a SubstackFrameSource, tracking it forward and backward from its seeds. The passes of all
+ * segments run on a fork-join pool, preprocessing their frames themselves, as the arenas of an ArenaTracker do.
+ * Segments are joined outwards from the start one: the zf of two neighbours are matched by how much of their overlap they spend apart,
+ * i.e further than the zf size and collision distance, the total being minimal. A mean distance would be thrown off by an identity swap
+ * within the overlap. Each zf switches from one segment to the next on the slice of the overlap where both are closest.
+ * A zf never together with any zf of the next segment, e.g one lost onto another zf, is matched to the nearest zf left in it if any,
+ * else stays where it was last seen up to the end (or the start) of the video. These are counted by getNbUnmatched().
+ */
+public class SegmentTracker {
+	TrackingParameters params;
+	FrameSource source;
+	Point[] seeds;
+	int startSlice, segmentLength, overlap = 50, parallelism = Runtime.getRuntime().availableProcessors(), nbUnmatched, nbSeededFromNeighbours;
+	Segment[] segments;
+	TrajectoryStore trajectories;
+
+	// slices are those of the video, indices of global fish those of the seeds
+	static class Segment {
+		int first, last, seedSlice;
+		Point[] seeds;
+		double zfThreshold;
+		TrackingEngine engine;
+		TrackingPass[] passes;
+		TrajectoryStore trajectories;
+		int[] local; // the segment's zf of each global one, -1 if none
+		int[] from, to; // the slice indices each global zf is taken from this segment for, both included
+
+		Segment(int first, int last, int nbFish) {
+			this.first = first;
+			this.last = last;
+			local = new int[nbFish];
+			from = new int[nbFish];
+			to = new int[nbFish];
+			Arrays.fill(local, -1);
+		}
+	}
+
+	public SegmentTracker(TrackingParameters params, FrameSource source) {
+		this.params = params;
+		this.source = source;
+	}
+
+	public void setSeeds(int startSlice, Point[] seeds) {
+		this.startSlice = startSlice;
+		this.seeds = seeds;
+	}
+
+	// 0 for as many segments as threads. A segment is at least twice as long as the overlap.
+	public void setSegments(int segmentLength, int overlap) {
+		this.segmentLength = segmentLength;
+		this.overlap = Math.max(1, overlap);
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public void track() {
+		int nbSlices = source.getSize(), n = seeds.length;
+		int length = segmentLength > 0 ? segmentLength : (nbSlices + overlap*(parallelism-1) + parallelism-1)/parallelism;
+		length = Math.max(length, 2*overlap);
+		List<Segment> list = new ArrayList<Segment>();
+		for (int first = 1; ; first += length-overlap) {
+			int last = Math.min(nbSlices, first+length-1);
+			list.add(new Segment(first, last, n));
+			if (last == nbSlices)
+				break;
+		}
+		segments = list.toArray(new Segment[0]);
+		int start = 0;
+		while (segments[start].last < startSlice)
+			start++;
+		segments[start].seedSlice = startSlice;
+		segments[start].seeds = seeds;
+
+		final List<ForkJoinTask<?>> detections = new ArrayList<ForkJoinTask<?>>();
+		for (int s = 0; s < segments.length; s++) {
+			if (s == start)
+				continue;
+			// the overlap with the neighbour towards the start segment
+			final Segment segment = segments[s];
+			final int windowFirst = s > start ? segment.first : segments[s+1].first, windowLast = s > start ? segments[s-1].last : segment.last;
+			detections.add(ForkJoinTask.adapt(new Runnable() {
+				@Override
+				public void run() {
+					detect(segment, windowFirst, windowLast);
+				}
+			}));
+		}
+		runAll(detections);
+
+		// segments left without seeds start from their neighbour towards the start segment, once it is tracked
+		nbSeededFromNeighbours = 0;
+		List<Segment> wave = new ArrayList<Segment>();
+		for (Segment segment:segments) {
+			if (segment.seeds != null)
+				wave.add(segment);
+		}
+		while (!wave.isEmpty()) {
+			trackAll(wave);
+			wave.clear();
+			for (int s = 0; s < segments.length; s++) {
+				Segment segment = segments[s], neighbour = s > start ? segments[s-1] : s < start ? segments[s+1] : null;
+				if (segment.engine == null && neighbour != null && neighbour.engine != null) {
+					seedFrom(segment, neighbour, s > start);
+					wave.add(segment);
+				}
+			}
+		}
+		for (Segment segment:segments) {
+			if (segment.engine == null)
+				throw new IllegalStateException("No zf to start the segment of slices "+segment.first+"-"+segment.last+" from");
+		}
+		join(start);
+	}
+
+	// tracks the given segments at the same time
+	void trackAll(List<Segment> list) {
+		final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+		for (Segment segment:list) {
+			segment.engine = new TrackingEngine(params, new SubstackFrameSource(source, segment.first, segment.last));
+			if (segment.seeds == seeds || segment.zfThreshold == 0)
+				segment.engine.setSeeds(segment.seedSlice-segment.first+1, segment.seeds);
+			else
+				segment.engine.setSeeds(segment.seedSlice-segment.first+1, segment.seeds, segment.zfThreshold);
+			segment.engine.setPreprocessing(0, 1);
+			segment.trajectories = new TrajectoryStore(segment.seeds.length, segment.last-segment.first+1);
+			segment.passes = segment.engine.createPasses(segment.trajectories, 0);
+			for (TrackingPass pass:segment.passes)
+				tasks.add(ForkJoinTask.adapt(pass));
+		}
+		runAll(tasks);
+		for (Segment segment:list)
+			segment.engine.finishPasses(segment.passes);
+	}
+
+	// seeds the segment with the zf of its neighbour on the last slice of their overlap if forward, the first one else
+	void seedFrom(Segment segment, Segment neighbour, boolean forward) {
+		int slice = forward ? neighbour.last : neighbour.first, n = neighbour.trajectories.getNbFish();
+		Point[] points = new Point[n];
+		for (int fish = 0; fish < n; fish++)
+			points[fish] = new Point(neighbour.trajectories.getX(fish, slice-neighbour.first), neighbour.trajectories.getY(fish, slice-neighbour.first));
+		segment.seedSlice = slice;
+		segment.seeds = points;
+		segment.zfThreshold = 0;
+		nbSeededFromNeighbours++;
+	}
+
+	// the seeds of a segment, found on the best slice of the given window
+	void detect(Segment segment, int windowFirst, int windowLast) {
+		SeedDetector detector = new SeedDetector(params);
+		detector.setStride(Math.max(1, (windowLast-windowFirst+1)/8));
+		SeedDetector.Result result = detector.findStart(new SubstackFrameSource(source, windowFirst, windowLast), seeds.length);
+		if (result == null) {
+			// none in the overlap, the whole segment is searched
+			windowFirst = segment.first;
+			windowLast = segment.last;
+			detector.setStride(Math.max(1, (windowLast-windowFirst+1)/8));
+			result = detector.findStart(new SubstackFrameSource(source, windowFirst, windowLast), seeds.length);
+		}
+		if (result == null)
+			return; // seeded from its neighbour once that one is tracked
+		segment.seedSlice = windowFirst+result.startSlice-1;
+		segment.seeds = result.seeds;
+		segment.zfThreshold = result.zfThreshold;
+	}
+
+	void runAll(final List<ForkJoinTask<?>> tasks) {
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// matches the segments outwards from the start one, then writes each zf from the segments it was matched in
+	void join(int start) {
+		int n = seeds.length, nbSlices = source.getSize();
+		Segment first = segments[start];
+		for (int fish = 0; fish < n; fish++) {
+			first.local[fish] = fish;
+			first.from[fish] = first.first-1;
+			first.to[fish] = first.last-1;
+		}
+		nbUnmatched = 0;
+		for (int s = start+1; s < segments.length; s++)
+			match(segments[s-1], segments[s], true);
+		for (int s = start-1; s >= 0; s--)
+			match(segments[s+1], segments[s], false);
+
+		trajectories = new TrajectoryStore(n, nbSlices);
+		for (int fish = 0; fish < n; fish++) {
+			int firstIndex = nbSlices, lastIndex = -1;
+			for (Segment segment:segments) {
+				int local = segment.local[fish];
+				if (local < 0)
+					continue;
+				for (int index = segment.from[fish]; index <= segment.to[fish]; index++) {
+					int i = index-segment.first+1;
+					trajectories.setPosition(fish, index, segment.trajectories.getX(local, i), segment.trajectories.getY(local, i));
+					trajectories.setCollision(fish, index, segment.trajectories.getCollision(local, i));
+				}
+				firstIndex = Math.min(firstIndex, segment.from[fish]);
+				lastIndex = Math.max(lastIndex, segment.to[fish]);
+			}
+			// where it wasn't matched, the zf stays where it was last seen
+			for (int index = firstIndex-1; index >= 0; index--)
+				trajectories.setPosition(fish, index, trajectories.getX(fish, index+1), trajectories.getY(fish, index+1));
+			for (int index = lastIndex+1; index < nbSlices; index++)
+				trajectories.setPosition(fish, index, trajectories.getX(fish, index-1), trajectories.getY(fish, index-1));
+		}
+	}
+
+	/* Matches the zf of next, the neighbour of known after it if forward, before it else, to the global zf known has.
+	 * Each matched zf is taken from known up to (forward) or from (backward) the slice of the overlap where both are closest, and from next beyond.
+	 */
+	void match(Segment known, Segment next, boolean forward) {
+		int n = seeds.length;
+		int[] tracked = new int[n];
+		int nbTracked = 0;
+		for (int fish = 0; fish < n; fish++) {
+			if (known.local[fish] >= 0)
+				tracked[nbTracked++] = fish;
+		}
+		int nbNext = next.trajectories != null ? next.trajectories.getNbFish() : 0;
+		int lo = Math.max(known.first, next.first)-1, hi = Math.min(known.last, next.last)-1;
+		/* The share of the overlap on which two zf are apart, i.e not on the same dark spot, then their mean distance to break ties
+		 * between zf which are never together, e.g a zf lost onto another one in known and the zf it lost in next.
+		 * No zf of next costs more than any.
+		 */
+		double together = Math.max(params.zfSize, params.collision_dist), diagonal = Math.hypot(source.getWidth(), source.getHeight());
+		int size = Math.max(nbTracked, nbNext);
+		double[][] cost = new double[size][size];
+		for (double[] row:cost)
+			Arrays.fill(row, 2);
+		for (int t = 0; t < nbTracked; t++) {
+			for (int z = 0; z < nbNext; z++) {
+				int fish = known.local[tracked[t]];
+				cost[t][z] = apart(known, fish, next, z, lo, hi, together) + 1e-3*meanDistance(known, fish, next, z, lo, hi)/diagonal;
+			}
+		}
+		int[] assignment = assign(cost);
+		for (int t = 0; t < nbTracked; t++) {
+			int fish = tracked[t], z = assignment[t];
+			if (cost[t][z] >= 1)
+				nbUnmatched++;
+			if (z >= nbNext)
+				continue;
+			int cut = closest(known, known.local[fish], next, z, lo, hi);
+			next.local[fish] = z;
+			if (forward) {
+				known.to[fish] = cut;
+				next.from[fish] = cut+1;
+				next.to[fish] = next.last-1;
+			} else {
+				known.from[fish] = cut+1;
+				next.from[fish] = next.first-1;
+				next.to[fish] = cut;
+			}
+		}
+	}
+
+	static double meanDistance(Segment a, int fishA, Segment b, int fishB, int lo, int hi) {
+		double sum = 0;
+		for (int index = lo; index <= hi; index++)
+			sum += distance(a, fishA, b, fishB, index);
+		return sum/(hi-lo+1);
+	}
+
+	static double apart(Segment a, int fishA, Segment b, int fishB, int lo, int hi, double together) {
+		int nbApart = 0;
+		for (int index = lo; index <= hi; index++)
+			nbApart += distance(a, fishA, b, fishB, index) > together ? 1 : 0;
+		return nbApart/(double) (hi-lo+1);
+	}
+
+	// the slice index of the overlap where both are closest, the first one if several
+	static int closest(Segment a, int fishA, Segment b, int fishB, int lo, int hi) {
+		int best = lo;
+		double bestDistance = Double.MAX_VALUE;
+		for (int index = lo; index <= hi; index++) {
+			double d = distance(a, fishA, b, fishB, index);
+			if (d < bestDistance) {
+				bestDistance = d;
+				best = index;
+			}
+		}
+		return best;
+	}
+
+	static double distance(Segment a, int fishA, Segment b, int fishB, int index) {
+		int i = index-a.first+1, j = index-b.first+1;
+		double dx = a.trajectories.getX(fishA, i) - b.trajectories.getX(fishB, j), dy = a.trajectories.getY(fishA, i) - b.trajectories.getY(fishB, j);
+		return Math.sqrt(dx*dx + dy*dy);
+	}
+
+	/* The column of each row of a square cost matrix for which the total cost is minimal, with the Hungarian algorithm in O(n^3).
+	 * u and v are the potentials of the rows and columns, p the row of each column and way the previous column on the augmenting path.
+	 */
+	static int[] assign(double[][] cost) {
+		int n = cost.length;
+		double[] u = new double[n+1], v = new double[n+1], minv = new double[n+1];
+		int[] p = new int[n+1], way = new int[n+1];
+		boolean[] used = new boolean[n+1];
+		for (int i = 1; i <= n; i++) {
+			p[0] = i;
+			int j0 = 0;
+			Arrays.fill(minv, Double.POSITIVE_INFINITY);
+			Arrays.fill(used, false);
+			do {
+				used[j0] = true;
+				int i0 = p[j0], j1 = 0;
+				double delta = Double.POSITIVE_INFINITY;
+				for (int j = 1; j <= n; j++) {
+					if (used[j])
+						continue;
+					double reduced = cost[i0-1][j-1] - u[i0] - v[j];
+					if (reduced < minv[j]) {
+						minv[j] = reduced;
+						way[j] = j0;
+					}
+					if (minv[j] < delta) {
+						delta = minv[j];
+						j1 = j;
+					}
+				}
+				for (int j = 0; j <= n; j++) {
+					if (used[j]) {
+						u[p[j]] += delta;
+						v[j] -= delta;
+					} else
+						minv[j] -= delta;
+				}
+				j0 = j1;
+			} while (p[j0] != 0);
+			do {
+				int j1 = way[j0];
+				p[j0] = p[j1];
+				j0 = j1;
+			} while (j0 != 0);
+		}
+		int[] assignment = new int[n];
+		for (int j = 1; j <= n; j++)
+			assignment[p[j]-1] = j-1;
+		return assignment;
+	}
+
+	public TrajectoryStore getTrajectories() {
+		return trajectories;
+	}
+
+	public int getNbSegments() {
+		return segments != null ? segments.length : 0;
+	}
+
+	// zf never together with the zf they were matched to at a segment boundary, or matched to none, summed over the boundaries
+	public int getNbUnmatched() {
+		return nbUnmatched;
+	}
+
+	// segments in which no zf was found, started from their neighbour's zf instead
+	public int getNbSeededFromNeighbours() {
+		return nbSeededFromNeighbours;
+	}
+
+	/* Headless entry point:
+	 * SegmentTracker <video> <seed file> <output CSV> [-segment slices] [-overlap slices] [-threads n] [-parameters file]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: SegmentTracker <video> <seed file> <output CSV> [-segment slices] [-overlap slices] [-threads n] [-parameters file]");
+			System.exit(2);
+		}
+		TrackingParameters params = new TrackingParameters();
+		int length = 0, overlap = 50, threads = Runtime.getRuntime().availableProcessors();
+		for (int i = 3; i < args.length; i++) {
+			if (args[i].equals("-segment"))
+				length = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-overlap"))
+				overlap = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-parameters"))
+				params.load(BatchRunner.readProperties(new File(args[++i])));
+			else {
+				System.err.println("Unknown option "+args[i]);
+				System.exit(2);
+			}
+		}
+
+		FrameSource source = BatchRunner.openVideo(new File(args[0]));
+		try {
+			int[] startSlice = new int[1];
+			Point[] seeds = BatchRunner.readSeeds(new File(args[1]), startSlice);
+			SegmentTracker tracker = new SegmentTracker(params, source);
+			tracker.setSeeds(startSlice[0], seeds);
+			tracker.setSegments(length, overlap);
+			tracker.setParallelism(threads);
+			long start = System.nanoTime();
+			tracker.track();
+			System.out.println(String.format("ZF Tracking: %d slices in %d segments, %.1f s, %d zf unmatched at segment boundaries, %d segments seeded from their neighbours",
+					source.getSize(), tracker.getNbSegments(), (System.nanoTime()-start)/1e9, tracker.getNbUnmatched(), tracker.getNbSeededFromNeighbours()));
+			ResultsExporter.writeCsv(tracker.getTrajectories(), params.frameRate, new File(args[2]), false);
+		} finally {
+			if (source instanceof Closeable)
+				((Closeable) source).close();
+		}
+		System.exit(0);
+	}
+}
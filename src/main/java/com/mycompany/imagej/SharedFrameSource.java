@@ -0,0 +1,156 @@
+package com.mycompany.imagej;
+
+import ij.process.ImageProcessor;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* The frames of another source decoded once and kept for all the runs reading them at the same time, e.g those of a ParameterSweep.
+ * A frame is decoded by the first run asking for it, the others waiting for it instead of decoding it again.
+ * Each run reads through its own Reader, which knows the slices it went through: runs track out from the start slice, so these are one span.
+ * A frame is let go of once every open reader went through it, so the frames kept are those between the fastest and the slowest runs.
+ * When the memory budget is spent anyway, further frames are read from the source each time until some are let go of.
+ * The tracking never writes to the frames, so they are shared as they are.
+ */
+public class SharedFrameSource implements FrameSource {
+	FrameSource source;
+	AtomicReferenceArray<FutureTask<ImageProcessor>> frames;
+	long frameSize, memoryBudget;
+	AtomicLong kept = new AtomicLong();
+	List<Reader> readers = new ArrayList<Reader>();
+
+	// the frames as one run reads them, to be closed once the run is done
+	public class Reader implements FrameSource, Closeable {
+		int first = Integer.MAX_VALUE, last = 0; // the span of slices read so far
+
+		@Override
+		public int getSize() {
+			return source.getSize();
+		}
+
+		@Override
+		public int getWidth() {
+			return source.getWidth();
+		}
+
+		@Override
+		public int getHeight() {
+			return source.getHeight();
+		}
+
+		@Override
+		public ImageProcessor getProcessor(int slice) {
+			ImageProcessor ip = SharedFrameSource.this.getProcessor(slice);
+			read(this, slice);
+			return ip;
+		}
+
+		boolean passed(int slice) {
+			return slice >= first && slice <= last;
+		}
+
+		@Override
+		public void close() {
+			SharedFrameSource.this.close(this);
+		}
+	}
+
+	public SharedFrameSource(FrameSource source, long memoryBudget) {
+		this.source = source;
+		this.memoryBudget = memoryBudget;
+		frames = new AtomicReferenceArray<FutureTask<ImageProcessor>>(source.getSize());
+		frameSize = (long) source.getWidth()*source.getHeight()*(source.getProcessor(1).getBitDepth()/8);
+	}
+
+	@Override
+	public int getSize() {
+		return source.getSize();
+	}
+
+	@Override
+	public int getWidth() {
+		return source.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return source.getHeight();
+	}
+
+	@Override
+	public ImageProcessor getProcessor(final int slice) {
+		FutureTask<ImageProcessor> frame = frames.get(slice-1);
+		if (frame == null) {
+			if (kept.addAndGet(frameSize) > memoryBudget) {
+				kept.addAndGet(-frameSize);
+				return source.getProcessor(slice);
+			}
+			FutureTask<ImageProcessor> decoding = new FutureTask<ImageProcessor>(new Callable<ImageProcessor>() {
+				@Override
+				public ImageProcessor call() {
+					return source.getProcessor(slice);
+				}
+			});
+			if (frames.compareAndSet(slice-1, null, decoding)) {
+				decoding.run();
+				frame = decoding;
+			} else {
+				// another run started decoding it first
+				kept.addAndGet(-frameSize);
+				frame = frames.get(slice-1);
+			}
+		}
+		try {
+			return frame.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	public synchronized Reader open() {
+		Reader reader = new Reader();
+		readers.add(reader);
+		return reader;
+	}
+
+	synchronized void read(Reader reader, int slice) {
+		reader.first = Math.min(reader.first, slice);
+		reader.last = Math.max(reader.last, slice);
+		release(slice);
+	}
+
+	// the frames the closed reader hadn't read may now be behind all the others
+	synchronized void close(Reader reader) {
+		if (!readers.remove(reader))
+			return;
+		for (int slice = 1; slice <= source.getSize(); slice++)
+			release(slice);
+	}
+
+	// lets go of a frame once every open reader went through it
+	void release(int slice) {
+		FutureTask<ImageProcessor> frame = frames.get(slice-1);
+		if (frame == null || !frame.isDone())
+			return;
+		for (Reader reader:readers) {
+			if (!reader.passed(slice))
+				return;
+		}
+		if (frames.compareAndSet(slice-1, frame, null))
+			kept.addAndGet(-frameSize);
+	}
+
+	// bytes of the frames kept
+	public long getMemory() {
+		return kept.get();
+	}
+}
@@ -0,0 +1,33 @@
+package com.mycompany.imagej;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+// reads the frames of an ImageStack, e.g the one of the image the plugin is ran on.
+public class StackFrameSource implements FrameSource {
+	ImageStack stack;
+
+	public StackFrameSource(ImageStack stack) {
+		this.stack = stack;
+	}
+
+	@Override
+	public int getSize() {
+		return stack.getSize();
+	}
+
+	@Override
+	public int getWidth() {
+		return stack.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return stack.getHeight();
+	}
+
+	@Override
+	public ImageProcessor getProcessor(int slice) {
+		return stack.getProcessor(slice);
+	}
+}
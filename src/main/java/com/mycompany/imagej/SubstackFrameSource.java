@@ -0,0 +1,35 @@
+package com.mycompany.imagej;
+
+import ij.process.ImageProcessor;
+
+// the slices first to last of another source, both included, numbered from 1 again, e.g one time segment of a long video
+public class SubstackFrameSource implements FrameSource {
+	FrameSource source;
+	int first, last;
+
+	public SubstackFrameSource(FrameSource source, int first, int last) {
+		this.source = source;
+		this.first = Math.max(1, first);
+		this.last = Math.min(source.getSize(), last);
+	}
+
+	@Override
+	public int getSize() {
+		return last-first+1;
+	}
+
+	@Override
+	public int getWidth() {
+		return source.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return source.getHeight();
+	}
+
+	@Override
+	public ImageProcessor getProcessor(int slice) {
+		return source.getProcessor(first+slice-1);
+	}
+}
@@ -0,0 +1,62 @@
+package com.mycompany.imagej;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.awt.Point;
+
+/* Everything the tracker needs to carry from one frame to the next, in plain arrays.
+ * Each zebrafish is a circle given by its center (x, y) and its width (size), which is the search area for its next position.
+ * Collisions are circles of width collisionHandlerRadius, given by their centers.
+ */
+public class TrackerState {
+	int nbFish;
+	int[] x, y;
+	double[] size;
+	boolean[] canMove; // zf are immobilized while handling collisions
+	ArrayList<Point> collisions = new ArrayList<Point>();
+	double objectThreshold, zfThreshold, previousSliceMax;
+
+	public TrackerState(Point[] seeds, double radius, double objectThreshold, double zfThreshold) {
+		nbFish = seeds.length;
+		x = new int[nbFish]; y = new int[nbFish];
+		size = new double[nbFish];
+		canMove = new boolean[nbFish];
+		this.objectThreshold = objectThreshold;
+		this.zfThreshold = zfThreshold;
+		resetFish(seeds, radius);
+	}
+
+	// puts the zf back on the seeds and forgets about the collisions, the thresholds are kept as they are
+	void resetFish(Point[] seeds, double radius) {
+		for (int i = 0; i < nbFish; i++) {
+			x[i] = seeds[i].x; y[i] = seeds[i].y;
+		}
+		Arrays.fill(size, radius);
+		Arrays.fill(canMove, true);
+		collisions.clear();
+	}
+
+	// e.g to keep the state of a slice as a keyframe
+	TrackerState copy() {
+		TrackerState copy = new TrackerState(new Point[0], 0, objectThreshold, zfThreshold);
+		copy.set(this);
+		return copy;
+	}
+
+	void set(TrackerState other) {
+		nbFish = other.nbFish;
+		x = other.x.clone(); y = other.y.clone();
+		size = other.size.clone();
+		canMove = other.canMove.clone();
+		collisions.clear();
+		for (Point c:other.collisions)
+			collisions.add(new Point(c));
+		objectThreshold = other.objectThreshold;
+		zfThreshold = other.zfThreshold;
+		previousSliceMax = other.previousSliceMax;
+	}
+
+	Point center(int fish) {
+		return new Point(x[fish], y[fish]);
+	}
+}
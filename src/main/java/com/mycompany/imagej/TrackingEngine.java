@@ -0,0 +1,310 @@
+package com.mycompany.imagej;
+
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.awt.Point;
+
+/* The nearest-neighbor tracking, without any window, RoiManager or IJ.run call so that it can run headless.
+ * Takes the parameters, a frame source and the seed positions of the zebrafish on the start slice,
+ * then tracks them forward to the last slice and backward to the first one. Both passes run concurrently, see TrackingPass.
+ * The zf and collision ROIs of the plugin are kept as plain arrays in a TrackerState.
+ */
+public class TrackingEngine {
+	TrackingParameters params;
+	FrameSource source;
+	int preprocessingThreads = Runtime.getRuntime().availableProcessors(), lookahead = 2*preprocessingThreads;
+	Point[] seeds;
+	int startSlice, nbSlices, width, height;
+	double startZfThreshold;
+	TrajectorySink sink;
+	TrajectoryStore trajectories;
+	boolean measuring;
+	TrackingMetrics metrics;
+	Checkpoint checkpoint;
+	FrameCache frameCache;
+	int keyframeInterval;
+	TreeMap<Integer, Keyframe> forwardKeyframes = new TreeMap<Integer, Keyframe>(), backwardKeyframes = new TreeMap<Integer, Keyframe>();
+	TreeMap<Integer, Point[]> corrections = new TreeMap<Integer, Point[]>(); // zf placed by the user, by slice
+
+	// the tracker state of a pass once it tracked a slice, and the parameters it tracked it with
+	static class Keyframe {
+		TrackerState state;
+		TrackingParameters params;
+
+		Keyframe(TrackerState state, TrackingParameters params) {
+			this.state = state;
+			this.params = params;
+		}
+	}
+
+	public TrackingEngine(TrackingParameters params, FrameSource source) {
+		this.params = params;
+		this.source = source;
+		nbSlices = source.getSize();
+		width = source.getWidth();
+		height = source.getHeight();
+	}
+
+	// the zf threshold is the max of all mins found around the seeds
+	public void setSeeds(int startSlice, Point[] seeds) {
+		setSeeds(startSlice, seeds, seedThreshold(source.getProcessor(startSlice), seeds, params.defaultRadius));
+	}
+
+	public void setSeeds(int startSlice, Point[] seeds, double zfThreshold) {
+		this.startSlice = startSlice;
+		this.seeds = seeds;
+		startZfThreshold = zfThreshold;
+	}
+
+	// frames are preprocessed by nbThreads worker threads, at most lookahead frames ahead of the tracking. 0 threads preprocesses them on the tracking thread.
+	public void setPreprocessing(int nbThreads, int lookahead) {
+		preprocessingThreads = nbThreads;
+		this.lookahead = lookahead;
+	}
+
+	// times each stage of the tracking and records the collisions and lost zf of each slice, see getMetrics()
+	public void setMeasuring(boolean measuring) {
+		this.measuring = measuring;
+	}
+
+	/* Snapshots the run to the given file every interval slices of each pass, and resumes from it if it holds a snapshot of the same run.
+	 * The file is deleted once the run completes. null doesn't checkpoint.
+	 */
+	public void setCheckpoint(File file, int interval) {
+		checkpoint = file != null ? new Checkpoint(file, interval) : null;
+	}
+
+	// keeps the max values and exclusion masks of the frames from a run to the next, e.g for retrack()
+	public void setFrameCache(FrameCache cache) {
+		frameCache = cache;
+	}
+
+	// keeps the tracker state every interval slices of each pass, retrack() going on from the last one before the slices to track again. 0 only keeps the start slice's.
+	public void setKeyframes(int interval) {
+		keyframeInterval = interval;
+	}
+
+	// puts a zf at (x, y) on a slice other than the start one, on the next run or retrack() of a range holding this slice
+	public void setCorrection(int slice, int fish, int x, int y) {
+		Point[] corrected = corrections.get(slice);
+		if (corrected == null) {
+			corrected = new Point[seeds.length];
+			corrections.put(slice, corrected);
+		}
+		corrected[fish] = new Point(x, y);
+	}
+
+	// whether the last run resumed from a checkpoint
+	public boolean isResumed() {
+		return checkpoint != null && checkpoint.isResumed();
+	}
+
+	// keeps the trajectories in memory, see getTrajectories()
+	public void track() {
+		trajectories = new TrajectoryStore(seeds.length, nbSlices);
+		track(trajectories);
+	}
+
+	// hands the trajectories over to the sink as they are produced, e.g to a TrajectoryFile when they don't fit in memory
+	public void track(TrajectorySink sink) {
+		// the backward pass runs on its own thread while the forward one runs on this one, each with half of the preprocessing threads
+		int passThreads = preprocessingThreads > 0 ? Math.max(1, preprocessingThreads/2) : 0;
+		boolean completed = false;
+		try {
+			if (checkpoint != null)
+				sink = checkpoint.open(this, sink);
+			TrackingPass[] passes = createPasses(sink, passThreads);
+			if (checkpoint != null) {
+				checkpoint.restore(passes);
+				for (TrackingPass pass:passes)
+					pass.checkpoint = checkpoint;
+			}
+			runPasses(passes);
+			finishPasses(passes);
+			completed = true;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			if (checkpoint != null) {
+				try {
+					checkpoint.close(completed);
+				} catch (IOException e) {
+					if (completed)
+						throw new UncheckedIOException(e);
+				}
+			}
+		}
+	}
+
+	void runPasses(TrackingPass[] passes) {
+		FutureTask<Void> backwardTask = new FutureTask<Void>(passes[1], null);
+		Thread backwardThread = new Thread(backwardTask, "ZF backward pass");
+		backwardThread.setDaemon(true);
+		backwardThread.start();
+		try {
+			passes[0].run();
+			backwardTask.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			// the backward pass is stopped at its next slice rather than interrupted, which would close the channels it writes to,
+			// and the run only ends once it is done with the sink
+			passes[1].stopped = true;
+			try {
+				backwardThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// writes the seeds to the sink and gives the forward and backward passes, to be ran on any threads then handed to finishPasses()
+	TrackingPass[] createPasses(TrajectorySink sink, int passThreads) {
+		this.sink = sink;
+		forwardKeyframes.clear();
+		backwardKeyframes.clear();
+		// base case
+		for (int i = 0; i < seeds.length; i++)
+			sink.setPosition(i, startSlice-1, seeds[i].x, seeds[i].y);
+
+		TrackingPass forward = new TrackingPass(this, 1, passThreads), backward = new TrackingPass(this, -1, passThreads);
+		if (measuring) {
+			metrics = new TrackingMetrics(nbSlices);
+			forward.metrics = new TrackingMetrics(nbSlices);
+			backward.metrics = new TrackingMetrics(nbSlices);
+			metrics.start();
+		}
+		return new TrackingPass[] {forward, backward};
+	}
+
+	/* Tracks the slices from from to to (both included) again, after changing the parameters or placing zf with setCorrection(),
+	 * and writes them over those of the last track() run, whose trajectories are kept in memory. The slices around are kept as they are.
+	 * Each pass goes on from its last keyframe before the range, the start slice being one, with the parameters
+	 * the keyframe was tracked with up to the range, so that the slices in between come out the same. The frames' preprocessing is
+	 * reused if there is a frame cache. Parts of the range on both sides of the start slice are tracked again at the same time.
+	 */
+	public void retrack(int from, int to) {
+		retrack(from, to, null);
+	}
+
+	/* Same, once the trajectories were stitched: the passes go on from keyframes numbered as the tracker's zf, so their rows are written
+	 * under the identities the stitches gave, and the corrections must be numbered as the tracker's zf too, see IdentityMap.tracked().
+	 */
+	public void retrack(int from, int to, IdentityMap identities) {
+		if (trajectories == null)
+			throw new IllegalStateException("Only the trajectories of track() can be tracked again");
+		from = Math.max(1, from);
+		to = Math.min(nbSlices, to);
+		// the passes go through the slices between their keyframes and the range again, but only the range is written
+		sink = new RangeSink(identities == null || identities.isEmpty() ? trajectories : identities.sink(trajectories), from, to);
+		TrackingPass forward = null, backward = null;
+		int passThreads = preprocessingThreads > 0 && to > startSlice && from < startSlice ? Math.max(1, preprocessingThreads/2) : preprocessingThreads;
+		if (to > startSlice)
+			forward = retrackPass(1, Math.max(from, startSlice+1), to, passThreads);
+		if (from < startSlice)
+			backward = retrackPass(-1, from, Math.min(to, startSlice-1), passThreads);
+		if (forward != null && backward != null)
+			runPasses(new TrackingPass[] {forward, backward});
+		else if (forward != null)
+			forward.run();
+		else if (backward != null)
+			backward.run();
+	}
+
+	/* A pass which writes the slices from from to to (both included) over the trajectories.
+	 * Frame i of a pass writes the positions of its next slice and the collision flags of the one after, as in track().
+	 */
+	TrackingPass retrackPass(int step, int from, int to, int passThreads) {
+		TrackingPass pass = new TrackingPass(this, step, passThreads);
+		// the position of slice s is written by the frame of slice s-step, so the pass goes on from a keyframe before that one
+		Map.Entry<Integer, Keyframe> keyframe = step > 0 ? forwardKeyframes.floorEntry(from-1) : backwardKeyframes.ceilingEntry(to+1);
+		// from the start slice with no slice to go through before the range, the pass starts over with the seeds and the new parameters
+		if (keyframe != null && !(keyframe.getKey() == startSlice && keyframe.getKey()+step == (step > 0 ? from : to))) {
+			pass.useParameters(keyframe.getValue().params, 0);
+			pass.state.set(keyframe.getValue().state);
+			pass.collisionGrid.rebuild(pass.state.collisions);
+			pass.nextParams = params;
+			pass.switchSlice = step > 0 ? from : to;
+			pass.resumeSlice = keyframe.getKey();
+		}
+		pass.lastSlice = step > 0 ? to : from;
+		// collision flags are only written for zf close to one another, so the old ones of the range are cleared first
+		int first = step > 0 ? from : pass.lastSlice, last = step > 0 ? Math.min(pass.lastSlice, nbSlices-1) : Math.min(to, pass.resumeSlice-1);
+		for (int fish = 0; fish < seeds.length; fish++) {
+			for (int index = first; index <= last; index++)
+				trajectories.setCollision(fish, index, 0);
+		}
+		return pass;
+	}
+
+	void finishPasses(TrackingPass[] passes) {
+		if (measuring) {
+			for (TrackingPass pass:passes)
+				metrics.merge(pass.metrics);
+			metrics.stop();
+		}
+	}
+
+	public TrajectoryStore getTrajectories() {
+		return trajectories;
+	}
+
+	// null unless the run was measured
+	public TrackingMetrics getMetrics() {
+		return metrics;
+	}
+
+	// max of all mins found in the circles of width radius around the seeds
+	static double seedThreshold(ImageProcessor ip, Point[] seeds, double radius) {
+		CircleKernel kernel = new CircleKernel(CircleKernel.r2(radius));
+		DarkSpot spot = new DarkSpot();
+		double threshold = 0;
+		for (Point seed:seeds) {
+			kernel.findMin(ip, seed.x, seed.y, spot);
+			if (spot.found)
+				threshold = Math.max(threshold, spot.value);
+		}
+		return threshold;
+	}
+
+	/* Only lets through the rows of the frames of the slices from from to to (both included) of a retrack() run:
+	 * the positions of their next slice and the collision flags of the one after, as written by TrackingPass.moveRois().
+	 */
+	static class RangeSink implements TrajectorySink {
+		TrajectorySink target;
+		int from, to;
+
+		RangeSink(TrajectorySink target, int from, int to) {
+			this.target = target;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public void setPosition(int fish, int index, int x, int y) {
+			if (index >= from-1 && index <= to-1)
+				target.setPosition(fish, index, x, y);
+		}
+
+		@Override
+		public void setCollision(int fish, int index, int collision) {
+			if (index >= from && index <= to)
+				target.setCollision(fish, index, collision);
+		}
+
+		@Override
+		public void commit(int index) {
+			target.commit(index);
+		}
+	}
+}
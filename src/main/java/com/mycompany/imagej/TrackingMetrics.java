@@ -0,0 +1,179 @@
+package com.mycompany.imagej;
+
+import ij.IJ;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* Where the time of a tracking run goes, stage by stage, and how the tracking fared on each slice.
+ * Each stage has a count, a total and a histogram of its durations with 8 buckets per power of two, i.e within 12.5%.
+ * Per slice, the number of active collisions and of lost zf, i.e zf for which no dark spot was found in the search circle, or only one in an object or on another zf.
+ * An instance is only written to by one thread: each tracking pass has its own, and the engine merges them once done.
+ * The durations of the frame preprocessing are measured on the worker threads and handed over along with the frames.
+ * The latency, from the capture of a frame to the positions found on it, is only measured when tracking live, see LiveTracker.
+ */
+public class TrackingMetrics {
+	static final int MAX_VALUE = 0, PARTICLES = 1, FRAME_WAIT = 2, MIN_SEARCH = 3, COLLISION_DETECTION = 4, COLLISION_HANDLING = 5, FRAME = 6, LATENCY = 7, BACKGROUND = 8;
+	static final String[] STAGES = {"max value", "particle analysis", "frame wait", "min search", "collision detection", "collision handling", "frame", "latency", "background model"};
+	static final int SUB_BUCKETS = 8, SUB_BITS = 3, NB_BUCKETS = (64-SUB_BITS+1)*SUB_BUCKETS;
+	long[] counts = new long[STAGES.length], totals = new long[STAGES.length], maxima = new long[STAGES.length];
+	long[][] histograms = new long[STAGES.length][NB_BUCKETS];
+	int nbSlices, nbFrames;
+	int[] activeCollisions, lostFish; // by slice index, -1 on the slices which weren't tracked
+	long startTime, endTime;
+
+	public TrackingMetrics(int nbSlices) {
+		this.nbSlices = nbSlices;
+		activeCollisions = new int[nbSlices];
+		lostFish = new int[nbSlices];
+		Arrays.fill(activeCollisions, -1);
+		Arrays.fill(lostFish, -1);
+	}
+
+	void record(int stage, long nanos) {
+		counts[stage]++;
+		totals[stage] += nanos;
+		maxima[stage] = Math.max(maxima[stage], nanos);
+		histograms[stage][bucket(nanos)]++;
+	}
+
+	// called once a slice is tracked. A live run has no slices to keep the counts of.
+	void frame(int index, int collisions, int lost) {
+		nbFrames++;
+		if (index < nbSlices) {
+			activeCollisions[index] = collisions;
+			lostFish[index] = lost;
+		}
+	}
+
+	void start() {
+		startTime = System.nanoTime();
+	}
+
+	void stop() {
+		endTime = System.nanoTime();
+	}
+
+	// adds the measures of another pass, or of another arena on the same slices
+	void merge(TrackingMetrics other) {
+		for (int stage = 0; stage < STAGES.length; stage++) {
+			counts[stage] += other.counts[stage];
+			totals[stage] += other.totals[stage];
+			maxima[stage] = Math.max(maxima[stage], other.maxima[stage]);
+			for (int b = 0; b < NB_BUCKETS; b++)
+				histograms[stage][b] += other.histograms[stage][b];
+		}
+		for (int i = 0; i < nbSlices; i++) {
+			if (other.activeCollisions[i] >= 0) {
+				activeCollisions[i] = Math.max(0, activeCollisions[i]) + other.activeCollisions[i];
+				lostFish[i] = Math.max(0, lostFish[i]) + other.lostFish[i];
+			}
+		}
+		nbFrames += other.nbFrames;
+	}
+
+	// values under 8 have their own bucket, the others share one with the values having the same 4 highest bits
+	static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS)
+			return (int) Math.max(0, nanos);
+		int exponent = 63-Long.numberOfLeadingZeros(nanos);
+		return (exponent-SUB_BITS+1)*SUB_BUCKETS + (int) ((nanos >>> (exponent-SUB_BITS)) & (SUB_BUCKETS-1));
+	}
+
+	static long bucketStart(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket/SUB_BUCKETS + SUB_BITS-1;
+		return (long) (SUB_BUCKETS + bucket%SUB_BUCKETS) << (exponent-SUB_BITS);
+	}
+
+	// the duration under which the given fraction of a stage's measures fall, rounded down to its bucket
+	long percentile(int stage, double fraction) {
+		long rank = (long) Math.ceil(fraction*counts[stage]), seen = 0;
+		for (int b = 0; b < NB_BUCKETS; b++) {
+			seen += histograms[stage][b];
+			if (seen >= rank && seen > 0)
+				return bucketStart(b);
+		}
+		return 0;
+	}
+
+	public double getFramesPerSecond() {
+		return endTime > startTime ? nbFrames*1e9/(endTime-startTime) : 0;
+	}
+
+	public int getNbFrames() {
+		return nbFrames;
+	}
+
+	public double getTotalMillis(int stage) {
+		return totals[stage]/1e6;
+	}
+
+	public double getMeanMicros(int stage) {
+		return counts[stage] > 0 ? totals[stage]/1e3/counts[stage] : 0;
+	}
+
+	// one line per stage in the log window
+	public void log() {
+		IJ.log(String.format("ZF Tracking: %d frames in %.1f s, %.1f frames/s", nbFrames, (endTime-startTime)/1e9, getFramesPerSecond()));
+		for (int stage = 0; stage < STAGES.length; stage++) {
+			if (counts[stage] == 0)
+				continue;
+			IJ.log(String.format("  %s: %d calls, %.1f ms, mean %.2f us, p50 %.2f us, p99 %.2f us, max %.2f us", STAGES[stage], counts[stage],
+					getTotalMillis(stage), getMeanMicros(stage), percentile(stage, 0.5)/1e3, percentile(stage, 0.99)/1e3, maxima[stage]/1e3));
+		}
+		int maxCollisions = 0, maxLost = 0;
+		for (int i = 0; i < nbSlices; i++) {
+			maxCollisions = Math.max(maxCollisions, activeCollisions[i]);
+			maxLost = Math.max(maxLost, lostFish[i]);
+		}
+		IJ.log("  at most "+maxCollisions+" active collisions and "+maxLost+" lost zf on a slice");
+	}
+
+	public void writeJson(File file) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII), ResultsExporter.BUFFER_SIZE);
+		try {
+			writer.write(toJson());
+		} finally {
+			writer.close();
+		}
+	}
+
+	// durations in microseconds, per-slice arrays in slice order with -1 for the slices which weren't tracked
+	public String toJson() {
+		StringBuilder json = new StringBuilder(256 + 8*nbSlices);
+		json.append("{\n  \"frames\": ").append(nbFrames);
+		json.append(",\n  \"seconds\": ").append((endTime-startTime)/1e9);
+		json.append(",\n  \"framesPerSecond\": ").append(getFramesPerSecond());
+		json.append(",\n  \"stages\": {");
+		for (int stage = 0; stage < STAGES.length; stage++) {
+			json.append(stage > 0 ? ",\n" : "\n").append("    \"").append(STAGES[stage]).append("\": {");
+			json.append("\"count\": ").append(counts[stage]);
+			json.append(", \"totalMs\": ").append(getTotalMillis(stage));
+			json.append(", \"meanUs\": ").append(getMeanMicros(stage));
+			json.append(", \"p50Us\": ").append(percentile(stage, 0.5)/1e3);
+			json.append(", \"p90Us\": ").append(percentile(stage, 0.9)/1e3);
+			json.append(", \"p99Us\": ").append(percentile(stage, 0.99)/1e3);
+			json.append(", \"maxUs\": ").append(maxima[stage]/1e3).append('}');
+		}
+		json.append("\n  },\n  \"activeCollisions\": ");
+		appendArray(json, activeCollisions);
+		json.append(",\n  \"lostFish\": ");
+		appendArray(json, lostFish);
+		return json.append("\n}\n").toString();
+	}
+
+	static void appendArray(StringBuilder json, int[] values) {
+		json.append('[');
+		for (int i = 0; i < values.length; i++)
+			json.append(i > 0 ? "," : "").append(values[i]);
+		json.append(']');
+	}
+}
@@ -0,0 +1,59 @@
+package com.mycompany.imagej;
+
+import java.util.Properties;
+
+// the numeric inputs of the tracking, as asked for in ZF_Tracking's dialog. See the README for their meaning.
+// Like the OvalRois they replace, the radii are the widths of the circles drawn around each zebrafish or collision.
+public class TrackingParameters {
+	public double objectThreshold = 100, zfThreshApprox = 1, zfSize = 2, defaultRadius = 20.0, collisionHandlerRadius = 20.0, collision_dist = 5;
+	public int maximal_area = 80, frameRate = 30;
+	// a background rate above 0 learns a BackgroundModel instead of thresholding each frame at objectThreshold
+	public double backgroundRate = 0, foregroundContrast = 20;
+	// a bout is a run of at least minBoutSteps steps at boutSpeed pixels per slice or faster
+	public double boutSpeed = 2;
+	public int minBoutSteps = 3;
+
+	public TrackingParameters copy() {
+		TrackingParameters copy = new TrackingParameters();
+		copy.objectThreshold = objectThreshold;
+		copy.zfThreshApprox = zfThreshApprox;
+		copy.zfSize = zfSize;
+		copy.defaultRadius = defaultRadius;
+		copy.collisionHandlerRadius = collisionHandlerRadius;
+		copy.collision_dist = collision_dist;
+		copy.maximal_area = maximal_area;
+		copy.frameRate = frameRate;
+		copy.backgroundRate = backgroundRate;
+		copy.foregroundContrast = foregroundContrast;
+		copy.boutSpeed = boutSpeed;
+		copy.minBoutSteps = minBoutSteps;
+		return copy;
+	}
+
+	// reads the parameters given under their field names, e.g from a properties file. The others are left as they are.
+	public void load(Properties properties) {
+		objectThreshold = number(properties, "objectThreshold", objectThreshold);
+		zfThreshApprox = number(properties, "zfThreshApprox", zfThreshApprox);
+		zfSize = number(properties, "zfSize", zfSize);
+		defaultRadius = number(properties, "defaultRadius", defaultRadius);
+		collisionHandlerRadius = number(properties, "collisionHandlerRadius", collisionHandlerRadius);
+		collision_dist = number(properties, "collision_dist", collision_dist);
+		maximal_area = (int) number(properties, "maximal_area", maximal_area);
+		frameRate = (int) number(properties, "frameRate", frameRate);
+		backgroundRate = number(properties, "backgroundRate", backgroundRate);
+		foregroundContrast = number(properties, "foregroundContrast", foregroundContrast);
+		boutSpeed = number(properties, "boutSpeed", boutSpeed);
+		minBoutSteps = (int) number(properties, "minBoutSteps", minBoutSteps);
+	}
+
+	static double number(Properties properties, String key, double value) {
+		String text = properties.getProperty(key);
+		if (text == null)
+			return value;
+		try {
+			return Double.parseDouble(text.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a number for "+key+": "+text);
+		}
+	}
+}
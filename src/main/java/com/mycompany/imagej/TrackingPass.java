@@ -0,0 +1,334 @@
+package com.mycompany.imagej;
+
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.awt.Point;
+
+/* One direction of the tracking, from the start slice to the last slice (step 1) or to the first one (step -1).
+ * Each pass carries its own TrackerState, so that the forward and backward passes can run at the same time:
+ * they only share the engine's trajectory sink, in which they write disjoint slices.
+ */
+public class TrackingPass implements Runnable {
+	TrackingEngine engine;
+	TrackingParameters params;
+	TrackerState state;
+	FramePreprocessor preprocessor;
+	BackgroundModel background; // null when thresholding, else learnt from the slice the pass starts or resumes on
+	CircleKernel.Cache kernels = new CircleKernel.Cache();
+	DarkSpot spot = new DarkSpot();
+	ExclusionMask objects; // large objects found on the current slice
+	CircleGrid collisionGrid;
+	FishGrid fishGrid;
+	int step, startSlice, resumeSlice, lastSlice, nbSlices, width, height, preprocessingThreads, lostFish;
+	TrajectorySink sink;
+	TrackingMetrics metrics; // null unless the engine measures the run
+	Checkpoint checkpoint; // null unless the engine checkpoints the run
+	volatile boolean stopped; // e.g once the other pass failed
+	TreeMap<Integer, TrackingEngine.Keyframe> keyframes; // the engine's, for this direction
+	TrackingParameters runParams; // a copy of the parameters, kept along with the keyframes
+	TrackingParameters nextParams; // those to switch to on switchSlice, see retrack()
+	int switchSlice;
+	double startMax;
+
+	TrackingPass(TrackingEngine engine, int step, int preprocessingThreads) {
+		this.engine = engine;
+		this.step = step;
+		this.preprocessingThreads = preprocessingThreads;
+		params = engine.params;
+		startSlice = resumeSlice = engine.startSlice;
+		nbSlices = engine.nbSlices;
+		lastSlice = step > 0 ? nbSlices : 1;
+		width = engine.width;
+		height = engine.height;
+		sink = engine.sink;
+		state = new TrackerState(engine.seeds, params.defaultRadius, params.objectThreshold, engine.startZfThreshold);
+		collisionGrid = new CircleGrid(width, height, params.collisionHandlerRadius);
+		fishGrid = new FishGrid(state, width, height, Math.max(params.defaultRadius, params.collisionHandlerRadius));
+		keyframes = step > 0 ? engine.forwardKeyframes : engine.backwardKeyframes;
+		runParams = params.copy();
+	}
+
+	@Override
+	public void run() {
+		if (resumeSlice == lastSlice)
+			return;
+		preprocessor = new FramePreprocessor(engine.source, params, preprocessingThreads, engine.lookahead);
+		preprocessor.cache = engine.frameCache;
+		try {
+			// the preprocessor works ahead on the slices of the pass, with the thresholds of its start even when resuming from a checkpoint or a keyframe
+			startMax = engine.frameCache != null ? engine.frameCache.max(startSlice, engine.source) : FramePreprocessor.maxValue(engine.source.getProcessor(startSlice));
+			if (resumeSlice == startSlice) {
+				state.previousSliceMax = startMax;
+				// the start is always kept, so that retrack() finds the parameters the slices after it were tracked with
+				keyframes.put(startSlice, new TrackingEngine.Keyframe(state.copy(), runParams));
+			}
+			if (params.backgroundRate > 0 && background == null) {
+				// a keyframe has no background: it is learnt again from its slice, brought back to the exposure of the start as the thresholds are
+				background = new BackgroundModel(engine.source.getProcessor(resumeSlice), params);
+				background.shift(startMax - state.previousSliceMax);
+			}
+			preprocessor.background = background;
+			preprocessor.start(resumeSlice+step, lastSlice, params.objectThreshold, startMax);
+			for (int i = resumeSlice; i != lastSlice && !stopped; i += step) {
+				if (nextParams != null && i+step == switchSlice)
+					useParameters(nextParams, i+step);
+				correct(i+step);
+				moveRois(i, i+step);
+				if (engine.keyframeInterval > 0 && (i+step-startSlice) % engine.keyframeInterval == 0)
+					keyframes.put(i+step, new TrackingEngine.Keyframe(state.copy(), runParams));
+				if (checkpoint != null)
+					checkpoint.passed(this, i+step);
+			}
+		} finally {
+			preprocessor.shutdown();
+		}
+	}
+
+	/* Tracks with other parameters from the given slice on, e.g once a keyframe tracked with the former ones reached the slices to track again.
+	 * The object threshold follows, and so do the frames preprocessed from then on if it or the minimal area changed.
+	 */
+	void useParameters(TrackingParameters params, int fromSlice) {
+		boolean sameObjects = params.objectThreshold == this.params.objectThreshold && params.maximal_area == this.params.maximal_area;
+		state.objectThreshold += params.objectThreshold - this.params.objectThreshold;
+		this.params = params;
+		runParams = params.copy();
+		collisionGrid = new CircleGrid(width, height, params.collisionHandlerRadius);
+		collisionGrid.rebuild(state.collisions);
+		fishGrid = new FishGrid(state, width, height, Math.max(params.defaultRadius, params.collisionHandlerRadius));
+		if (background != null)
+			background.setParameters(params);
+		if (preprocessor != null && !sameObjects) {
+			preprocessor.params = params;
+			preprocessor.start(fromSlice, lastSlice, params.objectThreshold, startMax);
+		}
+	}
+
+	// the zf the user placed on a slice are put there before tracking it, with a fresh search circle
+	void correct(int slice) {
+		Point[] corrected = engine.corrections.get(slice);
+		if (corrected == null)
+			return;
+		for (int fish = 0; fish < state.nbFish; fish++) {
+			if (corrected[fish] != null) {
+				state.x[fish] = corrected[fish].x;
+				state.y[fish] = corrected[fish].y;
+				state.size[fish] = params.defaultRadius;
+				state.canMove[fish] = true;
+			}
+		}
+	}
+
+	void moveRois (int fromSlice, int toSlice) {
+		long frameStart = metrics != null ? System.nanoTime() : 0;
+		PreprocessedFrame frame = preprocessor.next();
+		if (metrics != null) {
+			metrics.record(TrackingMetrics.FRAME_WAIT, System.nanoTime()-frameStart);
+			metrics.record(TrackingMetrics.MAX_VALUE, frame.maxNanos);
+			metrics.record(background != null ? TrackingMetrics.BACKGROUND : TrackingMetrics.PARTICLES, frame.particleNanos);
+		}
+		double flickeringVariation = sliceDiff(frame);
+		state.objectThreshold += flickeringVariation;
+		// with a background model, the flicker is read locally at the collisions instead
+		if (background == null)
+			state.zfThreshold += flickeringVariation;
+		ImageProcessor nextSlice = frame.ip;
+		objects = frame.objects;
+		fishGrid.rebuild();
+
+		lostFish = 0;
+		for (int j = 0; j < state.nbFish; j++) {
+			sink.setPosition(j, toSlice-1, state.x[j], state.y[j]);
+			trackMin(j, fromSlice, toSlice, nextSlice);
+		}
+
+		long start = metrics != null ? System.nanoTime() : 0;
+		handleCollisions(fromSlice, toSlice, nextSlice);
+		if (metrics != null)
+			metrics.record(TrackingMetrics.COLLISION_HANDLING, System.nanoTime()-start);
+		preprocessor.release(frame);
+		// the positions are written one slice behind and the collisions on the slice itself, hence the lowest of both is done with
+		sink.commit(Math.min(fromSlice, toSlice));
+		if (metrics != null) {
+			metrics.record(TrackingMetrics.FRAME, System.nanoTime()-frameStart);
+			metrics.frame(toSlice-1, state.collisions.size(), lostFish);
+		}
+	}
+
+	void trackMin(int fish, int fromSlice, int toSlice, ImageProcessor ip) {
+		if (toSlice == nbSlices || toSlice < 0)
+			return;
+		long start = metrics != null ? System.nanoTime() : 0;
+		getMin(state.x[fish], state.y[fish], state.size[fish], ip, spot);
+		spot.available = spot.found && isAvailable(spot.x, spot.y);
+		if (metrics != null) {
+			long end = System.nanoTime();
+			metrics.record(TrackingMetrics.MIN_SEARCH, end-start);
+			start = end;
+		}
+		// a zf at rest finds its own center, which doesn't make it lost: only no dark spot, or one taken by an object or another zf, does
+		if (!spot.available && (!spot.found || isInObject(spot.x, spot.y) || fishGrid.isCenter(spot.x, spot.y, fish)))
+			lostFish++;
+		if (spot.available && state.canMove[fish])
+			fishGrid.move(fish, spot.x, spot.y);
+		ArrayList<Integer> collisionList = getCollisions(fish, toSlice);
+		if (collisionList.size() > 0)
+			reduce(fish, collisionList);
+		else
+			expand(fish, toSlice);
+		if (metrics != null)
+			metrics.record(TrackingMetrics.COLLISION_DETECTION, System.nanoTime()-start);
+	}
+
+	// darkest pixel of the circle of width size around (cx, cy)
+	void getMin(int cx, int cy, double size, ImageProcessor ip, DarkSpot spot) {
+		kernels.get(size).findMin(ip, cx, cy, spot);
+	}
+
+	// same, but the darkest pixel is only found if it is dark enough to be a zf and at least exclusionRadius away from the given points
+	void getMin(int cx, int cy, double size, ImageProcessor ip, double threshold, ArrayList<Point> exceptThese, double exclusionRadius, DarkSpot spot) {
+		kernels.get(size).findMin(ip, cx, cy, exceptThese, exclusionRadius, spot);
+		spot.found = spot.found && spot.value <= threshold+params.zfThreshApprox;
+	}
+
+	// a point is available if it is neither in a large object nor already the center of a zf
+	boolean isAvailable(int x, int y) {
+		return !fishGrid.isCenter(x, y) && !isInObject(x, y);
+	}
+
+	boolean isInObject(int x, int y) {
+		return objects.contains(x, y);
+	}
+
+	boolean isInCollision(Point p) {
+		return collisionGrid.contains(p.x, p.y);
+	}
+
+	ArrayList<Integer> getCollisions(int fish, int toSlice) { // collisions occurring on toSlice
+		ArrayList<Integer> collidesWith = new ArrayList<Integer>();
+		double collisionX = 0, collisionY = 0;
+		int nbColliding = 1, collision;
+		// search circles are never wider than defaultRadius, so no zf farther than this can collide
+		int nbNear = fishGrid.query(state.x[fish], state.y[fish], (state.size[fish] + params.defaultRadius)/2);
+		for (int n = 0; n < nbNear; n++) {
+			int i = fishGrid.found[n];
+			if (fish != i) {
+				double minDist = (state.size[fish] + state.size[i])/2, dist = distance(state.x[fish], state.y[fish], state.x[i], state.y[i]);
+				if (dist <= minDist) { // the bounding boxes are colliding
+					collidesWith.add(i);
+					collision = dist < params.collision_dist ? 1 : 0;
+					collisionX += state.x[i]*collision;
+					collisionY += state.y[i]*collision;
+					nbColliding += collision;
+					if (toSlice < nbSlices)
+						sink.setCollision(fish, toSlice, collision);
+				}
+			}
+		}
+		// create a perimeter for handling the collision
+		collisionX += collisionX > 0 ? state.x[fish] : 0; collisionY += collisionY > 0 ? state.y[fish] : 0;
+		collisionX /= nbColliding; collisionY /= nbColliding;
+		Point collisionCenter = new Point((int) collisionX, (int) collisionY);
+		if (collisionX + collisionY != 0 && !isInCollision(collisionCenter)) {
+			state.collisions.add(collisionCenter);
+			collisionGrid.add(collisionCenter);
+		}
+
+		return collidesWith;
+	}
+
+	/* Called once per frame. Doesn't match trajectories after collision, this is left to the stitching.
+	 * Detects the zf in the collision area and draws a new trajectory for the zf moving away from the collision.
+	 * 1.  Counts the number of dark spots in each of the colliding areas.
+	 * 2.a If there are less spots than colliding zf but more than one (i.e the dots are separating), assign the zf to the spots without preference and allow their movement.
+	 * 2.b Else, prohibit their movement.
+	 */
+	void handleCollisions (int fromSlice, int toSlice, ImageProcessor nextSlice) {
+		for (int c = 0; c < state.collisions.size(); c++) {
+			Point collisionCenter = state.collisions.get(c);
+			double zfThreshold = background != null ? state.zfThreshold + background.exposure(collisionCenter.x, collisionCenter.y) : state.zfThreshold;
+			ArrayList<Point> minima = new ArrayList<Point>(), nearbyZFs = new ArrayList<Point>();
+			ArrayList<Integer> collidingZFs = new ArrayList<Integer>(), inRadiusZFs = new ArrayList<Integer>();
+
+			// select the colliding zf based on their distances between one another, and not with the collision's centroid
+			int nbNear = fishGrid.query(collisionCenter.x, collisionCenter.y, params.collisionHandlerRadius);
+			for (int n = 0; n < nbNear; n++) {
+				int z = fishGrid.found[n];
+				if (distance(state.x[z], state.y[z], collisionCenter.x, collisionCenter.y) < params.collisionHandlerRadius)
+					inRadiusZFs.add(z);
+			}
+			for (int z:inRadiusZFs) {
+				boolean isColliding = false;
+				for (int z1:inRadiusZFs) {
+					if (z != z1 && distance(state.x[z], state.y[z], state.x[z1], state.y[z1]) <= params.collision_dist) {
+						isColliding = true;
+						break;
+					}
+				}
+				if (isColliding)
+					collidingZFs.add(z);
+				else
+					nearbyZFs.add(state.center(z));
+			} // i.e zf that are in the collision perimeter but not partaking in the collision are excluded from minima search below
+
+			do {
+				// exclude from the search minima that are already counted in and minima that belong to nearby zf which are not colliding
+				getMin(collisionCenter.x, collisionCenter.y, params.collisionHandlerRadius, nextSlice, zfThreshold, nearbyZFs, params.zfSize, spot);
+				if (spot.found) {
+					Point min = new Point(spot.x, spot.y);
+					minima.add(min);
+					nearbyZFs.add(min);
+				}
+			} while (spot.found);
+
+			int nbDarkSpots = minima.size();
+			for (int z:collidingZFs) {
+				state.canMove[z] = nbDarkSpots == 0;
+			}
+			if (nbDarkSpots <= collidingZFs.size() && nbDarkSpots > 1) {
+			// i.e at least one zf is moving away from the collision
+				for (int p = 0; p < nbDarkSpots; p++) {
+					int index = collidingZFs.get(p);
+					state.canMove[index] = true;
+					fishGrid.move(index, minima.get(p).x, minima.get(p).y);
+					state.size[index] = params.defaultRadius;
+					ArrayList<Integer> collisionList = getCollisions(index, toSlice);
+					if (collisionList.size() > 0)
+						reduce(index, collisionList);
+				}
+				if (nbDarkSpots == collidingZFs.size()) {
+					collisionGrid.remove(state.collisions.remove(c));
+					c--;
+				}
+			}
+		}
+	}
+
+	// shrinks the search circles of colliding zf so that they don't overlap
+	void reduce(int fish, ArrayList<Integer> collidesWith) {
+		for (int r:collidesWith) {
+			double radius = distance(state.x[fish], state.y[fish], state.x[r], state.y[r]);
+			state.size[fish] = radius;
+			state.size[r] = radius;
+		}
+	}
+
+	void expand(int fish, int toSlice) {
+		state.size[fish] = params.defaultRadius;
+		ArrayList<Integer> collisionList = getCollisions(fish, toSlice);
+		if (collisionList.size() > 0)
+			reduce(fish, collisionList);
+	}
+
+	// adapts the given value to a slice's light exposure provided that no bright objects are introduced and that the change in light exposure is homogeneous.
+	double sliceDiff(PreprocessedFrame frame) {
+		double diff = frame.max-state.previousSliceMax;
+		state.previousSliceMax = frame.max;
+		return diff;
+	}
+
+	double distance(int xA, int yA, int xB, int yB) {
+		return Math.sqrt((xA-xB)*(xA-xB)+(yA-yB)*(yA-yB));
+	}
+}
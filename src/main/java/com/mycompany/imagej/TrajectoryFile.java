@@ -0,0 +1,166 @@
+package com.mycompany.imagej;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/* Writes the trajectories to disk as they are produced, so that memory doesn't grow with the length of the video.
+ * Only the rows which haven't been committed yet are kept in memory, i.e a few slices around each pass' current one.
+ * The file holds a header (magic, nbFish, nbSlices) then one row per slice: for each zf its x and y as ints and its collision flag as a byte.
+ * Rows are written at their own offset, so the backward pass can fill the file from the end while the forward one fills it from the start.
+ */
+public class TrajectoryFile implements TrajectorySink, Closeable {
+	static final int MAGIC = 0x5a465452, HEADER_SIZE = 12, FISH_SIZE = 9; // "ZFTR"
+	File file;
+	FileChannel channel;
+	int nbFish, nbSlices;
+	HashMap<Integer, int[]> pendingRows = new HashMap<Integer, int[]>();
+	ArrayDeque<int[]> freeRows = new ArrayDeque<int[]>();
+	ByteBuffer buffer;
+
+	public TrajectoryFile(File file, int nbFish, int nbSlices) throws IOException {
+		this(file, nbFish, nbSlices, false);
+	}
+
+	// keeps the rows already in the file, e.g to resume the tracking from a Checkpoint
+	public TrajectoryFile(File file, int nbFish, int nbSlices, boolean keepRows) throws IOException {
+		this.file = file;
+		this.nbFish = nbFish;
+		this.nbSlices = nbSlices;
+		channel = keepRows ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ)
+				: FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+		buffer = ByteBuffer.allocate(Math.max(HEADER_SIZE, nbFish*FISH_SIZE));
+		buffer.putInt(MAGIC).putInt(nbFish).putInt(nbSlices).flip();
+		write(0);
+	}
+
+	@Override
+	public synchronized void setPosition(int fish, int index, int x, int y) {
+		int[] row = row(index);
+		row[3*fish] = x;
+		row[3*fish+1] = y;
+	}
+
+	@Override
+	public synchronized void setCollision(int fish, int index, int collision) {
+		row(index)[3*fish+2] = collision;
+	}
+
+	@Override
+	public synchronized void commit(int index) {
+		int[] row = pendingRows.remove(index);
+		if (row != null) {
+			writeRow(index, row);
+			freeRows.push(row);
+		}
+	}
+
+	// the rows which were never committed, e.g the first slice, are written on closing
+	@Override
+	public synchronized void close() throws IOException {
+		for (int index:pendingRows.keySet())
+			writeRow(index, pendingRows.get(index));
+		pendingRows.clear();
+		channel.close();
+	}
+
+	// copies of the rows not committed yet with indices from from to to, both included
+	synchronized TreeMap<Integer, int[]> pendingRows(int from, int to) {
+		TreeMap<Integer, int[]> rows = new TreeMap<Integer, int[]>();
+		for (int index:pendingRows.keySet()) {
+			if (index >= from && index <= to)
+				rows.put(index, pendingRows.get(index).clone());
+		}
+		return rows;
+	}
+
+	// makes sure that the committed rows are on disk
+	synchronized void force() throws IOException {
+		channel.force(false);
+	}
+
+	int[] row(int index) {
+		int[] row = pendingRows.get(index);
+		if (row == null) {
+			row = freeRows.isEmpty() ? new int[3*nbFish] : freeRows.pop();
+			Arrays.fill(row, 0);
+			pendingRows.put(index, row);
+		}
+		return row;
+	}
+
+	void writeRow(int index, int[] row) {
+		buffer.clear();
+		for (int fish = 0; fish < nbFish; fish++)
+			buffer.putInt(row[3*fish]).putInt(row[3*fish+1]).put((byte) row[3*fish+2]);
+		buffer.flip();
+		write(HEADER_SIZE + (long) index*nbFish*FISH_SIZE);
+	}
+
+	void write(long position) {
+		try {
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// reads back the rows of a trajectory file, e.g for exporting them
+	public static class Reader implements Closeable {
+		FileChannel channel;
+		int nbFish, nbSlices;
+		ByteBuffer buffer;
+
+		public Reader(File file) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			channel.read(header, 0);
+			header.flip();
+			if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+				throw new IOException(file+" is not a zebrafish trajectory file");
+			nbFish = header.getInt();
+			nbSlices = header.getInt();
+			buffer = ByteBuffer.allocate(nbFish*FISH_SIZE);
+		}
+
+		public int getNbFish() {
+			return nbFish;
+		}
+
+		public int getNbSlices() {
+			return nbSlices;
+		}
+
+		// fills row with x, y, collision for each zf on the given index
+		public void readRow(int index, int[] row) throws IOException {
+			buffer.clear();
+			long position = HEADER_SIZE + (long) index*nbFish*FISH_SIZE;
+			while (buffer.hasRemaining()) {
+				int read = channel.read(buffer, position);
+				if (read < 0)
+					throw new IOException("truncated trajectory file");
+				position += read;
+			}
+			buffer.flip();
+			for (int fish = 0; fish < nbFish; fish++) {
+				row[3*fish] = buffer.getInt();
+				row[3*fish+1] = buffer.getInt();
+				row[3*fish+2] = buffer.get();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.mycompany.imagej;
+
+import java.util.Arrays;
+
+/* Lookups into the tracked trajectories without scanning every zf on every slice:
+ * - a uniform grid over all positions of all slices, which gives the trajectory point nearest to a click by looking at the cells around it,
+ * - the collision segments of each zf, i.e its runs of slices flagged as in a collision, searched by bisection.
+ * The index is built from the store once and rebuilt on the next lookup after invalidate(), e.g once trajectories were stitched.
+ */
+public class TrajectoryIndex {
+	TrajectoryStore trajectories;
+	int cellSize, cols, rows, nbSlices;
+	int[] cellStart, points; // points (fish*nbSlices + slice) sorted by cell, those of cell c from cellStart[c] to cellStart[c+1]
+	int[][] runStarts, runEnds; // for each zf, its collision segments [start, end) in slice order
+	boolean valid;
+
+	public TrajectoryIndex(TrajectoryStore trajectories, double cellSize) {
+		this.trajectories = trajectories;
+		this.cellSize = Math.max(1, (int) Math.ceil(cellSize));
+	}
+
+	// to be called once the trajectories changed
+	public void invalidate() {
+		valid = false;
+	}
+
+	void build() {
+		int nbFish = trajectories.getNbFish();
+		nbSlices = trajectories.getNbSlices();
+		if ((long) nbFish*nbSlices > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many trajectory points to index");
+		int maxX = 0, maxY = 0;
+		for (int fish = 0; fish < nbFish; fish++) {
+			for (int slice = 0; slice < nbSlices; slice++) {
+				maxX = Math.max(maxX, trajectories.getX(fish, slice));
+				maxY = Math.max(maxY, trajectories.getY(fish, slice));
+			}
+		}
+		cols = maxX/cellSize + 1;
+		rows = maxY/cellSize + 1;
+
+		// counting sort of the points by cell
+		cellStart = new int[cols*rows + 1];
+		for (int fish = 0; fish < nbFish; fish++) {
+			for (int slice = 0; slice < nbSlices; slice++)
+				cellStart[cell(trajectories.getX(fish, slice), trajectories.getY(fish, slice)) + 1]++;
+		}
+		for (int c = 0; c < cols*rows; c++)
+			cellStart[c+1] += cellStart[c];
+		points = new int[nbFish*nbSlices];
+		int[] next = Arrays.copyOf(cellStart, cols*rows);
+		for (int fish = 0; fish < nbFish; fish++) {
+			for (int slice = 0; slice < nbSlices; slice++)
+				points[next[cell(trajectories.getX(fish, slice), trajectories.getY(fish, slice))]++] = fish*nbSlices + slice;
+		}
+
+		runStarts = new int[nbFish][];
+		runEnds = new int[nbFish][];
+		int[] starts = new int[16], ends = new int[16];
+		for (int fish = 0; fish < nbFish; fish++) {
+			int nbRuns = 0;
+			for (int slice = 0; slice < nbSlices; slice++) {
+				if (trajectories.getCollision(fish, slice) == 0)
+					continue;
+				if (nbRuns == starts.length) {
+					starts = Arrays.copyOf(starts, 2*nbRuns);
+					ends = Arrays.copyOf(ends, 2*nbRuns);
+				}
+				starts[nbRuns] = slice;
+				while (slice < nbSlices && trajectories.getCollision(fish, slice) == 1)
+					slice++;
+				ends[nbRuns++] = slice;
+			}
+			runStarts[fish] = Arrays.copyOf(starts, nbRuns);
+			runEnds[fish] = Arrays.copyOf(ends, nbRuns);
+		}
+		valid = true;
+	}
+
+	/* The trajectory point nearest to (x, y) as fish*nbSlices + slice, the lowest zf then slice winning ties, as a scan would.
+	 * Looks at rings of cells around the point until the next ring can't be nearer.
+	 */
+	public int nearest(int x, int y) {
+		if (!valid)
+			build();
+		int cx = Math.min(cols-1, Math.max(0, x/cellSize)), cy = Math.min(rows-1, Math.max(0, y/cellSize));
+		long bestDistance = Long.MAX_VALUE;
+		int best = -1, maxRing = Math.max(Math.max(cx, cols-1-cx), Math.max(cy, rows-1-cy));
+		for (int ring = 0; ring <= maxRing; ring++) {
+			// points of this ring are at least (ring-1)*cellSize away, counted from the border of the center cell
+			long minDistance = (long) Math.max(0, ring-1)*cellSize;
+			if (best >= 0 && minDistance*minDistance > bestDistance)
+				break;
+			for (int row = cy-ring; row <= cy+ring; row++) {
+				if (row < 0 || row >= rows)
+					continue;
+				boolean edgeRow = row == cy-ring || row == cy+ring;
+				for (int col = cx-ring; col <= cx+ring; col += edgeRow ? 1 : 2*ring) {
+					if (col < 0 || col >= cols)
+						continue;
+					int cell = row*cols + col;
+					for (int p = cellStart[cell]; p < cellStart[cell+1]; p++) {
+						int point = points[p], fish = point/nbSlices, slice = point%nbSlices;
+						long dx = trajectories.getX(fish, slice)-x, dy = trajectories.getY(fish, slice)-y, distance = dx*dx+dy*dy;
+						if (distance < bestDistance || (distance == bestDistance && point < best)) {
+							bestDistance = distance;
+							best = point;
+						}
+					}
+					if (ring == 0)
+						break;
+				}
+			}
+		}
+		return best;
+	}
+
+	public int fishOf(int point) {
+		return point/nbSlices;
+	}
+
+	public int sliceOf(int point) {
+		return point%nbSlices;
+	}
+
+	// the last slice up to the given one on which the zf enters a collision, 0 if none
+	public int lastCollisionStart(int fish, int slice) {
+		if (!valid)
+			build();
+		int[] starts = runStarts[fish];
+		int i = lastAtMost(starts, slice);
+		// a segment starting on the first slice isn't entered
+		return i >= 0 && starts[i] > 0 ? starts[i] : 0;
+	}
+
+	// the last slice up to the given one on which the zf leaves a collision, 0 if none
+	public int lastCollisionEnd(int fish, int slice) {
+		if (!valid)
+			build();
+		int[] ends = runEnds[fish];
+		int i = lastAtMost(ends, slice);
+		if (i >= 0 && ends[i] == nbSlices)
+			i--;
+		return i >= 0 ? ends[i] : 0;
+	}
+
+	// the collision segments of a zf, as [start, end) slices
+	int[] collisionStarts(int fish) {
+		if (!valid)
+			build();
+		return runStarts[fish];
+	}
+
+	int[] collisionEnds(int fish) {
+		if (!valid)
+			build();
+		return runEnds[fish];
+	}
+
+	static int lastAtMost(int[] sorted, int value) {
+		int i = Arrays.binarySearch(sorted, value);
+		return i >= 0 ? i : -i-2;
+	}
+
+	int cell(int x, int y) {
+		return Math.min(rows-1, y/cellSize)*cols + Math.min(cols-1, x/cellSize);
+	}
+}
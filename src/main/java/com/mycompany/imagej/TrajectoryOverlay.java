@@ -0,0 +1,182 @@
+package com.mycompany.imagej;
+
+import ij.gui.Overlay;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.Random;
+
+/* The trajectories drawn as polylines on the image, kept up to date piece by piece instead of being redrawn whole.
+ * Each zf's trajectory is cut into chunks of chunkSize slices, each holding its own polylines, so that a stitch only redraws
+ * the chunks of the 2 zf it changed. Before stitching, the polylines are also cut at each collision.
+ * The polylines are decimated for the zoom level: points closer than half a screen pixel to the line through their neighbours are left out.
+ * Zoom levels go by powers of 2, the polylines only being decimated again when the level changes.
+ */
+public class TrajectoryOverlay {
+	TrajectoryStore trajectories;
+	TrajectoryIndex index;
+	Overlay overlay = new Overlay();
+	int chunkSize, nbChunks, level;
+	boolean stitched;
+	Roi[][] rois; // polylines of zf f and chunk c at f*nbChunks + c
+	int[] x, y, keep, stack; // buffers of a chunk's points
+
+	public TrajectoryOverlay(TrajectoryStore trajectories, TrajectoryIndex index) {
+		this(trajectories, index, 2048);
+	}
+
+	public TrajectoryOverlay(TrajectoryStore trajectories, TrajectoryIndex index, int chunkSize) {
+		this.trajectories = trajectories;
+		this.index = index;
+		this.chunkSize = chunkSize;
+		nbChunks = Math.max(1, (trajectories.getNbSlices() + chunkSize-1)/chunkSize);
+		rois = new Roi[trajectories.getNbFish()*nbChunks][];
+		x = new int[chunkSize+1];
+		y = new int[chunkSize+1];
+		keep = new int[chunkSize+1];
+		stack = new int[2*(chunkSize+1)];
+		update(0, trajectories.getNbSlices());
+	}
+
+	public Overlay getOverlay() {
+		return overlay;
+	}
+
+	// once stitched, the trajectories are drawn without any cut at the collisions
+	public void setStitched(boolean stitched) {
+		if (this.stitched == stitched)
+			return;
+		this.stitched = stitched;
+		update(0, trajectories.getNbSlices());
+	}
+
+	// returns whether the polylines were decimated again
+	public boolean setMagnification(double magnification) {
+		int level = (int) Math.floor(Math.log(Math.max(magnification, 1e-3))/Math.log(2));
+		if (level == this.level)
+			return false;
+		this.level = level;
+		update(0, trajectories.getNbSlices());
+		return true;
+	}
+
+	// redraw the chunks of all zf holding slices from to to (excluded)
+	void update(int from, int to) {
+		for (int fish = 0; fish < trajectories.getNbFish(); fish++)
+			update(fish, from, to);
+	}
+
+	// redraw the chunks of a zf holding slices from to to (excluded). A chunk's polylines end on the first slice of the next one, which the one before also draws.
+	public void update(int fish, int from, int to) {
+		int first = Math.max(0, from-1)/chunkSize, last = Math.min(nbChunks-1, Math.max(0, to-1)/chunkSize);
+		for (int chunk = first; chunk <= last; chunk++) {
+			Roi[] old = rois[fish*nbChunks + chunk];
+			if (old != null) {
+				for (Roi roi:old)
+					overlay.remove(roi);
+			}
+			rois[fish*nbChunks + chunk] = polylines(fish, chunk);
+			for (Roi roi:rois[fish*nbChunks + chunk])
+				overlay.add(roi);
+		}
+	}
+
+	/* The polylines of a chunk, from its first slice to the first of the next chunk so that they join.
+	 * Slice 0 isn't drawn. When not stitched, a polyline is cut before each slice in a collision. Polylines of a single point are left out.
+	 */
+	Roi[] polylines(int fish, int chunk) {
+		int from = Math.max(1, chunk*chunkSize), to = Math.min(trajectories.getNbSlices(), (chunk+1)*chunkSize + 1);
+		Roi[] polylines = new Roi[0];
+		int n = 0, segmentStart = from;
+		for (int s = from; s < to; s++) {
+			if (!stitched && s > from && trajectories.getCollision(fish, s) == 1) {
+				polylines = add(polylines, fish, segmentStart, n);
+				n = 0;
+				segmentStart = s;
+			}
+			x[n] = trajectories.getX(fish, s);
+			y[n] = trajectories.getY(fish, s);
+			n++;
+		}
+		return add(polylines, fish, segmentStart, n);
+	}
+
+	Roi[] add(Roi[] polylines, int fish, int segmentStart, int n) {
+		if (n < 2)
+			return polylines;
+		n = decimate(n, 0.5/Math.pow(2, level));
+		PolygonRoi polyline = new PolygonRoi(Arrays.copyOf(x, n), Arrays.copyOf(y, n), n, PolygonRoi.POLYLINE);
+		polyline.setStrokeColor(color(fish, segmentStart));
+		polyline.setStrokeWidth(1);
+		polylines = Arrays.copyOf(polylines, polylines.length+1);
+		polylines[polylines.length-1] = polyline;
+		return polylines;
+	}
+
+	/* A colour per part of a trajectory between 2 collisions, the same whichever chunk it is drawn in: that of the end of the collision it leaves.
+	 * A part leaving a collision starts on its last slice in the collision. The whole trajectory gets one colour once stitched.
+	 */
+	Color color(int fish, int segmentStart) {
+		int leftCollision = stitched ? 0 : trajectories.getCollision(fish, segmentStart) == 1 ? segmentStart+1 : index.lastCollisionEnd(fish, segmentStart);
+		Random random = new Random(31L*fish + leftCollision);
+		return new Color(random.nextFloat(), random.nextFloat(), random.nextFloat());
+	}
+
+	/* Douglas-Peucker decimation of the n first points of the buffers, keeping the points further than tolerance from the segment
+	 * between the kept points around them. Returns the number of points kept, moved to the start of the buffers.
+	 */
+	int decimate(int n, double tolerance) {
+		// repeated points, e.g of a stalled zf, first
+		int m = 1;
+		for (int i = 1; i < n; i++) {
+			if (x[i] != x[m-1] || y[i] != y[m-1]) {
+				x[m] = x[i];
+				y[m] = y[i];
+				m++;
+			}
+		}
+		if (m < 3)
+			return m;
+
+		Arrays.fill(keep, 0, m, 0);
+		keep[0] = keep[m-1] = 1;
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = m-1;
+		double tolerance2 = tolerance*tolerance;
+		while (top > 0) {
+			int last = stack[--top], first = stack[--top];
+			double dx = x[last]-x[first], dy = y[last]-y[first], length2 = dx*dx+dy*dy;
+			int farthest = -1;
+			double maxDistance2 = tolerance2;
+			for (int i = first+1; i < last; i++) {
+				// to the segment rather than to the line, as zf often swim back
+				double px = x[i]-x[first], py = y[i]-y[first];
+				double t = length2 == 0 ? 0 : Math.max(0, Math.min(1, (px*dx+py*dy)/length2));
+				double ex = px-t*dx, ey = py-t*dy, distance2 = ex*ex+ey*ey;
+				if (distance2 > maxDistance2) {
+					maxDistance2 = distance2;
+					farthest = i;
+				}
+			}
+			if (farthest >= 0) {
+				keep[farthest] = 1;
+				stack[top++] = first;
+				stack[top++] = farthest;
+				stack[top++] = farthest;
+				stack[top++] = last;
+			}
+		}
+		int kept = 0;
+		for (int i = 0; i < m; i++) {
+			if (keep[i] == 1) {
+				x[kept] = x[i];
+				y[kept] = y[i];
+				kept++;
+			}
+		}
+		return kept;
+	}
+}
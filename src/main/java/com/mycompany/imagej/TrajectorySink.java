@@ -0,0 +1,11 @@
+package com.mycompany.imagej;
+
+/* Receives the positions and collision flags of the zf as the tracking passes produce them.
+ * index is the slice number minus 1. Both passes write to the same sink, each on its own thread and on its own indices.
+ * Once commit(index) is called no value of this index is written anymore, so that a sink may let go of it.
+ */
+public interface TrajectorySink {
+	void setPosition(int fish, int index, int x, int y);
+	void setCollision(int fish, int index, int collision);
+	void commit(int index);
+}
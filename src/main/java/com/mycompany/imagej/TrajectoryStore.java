@@ -0,0 +1,117 @@
+package com.mycompany.imagej;
+
+/* The trajectories kept in memory as primitive columns, one per zf, instead of one Point per zf and slice.
+ * A position is packed in an int as (x << 16) | y, which holds images up to 65536 pixels wide, and the collision flags are a bitset.
+ * Columns are split into chunks of CHUNK_SIZE slices, so that they can grow without copying what was already tracked.
+ * Positions of different slices may be written from different threads. Collision flags are packed 64 to a word, so they are set under a lock.
+ */
+public class TrajectoryStore implements TrajectorySink {
+	static final int CHUNK_BITS = 14, CHUNK_SIZE = 1 << CHUNK_BITS, CHUNK_MASK = CHUNK_SIZE-1;
+	int nbFish, nbSlices;
+	int[][][] positions; // [fish][chunk][slice in chunk]
+	long[][][] collisions; // same, 64 slices per word
+
+	public TrajectoryStore(int nbFish, int nbSlices) {
+		this.nbFish = nbFish;
+		positions = new int[nbFish][0][];
+		collisions = new long[nbFish][0][];
+		ensureCapacity(nbSlices);
+	}
+
+	// grows the columns to hold nbSlices slices. Not to be called while tracking into the store.
+	public void ensureCapacity(int nbSlices) {
+		int nbChunks = (nbSlices + CHUNK_MASK) >> CHUNK_BITS;
+		for (int fish = 0; fish < nbFish; fish++) {
+			int oldChunks = positions[fish].length;
+			if (oldChunks >= nbChunks)
+				continue;
+			int[][] grownPositions = new int[nbChunks][];
+			long[][] grownCollisions = new long[nbChunks][];
+			System.arraycopy(positions[fish], 0, grownPositions, 0, oldChunks);
+			System.arraycopy(collisions[fish], 0, grownCollisions, 0, oldChunks);
+			for (int c = oldChunks; c < nbChunks; c++) {
+				grownPositions[c] = new int[CHUNK_SIZE];
+				grownCollisions[c] = new long[CHUNK_SIZE >> 6];
+			}
+			positions[fish] = grownPositions;
+			collisions[fish] = grownCollisions;
+		}
+		this.nbSlices = Math.max(this.nbSlices, nbSlices);
+	}
+
+	public int getNbFish() {
+		return nbFish;
+	}
+
+	public int getNbSlices() {
+		return nbSlices;
+	}
+
+	public int getX(int fish, int index) {
+		return packed(fish, index) >>> 16;
+	}
+
+	public int getY(int fish, int index) {
+		return packed(fish, index) & 0xffff;
+	}
+
+	public int getCollision(int fish, int index) {
+		return (int) (collisions[fish][index >> CHUNK_BITS][(index & CHUNK_MASK) >> 6] >>> (index & 63)) & 1;
+	}
+
+	// whether the zf stood still between both slices
+	boolean samePosition(int fish, int index1, int index2) {
+		return packed(fish, index1) == packed(fish, index2);
+	}
+
+	int packed(int fish, int index) {
+		return positions[fish][index >> CHUNK_BITS][index & CHUNK_MASK];
+	}
+
+	@Override
+	public void setPosition(int fish, int index, int x, int y) {
+		positions[fish][index >> CHUNK_BITS][index & CHUNK_MASK] = (x << 16) | (y & 0xffff);
+	}
+
+	@Override
+	public synchronized void setCollision(int fish, int index, int collision) {
+		long[] words = collisions[fish][index >> CHUNK_BITS];
+		int word = (index & CHUNK_MASK) >> 6;
+		long bit = 1L << (index & 63);
+		words[word] = collision != 0 ? words[word] | bit : words[word] & ~bit;
+	}
+
+	@Override
+	public void commit(int index) {}
+
+	// exchanges the positions and collision flags of two zf on one slice
+	void swap(int fish1, int fish2, int index) {
+		int chunk = index >> CHUNK_BITS, i = index & CHUNK_MASK;
+		int position = positions[fish1][chunk][i];
+		positions[fish1][chunk][i] = positions[fish2][chunk][i];
+		positions[fish2][chunk][i] = position;
+		int collision = getCollision(fish1, index);
+		setCollision(fish1, index, getCollision(fish2, index));
+		setCollision(fish2, index, collision);
+	}
+
+	double distance(int fish, int index, int x, int y) {
+		int dx = getX(fish, index)-x, dy = getY(fish, index)-y;
+		return Math.sqrt(dx*dx+dy*dy);
+	}
+
+	// distance covered by a zf between two slices
+	double distance(int fish, int index1, int index2) {
+		return distance(fish, index1, getX(fish, index2), getY(fish, index2));
+	}
+
+	// speed of a zf on a slice, from the distance it covered since the previous slice. 0 on the first slice.
+	double speed(int fish, int index, int frameRate) {
+		return index > 0 ? speed(distance(fish, index, index-1), frameRate) : 0;
+	}
+
+	// pixels per second from the pixels covered between two slices, i.e frameRate slices per second
+	static double speed(double distance, int frameRate) {
+		return distance*frameRate;
+	}
+}
@@ -4,14 +4,7 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 
 import ij.gui.WaitForUserDialog;
-import ij.gui.Roi;
-import ij.gui.PolygonRoi;
 import ij.gui.GenericDialog;
-import ij.gui.OvalRoi;
-import ij.gui.Overlay;
-import ij.plugin.frame.RoiManager;
-import ij.plugin.filter.ParticleAnalyzer;
-import ij.process.ImageProcessor;
 import ij.measure.ResultsTable;
 import ij.IJ;
 import ij.ImageJ;
@@ -20,35 +13,32 @@ import ij.ImagePlus;
 import org.scijava.command.Command;
 import org.scijava.plugin.Plugin;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
-import java.awt.Color;
 import java.awt.Point;
 
 @Plugin(type = Command.class, menuPath = "Plugins>ZF Tracking")
 public class ZF_Tracking<T extends RealType<T>> implements Command, KeyListener, MouseListener {
     String TEXT1 = "Click on each of the tracked particles.\nPress [ _ ] (underscore) once done, then OK to resume.";
     String TEXT2 = "Stitch the trajectories by clicking on 2 of them with the point selection tool.\nPress [ _ ] (underscore) at each 2 that have been selected. "
-    		+ "\nThe 2 last clicked trajectories are bound together. Once done, press OK to resume.";
-    double defaultRadius = 20.0, collisionHandlerRadius = 20.0, objectThreshold = 100, zfThreshold = 125, zfSize = 2, collision_dist = 5, previousSliceMax, zfThreshApprox = 1;
-    int maximal_area = 80, startSlice, collision, nbClicks = 1, frameRate=30;
-    boolean canCreateROIs = true, trackingDone = false;
-    boolean[] canMove; // zf rois are immobilized while handling collisions
-    RoiManager zfManager, objManager,collisionManager;
-    ArrayList<Roi> collisionList = new ArrayList<Roi>();
-    int[][] collisionRecord;
-    Point[][] positionList;
-    Roi[] roiArray, roiArrayStart;
-    Roi collisionRoi;
-    Point minPoint;
-    ImageProcessor imp;
+    		+ "\nThe 2 last clicked trajectories are bound together. Once done, press OK to resume."
+    		+ "\nPress [F5] to track a range of slices again with other parameters, the selected points moving the nearest zebrafish on their slices.";
+    int startSlice, nbClicks = 1, arenaRows = 2, arenaCols = 3, expectedFish = 0, segmentLength = 0;
+    boolean canCreateROIs = true, trackingDone = false, exportCsv = false, exportBinary = false, compressExports = false, measureTracking = false, autoStitch = true;
+    String resultsTable = "Full", exportDirectory, arenas = "Whole frame", seeding = "Click";
+    TrackingParameters params = new TrackingParameters();
+    TrajectoryStore trajectories;
+    TrajectoryIndex index;
+    TrajectoryOverlay overlay;
+    IdentityMap identities; // the stitches made to the tracker's trajectories, for re-tracking under the stitched identities
+    TrackingEngine engine; // kept for re-tracking, when the whole frame is tracked
+    Point[] seeds;
     ImagePlus image;
-    ParticleAnalyzer pa;
     ResultsTable rt;
     
     @Override
@@ -59,347 +49,236 @@ public class ZF_Tracking<T extends RealType<T>> implements Command, KeyListener,
     	image.getWindow().getCanvas().addKeyListener(this);
     	image.getWindow().addMouseListener(this);
     	image.getWindow().getCanvas().addMouseListener(this);
-        
-    	// a ROI manager for tracking objects
-    	zfManager = new RoiManager(false);
-    	zfManager.runCommand("Show All with labels");
-    	zfManager.runCommand("Associate", "true");
-    	// a ROI manager to exclude large objects
-    	objManager = new RoiManager(false); // uses a dedicated particle analyzer which stores in it all particles for which size > max
-    	pa = new ParticleAnalyzer(ParticleAnalyzer.ADD_TO_MANAGER,0,rt,maximal_area,Double.MAX_VALUE);
-    	ParticleAnalyzer.setRoiManager(objManager);
-    	// a ROI manager for handling collisions
-    	collisionManager = new RoiManager(false);
     	
     	// getting user inputs. returns a boolean for canceling the macro and stores the input values
     	if (getUserInputs())
     		return;
         
-    	IJ.setTool("multipoint");
-    	new WaitForUserDialog(TEXT1).show(); 
-    	int nbSlices = image.getImageStackSize(), nbROIs = roiArrayStart.length;
-    	canMove = new boolean[nbROIs]; Arrays.fill(canMove, true);
-    	collisionRecord = new int[nbROIs][nbSlices];
-        
-    	roiArray = roiArrayStart;
-    	positionList = new Point[nbROIs][nbSlices];
-    	minPoint = new Point();
-    	// base case
-    	for (int i = 0 ; i < roiArray.length ; i++) {
-    		zfManager.addRoi(roiArray[i]);
-    		positionList[i][startSlice-1] = roiCenter(roiArray[i]);
-    	}
-    	
-    	// compute trajectories
-    	for (int i = startSlice ; i < nbSlices ; i++) {
-    		moveRois(i,i+1);
+    	if (seeding.equals("Automatic")) {
+    		if (!detectSeeds())
+    			return;
+    	} else {
+    		IJ.setTool("multipoint");
+    		new WaitForUserDialog(TEXT1).show(); 
     	}
-
-    	setRoisFromArray(roiArrayStart); // re-initialize the zfManager
-    	Arrays.fill(canMove, true); // re-initialize collision handling
-    	collisionManager.reset();
     	
-    	for (int i = startSlice ; i > 1 ; i--) {
-    		moveRois(i,i-1);
+    	// compute trajectories, forward from the start slice then backward
+    	StackFrameSource source = new StackFrameSource(image.getStack());
+    	engine = null;
+    	if (arenas.equals("Whole frame") && segmentLength > 0) {
+    		// time segments tracked at the same time, then joined
+    		SegmentTracker tracker = new SegmentTracker(params, source);
+    		tracker.setSeeds(startSlice, seeds);
+    		tracker.setSegments(segmentLength, Math.min(50, segmentLength/4));
+    		tracker.track();
+    		trajectories = tracker.getTrajectories();
+    		IJ.log("ZF Tracking: "+tracker.getNbSegments()+" segments, "+tracker.getNbUnmatched()+" zf unmatched at their boundaries, "+tracker.getNbSeededFromNeighbours()+" seeded from their neighbours");
+    	} else if (arenas.equals("Whole frame")) {
+    		engine = new TrackingEngine(params, source);
+    		engine.setSeeds(startSlice, seeds);
+    		engine.setMeasuring(measureTracking);
+    		engine.setFrameCache(new FrameCache(source.getSize()));
+    		engine.setKeyframes(200);
+    		engine.track();
+    		trajectories = engine.getTrajectories();
+    		if (measureTracking)
+    			exportMetrics(engine.getMetrics());
+    	} else {
+    		// each well is tracked on its own, all at the same time
+    		ArenaTracker tracker = new ArenaTracker(params, source, arenas.equals("Grid") ?
+    				ArenaTracker.grid(image.getWidth(), image.getHeight(), arenaRows, arenaCols) : ArenaTracker.fromRoiManager());
+    		tracker.setSeeds(startSlice, seeds);
+    		tracker.setMeasuring(measureTracking);
+    		try {
+    			tracker.track();
+    		} catch (IllegalArgumentException e) {
+    			IJ.error("ZF Tracking", e.getMessage());
+    			return;
+    		}
+    		trajectories = tracker.getTrajectories();
+    		if (measureTracking)
+    			exportMetrics(tracker.getMetrics());
     	}
+    	int nbSlices = trajectories.getNbSlices(), nbROIs = trajectories.getNbFish();
+    	index = new TrajectoryIndex(trajectories, params.defaultRadius);
+    	identities = new IdentityMap();
+    	if (autoStitch)
+    		autoStitch();
     	
     	/* Draw the trajectories as an overlay of the input image 
     	 * When a collision is detected in the trajectory,
     	 * the already read positions are written to a new polyline.
     	 */
-    	image.setOverlay(zfTrajectories(false));
+    	overlay = new TrajectoryOverlay(trajectories, index);
+    	zoomed();
+    	image.setOverlay(overlay.getOverlay());
     	trackingDone = true;
     	
     	// stitch the trajectories together
-    	zfManager.reset(); // re-use the zfManager for handling the clicking
     	new WaitForUserDialog(TEXT2).show();
     	
-    	// write the positions to a result table: zebrafish index, X, Y, speed.
+    	// write the positions to files and/or to a result table: zebrafish index, X, Y, speed.
     	trackingDone = false;
-    	IJ.run("Clear Results", "");
-    	IJ.run("Set Measurements...", "  redirect=None decimal=4");
-    	double speed;
-    	for (int zf = 0; zf < nbROIs; zf++) {
-    		for (int slice = 0; slice < nbSlices; slice++) {
-    			rt.addRow();
-    			rt.addValue("Zebrafish", zf+1);
-    			rt.addValue("On slice", slice+1);
-    			rt.addValue("X", positionList[zf][slice].x);
-    			rt.addValue("Y", positionList[zf][slice].y);
-    			speed = slice > 0 ? distance(positionList[zf][slice],positionList[zf][slice-1])/frameRate:0;
-    			rt.addValue("Speed (pixels/s)", speed);
-    			rt.addValue("Collision", collisionRecord[zf][slice]);
+    	exportResults();
+    	BehaviourAnalytics analytics = exportCsv || resultsTable.equals("Summary") ? analyze() : null;
+    	if (resultsTable.equals("Summary")) {
+    		if (analytics != null)
+    			analytics.summary().show("Zebrafish Tracking Summary");
+    	} else if (resultsTable.equals("Full")) {
+    		IJ.run("Clear Results", "");
+    		rt = ResultsTable.getResultsTable(); // e.g not set yet with automatic seeds
+    		IJ.run("Set Measurements...", "  redirect=None decimal=4");
+    		for (int zf = 0; zf < nbROIs; zf++) {
+    			for (int slice = 0; slice < nbSlices; slice++) {
+    				rt.addRow();
+    				rt.addValue("Zebrafish", zf+1);
+    				rt.addValue("On slice", slice+1);
+    				rt.addValue("X", trajectories.getX(zf, slice));
+    				rt.addValue("Y", trajectories.getY(zf, slice));
+    				rt.addValue("Speed (pixels/s)", trajectories.speed(zf, slice, params.frameRate));
+    				rt.addValue("Collision", trajectories.getCollision(zf, slice));
+    			}
     		}
+    		rt.show("Zebrafish Tracking Results");
     	}
-    	rt.show("Zebrafish Tracking Results");
     }
-
-    void moveRois (int fromSlice, int toSlice) {
-    	double flickeringVariation = sliceDiff(fromSlice, toSlice);
-    	image.setPosition(toSlice);
-    	objectThreshold += flickeringVariation;
-    	zfThreshold += flickeringVariation;
-		IJ.setThreshold(0, objectThreshold, "No Update");
-    	pa.analyze(image);
-		
-		roiArray = zfManager.getRoisAsArray();
-		ImageProcessor nextSlice = image.getStack().getProcessor(toSlice);
-    	for (int j = 0 ; j < roiArray.length ; j++) { // enhanced for loops don't allow updating the array within the loop (which reduce(args) is doing)
-    		Roi roi = zfManager.getRoi(j);
-    		Point center = roiCenter(roi);
-    		positionList[j][toSlice-1] = center;
-    		roi.setPosition(toSlice);
-    		trackMin(j, fromSlice, toSlice, nextSlice);
-    	}
-
-        handleCollisions(fromSlice, toSlice, nextSlice);
-    }
-
-    void trackMin(int roiIndex, int fromSlice, int toSlice, ImageProcessor ip) {
-    	if (toSlice == positionList[0].length || toSlice < 0)
-    		return;
-    	Roi temp = zfManager.getRoi(roiIndex);
-    	minPoint = getMin(temp,ip);
-    	if (isAvailable(minPoint) && canMove[roiIndex])
-    		temp.setLocation(minPoint.x-temp.getBounds().width/2, minPoint.y-temp.getBounds().height/2);
-    	collisionList = getCollisions(temp, roiIndex, fromSlice, toSlice);
-    	if (collisionList.size() > 0)
-    		reduce(temp, collisionList);
-    	else {
-    		expand(temp, roiIndex, fromSlice, toSlice);
+    
+    // files are named after the image and written to the export directory
+    void exportResults() {
+    	String name = image.getTitle().replaceFirst("\\.[^.]*$", ""), gz = compressExports ? ".gz" : "";
+    	try {
+    		if (exportCsv)
+    			ResultsExporter.writeCsv(trajectories, params.frameRate, new File(exportDirectory, name+"_tracking.csv"+gz), compressExports);
+    		if (exportBinary)
+    			ResultsExporter.writeBinary(trajectories, params.frameRate, new File(exportDirectory, name+"_tracking.zfrs"+gz), compressExports);
+    	} catch (IOException e) {
+    		IJ.error("ZF Tracking", "Could not export the results: "+e.getMessage());
     	}
     }
-
-    Point getMin (Roi roi, ImageProcessor ip) {
-    	int min = 255, pixelValue = 0;
-    	Point minPoint = new Point();
-    	for (Point p:roi) {
-    		pixelValue = (int) ip.getValue(p.x,p.y);
-    		if (min > pixelValue) {
-    			min = pixelValue;
-    			minPoint = p;
-    		}
+    
+    // kinematics and bouts of each zf once stitched, written next to the CSV export if any
+    BehaviourAnalytics analyze() {
+    	String name = image.getTitle().replaceFirst("\\.[^.]*$", ""), gz = compressExports ? ".gz" : "";
+    	try {
+    		Writer bouts = exportCsv ? ResultsExporter.csvWriter(new File(exportDirectory, name+"_bouts.csv"+gz), compressExports, BehaviourAnalytics.BOUT_HEADER) : null;
+    		BehaviourAnalytics analytics = BehaviourAnalytics.analyze(trajectories, params, bouts);
+    		if (exportCsv)
+    			analytics.writeSummary(new File(exportDirectory, name+"_summary.csv"+gz), compressExports);
+    		return analytics;
+    	} catch (IOException e) {
+    		IJ.error("ZF Tracking", "Could not export the behaviour summary: "+e.getMessage());
+    		return null;
     	}
-    	return minPoint;
     }
     
-    Point getMin (Roi roi, ImageProcessor ip, double threshold) {
-    	int min = 255, pixelValue = 0;
-    	Point minPoint = new Point();
-    	for (Point p:roi) {
-    		pixelValue = (int) ip.getValue(p.x,p.y);
-    		if (min > pixelValue) {
-    			min = pixelValue;
-    			minPoint = p;
-    		}
+    // logs where the tracking time went and writes it, along with the collisions and lost zf of each slice, next to the other exports
+    void exportMetrics(TrackingMetrics metrics) {
+    	metrics.log();
+    	String name = image.getTitle().replaceFirst("\\.[^.]*$", "");
+    	try {
+    		metrics.writeJson(new File(exportDirectory, name+"_metrics.json"));
+    	} catch (IOException e) {
+    		IJ.error("ZF Tracking", "Could not export the tracking metrics: "+e.getMessage());
     	}
-    	return (min <= threshold+zfThreshApprox) ? minPoint : null;
     }
     
-    Point getMin (Roi roi, ImageProcessor ip, double threshold, ArrayList<Point> exceptThese, double exclusionRadius) {
-    	if (exceptThese.size() == 0)
-    		return getMin(roi, ip, threshold);
-    	
-    	int min = 255, pixelValue = 0, nbExcluded = exceptThese.size();
-    	Point minPoint = new Point();
-    	boolean available = true;
-    	for (Point p:roi) {
-    		pixelValue = (int) ip.getValue(p.x,p.y);
-    		int p1 = 0;
-    		do {
-    			available = distance(exceptThese.get(p1),p)>exclusionRadius;
-    			p1++;
-    		} while (available && p1 < nbExcluded);
-    		
-    		if (min > pixelValue && available) {
-    			min = pixelValue;
-    			minPoint = p;
-    		}
-    		available = true;
+    // find the seeds without any click, on the current slice or on the one where the expected number of zebrafish is best found
+    boolean detectSeeds() {
+    	canCreateROIs = false;
+    	SeedDetector detector = new SeedDetector(params);
+    	StackFrameSource source = new StackFrameSource(image.getStack());
+    	SeedDetector.Result result = expectedFish > 0 ? detector.findStart(source, expectedFish) : detector.detect(source, image.getCurrentSlice());
+    	if (result == null || result.seeds.length == 0) {
+    		IJ.error("ZF Tracking", "No zebrafish found darker than the object maximal intensity");
+    		return false;
     	}
-    	return (min <= threshold+zfThreshApprox) ? minPoint : null;
+    	startSlice = result.startSlice;
+    	seeds = result.seeds;
+    	IJ.log("ZF Tracking: "+seeds.length+" zebrafish found on slice "+startSlice);
+    	return true;
     }
-
-    boolean isAvailable(Point point) {
-    	boolean isRoiCenter = false;
-    	for (int r = 0; r<zfManager.getCount(); r++) {
-    		isRoiCenter = point.equals(roiCenter(zfManager.getRoi(r)));
+    
+    /* Track a range of slices again from the frames kept in cache, e.g with another tracking radius or collision distance.
+     * Each point selected beforehand moves the nearest zebrafish on its slice there. The slices outside the range are kept as they are.
+     */
+    void retrack() {
+    	if (engine == null) {
+    		IJ.error("ZF Tracking", "Only whole frame tracking, not in time segments, can be tracked again");
+    		return;
     	}
-    	return !(isInROI(point,objManager) || isRoiCenter);
-    }
-
-    ArrayList<Roi> getCollisions(Roi roi, int roiIndex, int fromSlice, int toSlice) { // collisions occurring on toSlice
-    	ArrayList<Roi> collidesWith = new ArrayList<Roi>();
-    	double collisionX = 0, collisionY = 0;
-    	int nbColliding = 1;
-    	for (int i = 0; i < zfManager.getCount(); i++) {
-    		if (roiIndex != i) {
-    			Roi roi2 = zfManager.getRoi(i);
-    			double minDist = (roi.getBounds().getWidth() + roi2.getBounds().getWidth())/2, dist = distance(roiCenter(roi),roiCenter(roi2));
-    			if (dist <= minDist) { // the bounding boxes are colliding
-    				collidesWith.add(roi2);
-    				collision = -(Double.compare(dist, collision_dist)>>1); // is equal to 1 when dist < COLLISION_DIST and 0 otherwise
-    				collisionX += roiCenter(roi2).x*collision; 
-    				collisionY += roiCenter(roi2).y*collision;
-    				nbColliding += collision;
-    				collisionRecord[roiIndex][toSlice] = collision;
-    			}
+    	int nbSlices = trajectories.getNbSlices();
+    	rt = ResultsTable.getResultsTable();
+    	IJ.run("Clear Results","");
+    	IJ.run("Set Measurements..."," redirect=None decimal=1");
+    	IJ.run(image, "Measure", "");
+    	int from = nbSlices, to = 1;
+    	for (int p = 0; p < rt.getCounter(); p++) {
+    		int slice = (int) rt.getValue("Slice", p), x = (int) rt.getValue("X", p), y = (int) rt.getValue("Y", p), nearest = 0;
+    		for (int fish = 1; fish < trajectories.getNbFish(); fish++)
+    			nearest = trajectories.distance(fish, slice-1, x, y) < trajectories.distance(nearest, slice-1, x, y) ? fish : nearest;
+    		if (slice != startSlice) {
+    			// the engine numbers the zf as it tracked them, before any stitch
+    			engine.setCorrection(slice, identities.tracked(slice-1, nearest), x, y);
+    			from = Math.min(from, slice);
+    			to = Math.max(to, slice);
     		}
     	}
-    	// create a perimeter for handling the collision
-    	collisionX += collisionX > 0 ? roiCenter(roi).x : 0; collisionY += collisionY > 0 ? roiCenter(roi).y : 0;
-    	collisionX /= nbColliding; collisionY /= nbColliding;
-    	if (collisionX + collisionY != 0 && !isInROI(new Point((int)collisionX,(int)collisionY),collisionManager)) {
-			collisionRoi = makeCircleRoi(collisionX,collisionY,collisionHandlerRadius);
-			collisionRoi.setPosition(toSlice);
-			collisionManager.addRoi(collisionRoi);
-    	}
-    	collision = 0;
+    	IJ.run("Clear Results","");
     	
-        return collidesWith;
-    }
-    
-    /* Called once per frame. Doesn't match trajectories after collision. Stitching is done manually or by a separate method (?).
-     * Detects the zf in the collision area and draws a new trajectory for the zf moving away from the collision.
-     * 1.  Counts the number of zf in each of the colliding areas thanks to thresholding methods.
-     * 2.a If the number increases (i.e the dots are separating), assign the ROIs to minima without preference and allow their movement. 
-     * 2.b Else, replace the number with the current value and write down <code>null<\code> as the position of the ROI on this frame and prohibit their movement.
-     *     This will then be used when stitching the trajectories together.
-     */
-    void handleCollisions (int fromSlice, int toSlice, ImageProcessor nextSlice) {
-    	if (collisionManager.getCount() == 0)
+    	GenericDialog gd = new GenericDialog("ZF Larvae Re-tracking");
+    	gd.addNumericField("From_slice", to >= from ? from : image.getCurrentSlice(), 0);
+    	gd.addNumericField("To_slice", nbSlices, 0);
+    	gd.addNumericField("Error bar for zebrafish maximum intensity", params.zfThreshApprox);
+    	gd.addNumericField("Tracking_radius", params.defaultRadius, 0);
+    	gd.addNumericField("Collision_manager_radius", params.collisionHandlerRadius, 0);
+    	gd.addNumericField("Collision_distance", params.collision_dist);
+    	gd.showDialog();
+    	if (gd.wasCanceled())
     		return;
-
-		// get the number of colliding zfs, nearby zfs which might interfere, and dark spots
-		for (int c = 0; c < collisionManager.getCount(); c++) { // enhanced for loops cannot be used when there is no instance of the ROI manager
-			ArrayList<Point> minima = new ArrayList<Point>();
-			ArrayList<Integer> collidingZFs = new ArrayList<Integer>(), inRadiusZFs = new ArrayList<Integer>(); 
-			ArrayList<Point> nearbyZFs = new ArrayList<Point>();
-			Point min = new Point();
-			double dist = 0;
-			boolean isColliding = false;
-			collisionManager.getRoi(c).setPosition(toSlice);
-			
-			// this lengthy approach has the advantage of selecting colliding ROIs based on their distances between one another, and not with the collision's centroid 
-			for (int z = 0; z < zfManager.getCount(); z++) {
-				dist = distance(roiCenter(zfManager.getRoi(z)),roiCenter(collisionManager.getRoi(c)));
-				if (dist < collisionHandlerRadius) {
-					inRadiusZFs.add(z);
-				}
-			}
-			for (int z:inRadiusZFs) {
-				int z1 = 0;
-				Point z_center = roiCenter(zfManager.getRoi(z));
-				do {
-					dist = (z != z1) ? distance(z_center, roiCenter(zfManager.getRoi( inRadiusZFs.get(z1) ))) : Double.MAX_VALUE;
-					isColliding = dist <= collision_dist;
-					z1++;
-				} while (!isColliding && z1 < inRadiusZFs.size());
-				
-				if (isColliding)
-					collidingZFs.add(z);
-				else {
-					nearbyZFs.add(z_center);
-				}
-				
-				isColliding = false;
-			} // i.e ROI managers that are in the collision manager but not partaking in the collision are stored in nearbyZFs and excluded from minima search below
-			
-			do {
-				// exclude from the search minima that are already counted in and minima that belong to nearby ROIs which are not colliding
-				min = getMin(collisionManager.getRoi(c),nextSlice,zfThreshold,nearbyZFs,zfSize);
-				if (min != null) {
-					minima.add(min);
-					nearbyZFs.add(min);
-				}
-			} while (min != null);
-			
-			int nbDarkSpots = minima.size();
-			for (int z:collidingZFs) {
-				canMove[z] = nbDarkSpots == 0;
-			}
-			if (nbDarkSpots <= collidingZFs.size() && nbDarkSpots > 1) {
-			// i.e at least one zf is moving away from the collision
-				for (int p = 0; p<nbDarkSpots; p++) {
-					int index = collidingZFs.get(p);
-					canMove[index] = true;
-					setCircleRoi(minima.get(p).x,minima.get(p).y,defaultRadius,index);
-					collisionList = getCollisions(zfManager.getRoi(index), index, fromSlice, toSlice);
-					if (collisionList.size()>0)
-						reduce(zfManager.getRoi(index),collisionList);
-				}
-				if (nbDarkSpots == collidingZFs.size()) {
-					collisionManager.select(c); 
-					collisionManager.runCommand(image,"Delete");
-				}
-			}
-		}
+    	from = (int) gd.getNextNumber();
+    	to = (int) gd.getNextNumber();
+    	params.zfThreshApprox = gd.getNextNumber();
+    	params.defaultRadius = gd.getNextNumber();
+    	params.collisionHandlerRadius = gd.getNextNumber();
+    	params.collision_dist = gd.getNextNumber();
+    	
+    	engine.retrack(from, to, identities);
+    	index.invalidate();
+    	// the positions of the range and the collision flags of the slice after it were written
+    	for (int fish = 0; fish < trajectories.getNbFish(); fish++)
+    		overlay.update(fish, from-1, to+1);
+    	image.setOverlay(overlay.getOverlay());
     }
     
-    void reduce(Roi roi, ArrayList<Roi> collidesWith) {
-    	int index = zfManager.getRoiIndex(roi);
-    	for (Roi r:collidesWith) {
-    		Roi reduce = zfManager.getRoi(index);
-    		Point roi1 = roiCenter(reduce), roi2 = roiCenter(r);
-    		double radius = distance(roi1,roi2); // since the roi will be constructed from the top left corners of their bounding boxes...
-    		setCircleRoi(roi1.x,roi1.y,radius,zfManager.getRoiIndex(reduce));
-    		setCircleRoi(roi2.x,roi2.y,radius,zfManager.getRoiIndex(r)); 
-    		roiArray = zfManager.getRoisAsArray(); // After running rm.setRoi(), r and roi refer to nothing anymore.
+    // resolve the collisions whose outcome is clear from the motion of the zf, the others are left for manual stitching
+    void autoStitch() {
+    	AutoStitcher stitcher = new AutoStitcher(params, trajectories, index, startSlice);
+    	stitcher.setIdentities(identities);
+    	int nbStitched = stitcher.stitch();
+    	IJ.log("ZF Tracking: "+nbStitched+" collisions stitched automatically, "+stitcher.getUnresolved().size()+" left");
+    	for (AutoStitcher.Collision collision:stitcher.getUnresolved()) {
+    		String fish = "";
+    		for (int f:collision.fish)
+    			fish += (fish.isEmpty() ? "" : ", ")+(f+1);
+    		IJ.log("   slices "+(collision.start+1)+" to "+collision.end+": zebrafish "+fish);
     	}
     }
-
-    void expand(Roi roi, int roiIndex, int fromSlice, int toSlice) {
-    	double x = roiCenter(roi).x, y = roiCenter(roi).y;
-    	setCircleRoi(x,y,defaultRadius,zfManager.getRoiIndex(roi));
-    	roi = zfManager.getRoi(roiIndex); // update the reference to the newly expanded roi before checking for collisions
-    	collisionList = getCollisions(roi, roiIndex, fromSlice, toSlice);
-    	if (collisionList.size() > 0)
-    		reduce(roi, collisionList);	
-    }
-    
-    // ImageJ constructs rois based on a the top-left point of the bounding rectangle.
-    // This method allows the use of center points.
-    void setCircleRoi(double x, double y, double radius, int index) {
-    	zfManager.setRoi(makeCircleRoi(x,y,radius), index);
-    }
-    
-    Roi makeCircleRoi(double x, double y, double radius) {
-    	return new OvalRoi(x-radius/2,y-radius/2,radius,radius);
-    }
     
-    // getX,YBase returns the coordinates of the top left corner of the bounding rectangle.
-    // gets the center of the ROI.
-    Point roiCenter(Roi roi) {
-    	double width = roi.getBounds().getWidth();
-    	double height = roi.getBounds().getHeight();
-    	double x = roi.getXBase() + width/2;
-    	double y = roi.getYBase() + height/2;
-    	return new Point((int) x,(int) y);
-    }
-    
-    // create the search ROIs from user inputs and define a pixel value threshold for zebrafish (i.e the max of all mins from the startROIs)
+    // create the seeds from user inputs. The zebrafish threshold is then computed by the tracking engine.
     void createStartROIs() {
-    	ArrayList<Double> minList = new ArrayList<Double>();
     	rt = ResultsTable.getResultsTable(); // returns the front-most rt
     	IJ.run("Clear Results", "");
     	IJ.run("Set Measurements...", "  redirect=None decimal=3");
     	IJ.run(image, "Measure", "");
     	startSlice = (int) rt.getValue("Slice", 0);
-    	double[][] coordinates = new double[2][rt.getCounter()];
-    	for (int i = 0; i < coordinates[0].length*2; i++) {
-    		coordinates[i%2][i/2] = i%2 == 0 ? rt.getValue("X", i/2) : rt.getValue("Y", i/2); // int a / int b = Math.floor(a/b);
+    	seeds = new Point[rt.getCounter()];
+    	for (int i = 0 ; i < seeds.length ; i++) {
+    		seeds[i] = new Point((int) rt.getValue("X", i), (int) rt.getValue("Y", i));
     	}
     	IJ.run("Clear Results", "");
-    	roiArrayStart = new Roi[coordinates[0].length];
-    	ImageProcessor ipStart = IJ.getImage().getStack().getProcessor(startSlice);
-    	for (int i = 0 ; i < coordinates[0].length ; i++) {
-    		roiArrayStart[i] = makeCircleRoi(coordinates[0][i], coordinates[1][i], defaultRadius);
-    		minList.add(Collections.min( Arrays.asList(getContainedPointsValues(roiArrayStart[i],ipStart))) );
-    	}
-    	zfThreshold = Collections.max(minList);
     }
     
-    /* When the user clicks on the image, the nearest point in positionList is collected.
+    /* When the user clicks on the image, the nearest point of the trajectories is collected.
 	 * If the user presses [ _ ], the 2 corresponding paths are stitched together:
 	 * Starting from the nearest upstream registered collision and finishing at the nearest downstream registered collision of the second clicked roi,
 	 * all the points of this roi are swapped with the points of the first clicked at the corresponding slices. The collision record also has to be swapped.
@@ -410,10 +289,8 @@ public class ZF_Tracking<T extends RealType<T>> implements Command, KeyListener,
 	 * */
     void stitch() {
     	Point clicked1 = new Point(); Point clicked2 = new Point();
-    	int roiIndex1 = 0; int roiIndex2 = 0, tempInt, nbSlices = positionList[0].length;
-    	int endOfCollision=0, endOfCollision1=0, endOfCollision2=0, startOfCollision=0, startOfCollision1=0, startOfCollision2=0;
-    	Point temp = new Point();
-    	double minDist1 = Double.MAX_VALUE, minDist2 = Double.MAX_VALUE, dist;
+    	int roiIndex1 = 0; int roiIndex2 = 0, nbSlices = trajectories.getNbSlices();
+    	int endOfCollision, endOfCollision1, endOfCollision2, startOfCollision, startOfCollision1, startOfCollision2;
     	
     	rt = ResultsTable.getResultsTable();
     	IJ.run("Clear Results","");
@@ -422,123 +299,53 @@ public class ZF_Tracking<T extends RealType<T>> implements Command, KeyListener,
     	clicked1.x = (int) rt.getValue("X",0); clicked1.y = (int) rt.getValue("Y",0);
     	clicked2.x = (int) rt.getValue("X",1); clicked2.y = (int) rt.getValue("Y",1);
 
-    	// find the nearest corresponding trajectory
-    	for (int r = 0; r<positionList.length; r++) {
-    		for (int s = 1; s<nbSlices; s++) {
-    			endOfCollision = (collisionRecord[r][s]==0 && collisionRecord[r][s-1]==1)?s:endOfCollision;
-    			startOfCollision = (collisionRecord[r][s]==1 && collisionRecord[r][s-1]==0)?s:startOfCollision;
-    			dist = distance(clicked1,positionList[r][s]);
-    			if (minDist1 > dist) {
-    				minDist1 = dist;
-    				roiIndex1 = r; endOfCollision1 = endOfCollision+1; startOfCollision1 = startOfCollision+1;
-    			}
-    			dist = distance(clicked2,positionList[r][s]);
-    			if (minDist2 > dist) {
-    				minDist2 = dist;
-    				roiIndex2 = r; endOfCollision2 = endOfCollision+1; startOfCollision2 = startOfCollision+1;
-    			}
-    		}
-    	}
+    	// find the nearest corresponding trajectory, and the last collision it entered and left up to the clicked slice
+    	int point1 = index.nearest(clicked1.x, clicked1.y), point2 = index.nearest(clicked2.x, clicked2.y);
+    	roiIndex1 = index.fishOf(point1); roiIndex2 = index.fishOf(point2);
+    	endOfCollision1 = index.lastCollisionEnd(roiIndex1, index.sliceOf(point1))+1; startOfCollision1 = index.lastCollisionStart(roiIndex1, index.sliceOf(point1))+1;
+    	endOfCollision2 = index.lastCollisionEnd(roiIndex2, index.sliceOf(point2))+1; startOfCollision2 = index.lastCollisionStart(roiIndex2, index.sliceOf(point2))+1;
     	
     	boolean traj1Upstream = endOfCollision2 > endOfCollision1;
     	endOfCollision = traj1Upstream ? endOfCollision2 : endOfCollision1; // checking if the downstream trajectory is clicked2's.
     	startOfCollision = traj1Upstream ? startOfCollision2 : startOfCollision1;
 
     	// stitch the trajectories, i.e add points intermediary points when the zf was stalled
-    	int s = startOfCollision, collisionDuration = endOfCollision - startOfCollision, step = 1;
+    	int s = startOfCollision, firstChanged = s, collisionDuration = endOfCollision - startOfCollision, step = 1;
+    	int upstream = traj1Upstream ? roiIndex1 : roiIndex2, downstream = traj1Upstream ? roiIndex2 : roiIndex1;
     	do {
-    		if (traj1Upstream && collisionDuration != 0) {
-        		positionList[roiIndex1][s].x = ( positionList[roiIndex1][startOfCollision].x  * (collisionDuration - step) 
-        				+ positionList[roiIndex2][endOfCollision].x * step ) / collisionDuration;
-        		positionList[roiIndex1][s].y = ( positionList[roiIndex1][startOfCollision].y  * (collisionDuration - step) 
-        				+ positionList[roiIndex2][endOfCollision].y * step ) / collisionDuration;
-    		} else if (collisionDuration != 0) {
-        		positionList[roiIndex2][s].x = ( positionList[roiIndex2][startOfCollision].x  * (collisionDuration - step) 
-        				+ positionList[roiIndex1][endOfCollision].x * step ) / collisionDuration;
-        		positionList[roiIndex2][s].y = ( positionList[roiIndex2][startOfCollision].y  * (collisionDuration - step)
-        				+ positionList[roiIndex1][endOfCollision].y * step ) / collisionDuration;
+    		if (collisionDuration != 0) {
+    			int x = ( trajectories.getX(upstream,startOfCollision) * (collisionDuration - step) 
+        				+ trajectories.getX(downstream,endOfCollision) * step ) / collisionDuration;
+    			int y = ( trajectories.getY(upstream,startOfCollision) * (collisionDuration - step) 
+        				+ trajectories.getY(downstream,endOfCollision) * step ) / collisionDuration;
+    			trajectories.setPosition(upstream, s, x, y);
     		}
     		step++;
     		s++;
     	} while ( (s < endOfCollision) && (
-    			(collisionRecord[roiIndex1][s] == 1) || positionList[roiIndex1][s].equals(positionList[roiIndex1][s+1]) ));
+    			(trajectories.getCollision(roiIndex1,s) == 1) || trajectories.samePosition(roiIndex1,s,s+1) ));
     	
     	// swap the points until then next collision is met, then continue swapping all equal points (stalled zf)
+    	int swapStart = s;
     	do {
-    		if (traj1Upstream) {
-    			temp = positionList[roiIndex1][s];
-    			tempInt = collisionRecord[roiIndex1][s];
-    			positionList[roiIndex1][s] = positionList[roiIndex2][s];
-    			positionList[roiIndex2][s] = temp;
-        		collisionRecord[roiIndex1][s] = collisionRecord[roiIndex2][s];
-        		collisionRecord[roiIndex2][s] = tempInt;
-    		}
-    		else {
-    			temp = positionList[roiIndex2][s];
-    			tempInt = collisionRecord[roiIndex2][s];
-    			positionList[roiIndex2][s] = positionList[roiIndex1][s];
-    			positionList[roiIndex1][s] = temp;
-        		collisionRecord[roiIndex2][s] = collisionRecord[roiIndex1][s];
-        		collisionRecord[roiIndex1][s] = tempInt;
-    		}
+    		trajectories.swap(roiIndex1, roiIndex2, s);
     		s++;
     	} while ( (s < nbSlices-1) && (
-    			(collisionRecord[roiIndex1][s] == 0 || positionList[roiIndex1][s].equals(positionList[roiIndex1][s+1]) ) ||
-    			(collisionRecord[roiIndex2][s] == 0 || positionList[roiIndex2][s].equals(positionList[roiIndex2][s+1]))) );
+    			(trajectories.getCollision(roiIndex1,s) == 0 || trajectories.samePosition(roiIndex1,s,s+1) ) ||
+    			(trajectories.getCollision(roiIndex2,s) == 0 || trajectories.samePosition(roiIndex2,s,s+1))) );
     	// i.e until the next collision of one of the 2 downstream trajectories is done
-    	if (s == nbSlices-1) {
-	    	temp = positionList[roiIndex1][s];
-			positionList[roiIndex1][s] = positionList[roiIndex2][s];
-			positionList[roiIndex2][s] = temp;
-			tempInt = collisionRecord[roiIndex1][nbSlices-1];
-			collisionRecord[roiIndex1][s] = collisionRecord[roiIndex2][s];
-			collisionRecord[roiIndex2][s] = tempInt;
-    	}
+    	if (s == nbSlices-1)
+    		trajectories.swap(roiIndex1, roiIndex2, s);
+    	identities.swap(swapStart, s == nbSlices-1 ? s+1 : s, roiIndex1, roiIndex2);
+    	index.invalidate();
 		
-    	image.setOverlay(zfTrajectories(true));
+    	// only the chunks of the 2 stitched trajectories from the collision on are redrawn
+    	overlay.setStitched(true);
+    	overlay.update(roiIndex1, firstChanged, s+1);
+    	overlay.update(roiIndex2, firstChanged, s+1);
+    	image.setOverlay(overlay.getOverlay());
     }
     
-    void setRoisFromArray(Roi[] roiArray) {
-    	if (roiArray.length != zfManager.getCount())
-    		return;
-    	int index = 0;
-    	for (Roi roi:zfManager.getRoisAsArray()) {
-    		index = zfManager.getRoiIndex(roi);
-    		zfManager.setRoi(roiArray[index], index);
-    	}
-    }
-    
-    // adapts the given value to a slice's light exposure provided that no bright objects are introduced and that the change in light exposure is homogeneous.
-    double sliceDiff(int fromSlice, int toSlice) {
-    	if (fromSlice == startSlice)
-    		previousSliceMax = maxValue( image.getStack().getProcessor(fromSlice) );
-    	double toSliceMax = maxValue( image.getStack().getProcessor(toSlice) );
-    	double diff = toSliceMax-previousSliceMax;
-    	previousSliceMax = toSliceMax;
-    	return diff;
-    }
-    
-    double distance(Point A, Point B) {
-    	return Math.sqrt((A.x-B.x)*(A.x-B.x)+(A.y-B.y)*(A.y-B.y));
-    }
-    
-    Double[] getContainedPointsValues(Roi roi, ImageProcessor ip) {
-    	Point[] containedPoints = roi.getContainedPoints();
-    	Double[] values = new Double[containedPoints.length];
-    	for (int i = 0 ; i < containedPoints.length ; i++) {
-    		values[i] = ip.getValue(containedPoints[i].x,containedPoints[i].y);
-    	}
-    	return values;
-    }
-    
-    boolean isInROI(Point p, RoiManager rm) {
-    	for (int r = 0; r<rm.getCount(); r++) {
-    		if (Arrays.asList(rm.getRoi(r).getContainedPoints()).contains(p))
-    			return true;
-    	}
-    	return false;
-    }
-
 	@Override
 	public void keyPressed(KeyEvent e) {
 		if (e.getID() == KeyEvent.KEY_PRESSED && e.getKeyCode() == KeyEvent.VK_UNDERSCORE && canCreateROIs) {
@@ -547,6 +354,10 @@ public class ZF_Tracking<T extends RealType<T>> implements Command, KeyListener,
 		}
 		if (e.getID() == KeyEvent.KEY_PRESSED && e.getKeyCode() == KeyEvent.VK_UNDERSCORE && trackingDone)
 			stitch();
+		else if (e.getID() == KeyEvent.KEY_PRESSED && e.getKeyCode() == KeyEvent.VK_F5 && trackingDone)
+			retrack();
+		else if (trackingDone)
+			zoomed(); // e.g [+] or [-]
 	}
 	@Override
 	public void mousePressed (MouseEvent e) {
@@ -555,79 +366,80 @@ public class ZF_Tracking<T extends RealType<T>> implements Command, KeyListener,
     		nbClicks = 0;
     	}
 		nbClicks += (e.getButton() == MouseEvent.BUTTON1 && e.getID() == MouseEvent.MOUSE_PRESSED && trackingDone)?1:0;
+		if (trackingDone)
+			zoomed(); // e.g with the magnifying glass
+	}
+	
+	// the trajectories are decimated again when the zoom changed enough
+	void zoomed() {
+		if (image.getCanvas() != null && overlay.setMagnification(image.getCanvas().getMagnification()))
+			image.setOverlay(overlay.getOverlay());
 	}
 	
 	boolean getUserInputs() {
 		// get numeric fields
         	GenericDialog gd = new GenericDialog("ZF Larvae Tracking Numeric Parameters");
-        	gd.addNumericField("Object maximal intensity", objectThreshold, 0);
-       		gd.addNumericField("Object minimal size", maximal_area);
-		gd.addNumericField("Error bar for zebrafish maximum intensity", zfThreshApprox);
-       		gd.addNumericField("Frame rate", frameRate, 0);
-		gd.addNumericField("Zebrafish_size", zfSize,0);
-		gd.addNumericField("Tracking_radius", defaultRadius,0);
-		gd.addNumericField("Collision_manager_radius", collisionHandlerRadius,0);
-		gd.addNumericField("Collision_distance", collision_dist);
+        	gd.addNumericField("Object maximal intensity", params.objectThreshold, 0);
+       		gd.addNumericField("Object minimal size", params.maximal_area);
+		gd.addNumericField("Background_model_rate (0: threshold)", params.backgroundRate, 3);
+		gd.addNumericField("Foreground_contrast", params.foregroundContrast);
+		gd.addNumericField("Error bar for zebrafish maximum intensity", params.zfThreshApprox);
+       		gd.addNumericField("Frame rate", params.frameRate, 0);
+		gd.addNumericField("Zebrafish_size", params.zfSize,0);
+		gd.addNumericField("Tracking_radius", params.defaultRadius,0);
+		gd.addNumericField("Collision_manager_radius", params.collisionHandlerRadius,0);
+		gd.addNumericField("Collision_distance", params.collision_dist);
+		gd.addNumericField("Bout_speed (pixels/slice)", params.boutSpeed);
+		gd.addNumericField("Bout_minimal_steps", params.minBoutSteps, 0);
+		gd.addChoice("Seeds", new String[] {"Click", "Automatic"}, seeding);
+		gd.addNumericField("Expected_zebrafish (0: current slice)", expectedFish, 0);
+		gd.addChoice("Arenas", new String[] {"Whole frame", "Grid", "ROI Manager"}, arenas);
+		gd.addNumericField("Arena_rows", arenaRows, 0);
+		gd.addNumericField("Arena_columns", arenaCols, 0);
+		gd.addNumericField("Time_segments_of (slices, 0: whole video)", segmentLength, 0);
+		gd.addChoice("Results_table", new String[] {"Full", "Summary", "None"}, resultsTable);
+		exportDirectory = IJ.getDirectory("image") != null ? IJ.getDirectory("image") : System.getProperty("user.home");
+		gd.addStringField("Export_directory", exportDirectory);
+		gd.addCheckbox("Export_CSV", exportCsv);
+		gd.addCheckbox("Export_binary", exportBinary);
+		gd.addCheckbox("Compress_exports", compressExports);
+		gd.addCheckbox("Tracking_metrics", measureTracking);
+		gd.addCheckbox("Auto_stitch", autoStitch);
 		gd.addHelp("https://github.com/Rachmanichou/Zebra_Fish_Tracking");
 		gd.showDialog();
 	
 	        if (gd.wasCanceled()) 
 	        	return true;
 	        
-	        objectThreshold = gd.getNextNumber();
-	        maximal_area = (int) gd.getNextNumber();
-	        zfThreshApprox = gd.getNextNumber();
-	        frameRate = (int)gd.getNextNumber();
-		zfSize = gd.getNextNumber();
-	        defaultRadius = gd.getNextNumber();
-	        collisionHandlerRadius = gd.getNextNumber();
-	        collision_dist = gd.getNextNumber();
+	        params.objectThreshold = gd.getNextNumber();
+	        params.maximal_area = (int) gd.getNextNumber();
+		params.backgroundRate = gd.getNextNumber();
+		params.foregroundContrast = gd.getNextNumber();
+	        params.zfThreshApprox = gd.getNextNumber();
+	        params.frameRate = (int)gd.getNextNumber();
+		params.zfSize = gd.getNextNumber();
+	        params.defaultRadius = gd.getNextNumber();
+	        params.collisionHandlerRadius = gd.getNextNumber();
+	        params.collision_dist = gd.getNextNumber();
+		params.boutSpeed = gd.getNextNumber();
+		params.minBoutSteps = (int) gd.getNextNumber();
+	        seeding = gd.getNextChoice();
+	        expectedFish = (int) gd.getNextNumber();
+	        arenas = gd.getNextChoice();
+	        arenaRows = Math.max(1, (int) gd.getNextNumber());
+	        arenaCols = Math.max(1, (int) gd.getNextNumber());
+	        segmentLength = Math.max(0, (int) gd.getNextNumber());
+	        resultsTable = gd.getNextChoice();
+	        exportDirectory = gd.getNextString();
+	        exportCsv = gd.getNextBoolean();
+	        exportBinary = gd.getNextBoolean();
+	        compressExports = gd.getNextBoolean();
+	        measureTracking = gd.getNextBoolean();
+	        autoStitch = gd.getNextBoolean();
 	        
 	        return false;
 	}
 	
-	Overlay zfTrajectories (boolean stitch) {
-    	Overlay trajectories = new Overlay();
-    	int nbROIs = positionList.length, nbSlices = positionList[0].length;
-    	for (int i = 0 ; i < nbROIs ; i++) {
-    		ArrayList<Integer> x = new ArrayList<Integer>(), y = new ArrayList<Integer>(); 
-    		for (int j = 1 ; j < nbSlices ; j++) {
-    			if (collisionRecord[i][j] == 1 && !stitch) {
-    				int[] xArray = new int[x.size()], yArray = new int[y.size()];
-    				for (int k = 0; k<x.size(); k++) {
-    					xArray[k] = x.get(k); yArray[k] = y.get(k);
-    				}
-    				PolygonRoi polyline = new PolygonRoi(xArray,yArray,x.size(),PolygonRoi.POLYLINE);
-    				polyline.setStrokeColor(new Color((float) Math.random(),(float) Math.random(),(float) Math.random()));
-    				polyline.setStrokeWidth(1);
-    				trajectories.add(polyline);
-    				x = new ArrayList<Integer>(); y = new ArrayList<Integer>();
-    			}
-    			x.add(positionList[i][j].x); y.add(positionList[i][j].y);
-    		}
-    		int[] xArray = new int[x.size()], yArray = new int[y.size()];
-    		for (int k = 0; k<x.size(); k++) {
-    			xArray[k] = x.get(k); yArray[k] = y.get(k);
-    		}
-    		PolygonRoi polyline = new PolygonRoi(xArray,yArray,x.size(),PolygonRoi.POLYLINE);
-    		polyline.setStrokeColor(new Color((float) Math.random(),(float) Math.random(),(float) Math.random()));
-    		polyline.setStrokeWidth(1);
-    		trajectories.add(polyline);
-    	}
-    	return trajectories;
-	}
-	
-	double maxValue (ImageProcessor ip) {
-		int w = ip.getWidth(), h = ip.getHeight(), max = 0;
-		for (int x = 0; x < w; x++) {
-			for (int y = 0; y < h; y++) {
-				if (max < ip.get(x,y))
-					max = ip.get(x,y);
-			}
-		}
-		return max;
-	}
-
 	@Override
 	public void keyTyped(KeyEvent e) {}
 	@Override
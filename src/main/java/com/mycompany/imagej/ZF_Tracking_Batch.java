@@ -0,0 +1,107 @@
+package com.mycompany.imagej;
+
+import ij.gui.GenericDialog;
+import ij.IJ;
+
+import org.scijava.command.Command;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+// tracks a directory or manifest of videos with BatchRunner, reporting to the log window. See BatchRunner for the expected files.
+@Plugin(type = Command.class, menuPath = "Plugins>ZF Tracking Batch")
+public class ZF_Tracking_Batch implements Command {
+	TrackingParameters params = new TrackingParameters();
+	String input = "", outputDirectory = "";
+	int nbWorkers = Math.max(1, Runtime.getRuntime().availableProcessors()/2), memory = (int) (Runtime.getRuntime().maxMemory()/2 >> 20);
+	int autoSeeds = -1, seedStride = 0, checkpointInterval = 1000;
+	boolean compressExports = false, measureTracking = false;
+
+	@Override
+	public void run() {
+		if (getUserInputs())
+			return;
+		final BatchRunner runner = new BatchRunner(new File(outputDirectory), nbWorkers, (long) memory << 20) {
+			@Override
+			void log(String message) {
+				IJ.log(message);
+				IJ.showProgress(nbDone.get(), nbJobs);
+			}
+		};
+		runner.setDefaults(params);
+		runner.setExports(compressExports, measureTracking);
+		runner.setAutoSeeds(autoSeeds);
+		runner.setSeedStride(seedStride);
+		runner.setCheckpointInterval(checkpointInterval);
+		try {
+			List<BatchRunner.Job> jobs = BatchRunner.findJobs(new File(input));
+			if (jobs.isEmpty()) {
+				IJ.error("ZF Tracking Batch", "No video found in "+input);
+				return;
+			}
+			runner.run(jobs);
+		} catch (IOException e) {
+			IJ.error("ZF Tracking Batch", e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// the parameters are the defaults of the jobs which don't have their own
+	boolean getUserInputs() {
+		GenericDialog gd = new GenericDialog("ZF Larvae Tracking Batch");
+		gd.addStringField("Videos (directory or manifest)", input);
+		gd.addStringField("Output_directory", outputDirectory);
+		gd.addNumericField("Videos_at_a_time", nbWorkers, 0);
+		gd.addNumericField("Memory_budget (MB)", memory, 0);
+		gd.addNumericField("Expected_zebrafish without seed file (-1: fail, 0: first slice)", autoSeeds, 0);
+		gd.addNumericField("Look_for_the_start_slice_every (slices, 0: 1 s)", seedStride, 0);
+		gd.addNumericField("Checkpoint_every (slices, 0: never)", checkpointInterval, 0);
+		gd.addNumericField("Object maximal intensity", params.objectThreshold, 0);
+		gd.addNumericField("Object minimal size", params.maximal_area);
+		gd.addNumericField("Background_model_rate (0: threshold)", params.backgroundRate, 3);
+		gd.addNumericField("Foreground_contrast", params.foregroundContrast);
+		gd.addNumericField("Error bar for zebrafish maximum intensity", params.zfThreshApprox);
+		gd.addNumericField("Frame rate", params.frameRate, 0);
+		gd.addNumericField("Zebrafish_size", params.zfSize, 0);
+		gd.addNumericField("Tracking_radius", params.defaultRadius, 0);
+		gd.addNumericField("Collision_manager_radius", params.collisionHandlerRadius, 0);
+		gd.addNumericField("Collision_distance", params.collision_dist);
+		gd.addNumericField("Bout_speed (pixels/slice)", params.boutSpeed);
+		gd.addNumericField("Bout_minimal_steps", params.minBoutSteps, 0);
+		gd.addCheckbox("Compress_exports", compressExports);
+		gd.addCheckbox("Tracking_metrics", measureTracking);
+		gd.addHelp("https://github.com/Rachmanichou/Zebra_Fish_Tracking");
+		gd.showDialog();
+
+		if (gd.wasCanceled())
+			return true;
+
+		input = gd.getNextString();
+		outputDirectory = gd.getNextString();
+		nbWorkers = (int) gd.getNextNumber();
+		memory = (int) gd.getNextNumber();
+		autoSeeds = (int) gd.getNextNumber();
+		seedStride = (int) gd.getNextNumber();
+		checkpointInterval = (int) gd.getNextNumber();
+		params.objectThreshold = gd.getNextNumber();
+		params.maximal_area = (int) gd.getNextNumber();
+		params.backgroundRate = gd.getNextNumber();
+		params.foregroundContrast = gd.getNextNumber();
+		params.zfThreshApprox = gd.getNextNumber();
+		params.frameRate = (int) gd.getNextNumber();
+		params.zfSize = gd.getNextNumber();
+		params.defaultRadius = gd.getNextNumber();
+		params.collisionHandlerRadius = gd.getNextNumber();
+		params.collision_dist = gd.getNextNumber();
+		params.boutSpeed = gd.getNextNumber();
+		params.minBoutSteps = (int) gd.getNextNumber();
+		compressExports = gd.getNextBoolean();
+		measureTracking = gd.getNextBoolean();
+		if (outputDirectory.isEmpty())
+			outputDirectory = new File(input).isDirectory() ? input : new File(input).getAbsoluteFile().getParent();
+		return false;
+	}
+}
@@ -0,0 +1,125 @@
+package com.mycompany.imagej;
+
+import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
+import ij.IJ;
+
+import org.scijava.command.Command;
+import org.scijava.plugin.Plugin;
+
+import java.awt.Point;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+
+// tracks a video with many combinations of parameters at once with ParameterSweep, and shows how each fared. See ParameterSweep for the scores.
+@Plugin(type = Command.class, menuPath = "Plugins>ZF Tracking Sweep")
+public class ZF_Tracking_Sweep implements Command {
+	TrackingParameters params = new TrackingParameters();
+	String video = "", seeds = "", report = "";
+	String objectThresholds = "80,100,120", zfThreshApproxes = "1", radii = "15,20,25", collisionRadii = "20", collisionDistances = "3,5";
+	int nbWorkers = Math.max(1, Runtime.getRuntime().availableProcessors()/2), memory = (int) (Runtime.getRuntime().maxMemory()/2 >> 20);
+
+	@Override
+	public void run() {
+		if (getUserInputs())
+			return;
+		Properties values = new Properties();
+		values.setProperty("objectThreshold", objectThresholds);
+		values.setProperty("zfThreshApprox", zfThreshApproxes);
+		values.setProperty("defaultRadius", radii);
+		values.setProperty("collisionHandlerRadius", collisionRadii);
+		values.setProperty("collision_dist", collisionDistances);
+		try {
+			List<TrackingParameters> combinations = ParameterSweep.grid(params, values);
+			FrameSource source = BatchRunner.openVideo(new File(video));
+			try {
+				int[] startSlice = new int[1];
+				Point[] seedPoints = BatchRunner.readSeeds(new File(seeds), startSlice);
+				final int nbCombinations = combinations.size();
+				ParameterSweep sweep = new ParameterSweep(source, nbWorkers, (long) memory << 20) {
+					int nbLogged;
+
+					@Override
+					synchronized void log(String message) {
+						IJ.log(message);
+						IJ.showProgress(nbLogged++, nbCombinations);
+					}
+				};
+				sweep.setSeeds(startSlice[0], seedPoints);
+				List<ParameterSweep.Result> results = sweep.run(combinations);
+				ParameterSweep.writeReport(results, new File(report));
+				show(results);
+			} finally {
+				if (source instanceof Closeable)
+					((Closeable) source).close();
+			}
+		} catch (IOException e) {
+			IJ.error("ZF Tracking Sweep", e.getMessage());
+		} catch (IllegalArgumentException e) {
+			IJ.error("ZF Tracking Sweep", e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	void show(List<ParameterSweep.Result> results) {
+		ResultsTable rt = new ResultsTable();
+		for (ParameterSweep.Result result:results) {
+			rt.addRow();
+			rt.addValue("Object maximal intensity", result.params.objectThreshold);
+			rt.addValue("Error bar", result.params.zfThreshApprox);
+			rt.addValue("Tracking radius", result.params.defaultRadius);
+			rt.addValue("Collision manager radius", result.params.collisionHandlerRadius);
+			rt.addValue("Collision distance", result.params.collision_dist);
+			rt.addValue("Collisions", result.collisions);
+			rt.addValue("Lost zf", result.lostFish);
+			rt.addValue("Smoothness (pixels/slice^2)", result.smoothness);
+			rt.addValue("Seconds", result.seconds);
+			rt.addValue("Message", result.failed ? "failed: "+result.message : "");
+		}
+		rt.show("ZF Tracking Sweep");
+	}
+
+	// each swept parameter takes a list of values separated by commas, the others are the same for all combinations
+	boolean getUserInputs() {
+		GenericDialog gd = new GenericDialog("ZF Larvae Tracking Sweep");
+		gd.addStringField("Video", video);
+		gd.addStringField("Seed_file (slice,x,y)", seeds);
+		gd.addStringField("Report (CSV, next to the video if empty)", report);
+		gd.addNumericField("Runs_at_a_time", nbWorkers, 0);
+		gd.addNumericField("Memory_budget (MB)", memory, 0);
+		gd.addStringField("Object maximal intensities", objectThresholds);
+		gd.addNumericField("Object minimal size", params.maximal_area);
+		gd.addStringField("Error bars for zebrafish maximum intensity", zfThreshApproxes);
+		gd.addNumericField("Frame rate", params.frameRate, 0);
+		gd.addNumericField("Zebrafish_size", params.zfSize, 0);
+		gd.addStringField("Tracking_radii", radii);
+		gd.addStringField("Collision_manager_radii", collisionRadii);
+		gd.addStringField("Collision_distances", collisionDistances);
+		gd.addHelp("https://github.com/Rachmanichou/Zebra_Fish_Tracking");
+		gd.showDialog();
+
+		if (gd.wasCanceled())
+			return true;
+
+		video = gd.getNextString();
+		seeds = gd.getNextString();
+		report = gd.getNextString();
+		nbWorkers = (int) gd.getNextNumber();
+		memory = (int) gd.getNextNumber();
+		objectThresholds = gd.getNextString();
+		params.maximal_area = (int) gd.getNextNumber();
+		zfThreshApproxes = gd.getNextString();
+		params.frameRate = (int) gd.getNextNumber();
+		params.zfSize = gd.getNextNumber();
+		radii = gd.getNextString();
+		collisionRadii = gd.getNextString();
+		collisionDistances = gd.getNextString();
+		if (report.isEmpty())
+			report = new File(new File(video).getAbsoluteFile().getParent(), new File(video).getName().replaceFirst("\\.[^.]*$", "")+"_sweep.csv").getPath();
+		return false;
+	}
+}
@@ -0,0 +1,148 @@
+package com.mycompany.imagej;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+/* The PixelKernels written with the Vector API, in lanes of the widest vectors of the CPU. Only built with the vector profile,
+ * and only loaded by PixelKernels.get(), through reflection, so that the plugin still runs on Java 8.
+ * The Vector API has no unsigned compare in JDK 17: 8-bit and 16-bit values are flipped to signed ones by XOR-ing their highest bit,
+ * which keeps their order. The tails shorter than a vector go through the scalar loops.
+ * A histogram scatters its counts, which vectors can't do faster: it stays scalar.
+ */
+public class VectorPixelKernels extends PixelKernels {
+	static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+	static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+	static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	static final byte BYTE_SIGN = (byte) 0x80;
+	static final short SHORT_SIGN = (short) 0x8000;
+
+	public VectorPixelKernels() {
+		// links the incubator classes now rather than on the first frame, so that PixelKernels.load() falls back if they're missing
+		max(new byte[2*BYTES.length()]);
+	}
+
+	@Override
+	public String getName() {
+		return "vector ("+BYTES.vectorBitSize()+" bits)";
+	}
+
+	@Override
+	public int max(byte[] pixels) {
+		int upper = BYTES.loopBound(pixels.length);
+		ByteVector max = ByteVector.broadcast(BYTES, Byte.MIN_VALUE);
+		for (int i = 0; i < upper; i += BYTES.length())
+			max = max.max(ByteVector.fromArray(BYTES, pixels, i).lanewise(VectorOperators.XOR, BYTE_SIGN));
+		int result = (max.reduceLanes(VectorOperators.MAX) ^ BYTE_SIGN) & 0xff;
+		for (int i = upper; i < pixels.length; i++)
+			result = Math.max(result, pixels[i]&0xff);
+		return result;
+	}
+
+	@Override
+	public int max(short[] pixels) {
+		int upper = SHORTS.loopBound(pixels.length);
+		ShortVector max = ShortVector.broadcast(SHORTS, Short.MIN_VALUE);
+		for (int i = 0; i < upper; i += SHORTS.length())
+			max = max.max(ShortVector.fromArray(SHORTS, pixels, i).lanewise(VectorOperators.XOR, SHORT_SIGN));
+		int result = (max.reduceLanes(VectorOperators.MAX) ^ SHORT_SIGN) & 0xffff;
+		for (int i = upper; i < pixels.length; i++)
+			result = Math.max(result, pixels[i]&0xffff);
+		return result;
+	}
+
+	// vector max propagates NaN where the scalar loop skips it, so a NaN anywhere leaves it to the scalar loop
+	@Override
+	public float max(float[] pixels) {
+		int upper = FLOATS.loopBound(pixels.length);
+		if (upper == 0)
+			return super.max(pixels);
+		FloatVector max = FloatVector.fromArray(FLOATS, pixels, 0);
+		for (int i = FLOATS.length(); i < upper; i += FLOATS.length())
+			max = max.max(FloatVector.fromArray(FLOATS, pixels, i));
+		float result = max.reduceLanes(VectorOperators.MAX);
+		for (int i = upper; i < pixels.length; i++)
+			result = Math.max(result, pixels[i]);
+		return Float.isNaN(result) ? super.max(pixels) : result;
+	}
+
+	@Override
+	public int min(byte[] pixels) {
+		int upper = BYTES.loopBound(pixels.length);
+		ByteVector min = ByteVector.broadcast(BYTES, Byte.MAX_VALUE);
+		for (int i = 0; i < upper; i += BYTES.length())
+			min = min.min(ByteVector.fromArray(BYTES, pixels, i).lanewise(VectorOperators.XOR, BYTE_SIGN));
+		int result = (min.reduceLanes(VectorOperators.MIN) ^ BYTE_SIGN) & 0xff;
+		for (int i = upper; i < pixels.length; i++)
+			result = Math.min(result, pixels[i]&0xff);
+		return result;
+	}
+
+	@Override
+	public int min(short[] pixels) {
+		int upper = SHORTS.loopBound(pixels.length);
+		ShortVector min = ShortVector.broadcast(SHORTS, Short.MAX_VALUE);
+		for (int i = 0; i < upper; i += SHORTS.length())
+			min = min.min(ShortVector.fromArray(SHORTS, pixels, i).lanewise(VectorOperators.XOR, SHORT_SIGN));
+		int result = (min.reduceLanes(VectorOperators.MIN) ^ SHORT_SIGN) & 0xffff;
+		for (int i = upper; i < pixels.length; i++)
+			result = Math.min(result, pixels[i]&0xffff);
+		return result;
+	}
+
+	@Override
+	public float min(float[] pixels) {
+		int upper = FLOATS.loopBound(pixels.length);
+		if (upper == 0)
+			return super.min(pixels);
+		FloatVector min = FloatVector.fromArray(FLOATS, pixels, 0);
+		for (int i = FLOATS.length(); i < upper; i += FLOATS.length())
+			min = min.min(FloatVector.fromArray(FLOATS, pixels, i));
+		float result = min.reduceLanes(VectorOperators.MIN);
+		for (int i = upper; i < pixels.length; i++)
+			result = Math.min(result, pixels[i]);
+		return Float.isNaN(result) ? super.min(pixels) : result;
+	}
+
+	@Override
+	public void above(byte[] pixels, int limit, boolean[] above) {
+		// no value is above 255, all are above -1, and neither limit has a signed counterpart
+		if (limit < 0 || limit >= 255) {
+			Arrays.fill(above, 0, pixels.length, limit < 0);
+			return;
+		}
+		byte signedLimit = (byte) (limit ^ BYTE_SIGN);
+		int upper = BYTES.loopBound(pixels.length);
+		for (int i = 0; i < upper; i += BYTES.length())
+			ByteVector.fromArray(BYTES, pixels, i).lanewise(VectorOperators.XOR, BYTE_SIGN).compare(VectorOperators.GT, signedLimit).intoArray(above, i);
+		for (int i = upper; i < pixels.length; i++)
+			above[i] = (pixels[i]&0xff) > limit;
+	}
+
+	@Override
+	public void above(short[] pixels, int limit, boolean[] above) {
+		if (limit < 0 || limit >= 65535) {
+			Arrays.fill(above, 0, pixels.length, limit < 0);
+			return;
+		}
+		short signedLimit = (short) (limit ^ SHORT_SIGN);
+		int upper = SHORTS.loopBound(pixels.length);
+		for (int i = 0; i < upper; i += SHORTS.length())
+			ShortVector.fromArray(SHORTS, pixels, i).lanewise(VectorOperators.XOR, SHORT_SIGN).compare(VectorOperators.GT, signedLimit).intoArray(above, i);
+		for (int i = upper; i < pixels.length; i++)
+			above[i] = (pixels[i]&0xffff) > limit;
+	}
+
+	@Override
+	public void above(float[] pixels, float limit, boolean[] above) {
+		int upper = FLOATS.loopBound(pixels.length);
+		for (int i = 0; i < upper; i += FLOATS.length())
+			FloatVector.fromArray(FLOATS, pixels, i).compare(VectorOperators.GT, limit).intoArray(above, i);
+		for (int i = upper; i < pixels.length; i++)
+			above[i] = pixels[i] > limit;
+	}
+}